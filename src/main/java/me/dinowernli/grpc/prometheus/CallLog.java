@@ -0,0 +1,193 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Status;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends a fixed-width binary record for every rpc handled by the server to a memory-mapped ring
+ * file, so that individual rpcs can be analyzed offline. Once the file is full, the oldest records
+ * get overwritten. Use {@link CallLogRecords#read} to load the records.
+ *
+ * <p>Methods are identified by small integer ids, which are kept in a separate dictionary file next
+ * to the ring file. Install a log using {@link Configuration#withCallLog(CallLog)}. The number of
+ * bytes per rpc is only known if the interceptor's stream tracer is installed on the server.
+ */
+public class CallLog implements Closeable {
+  static final String RECORDS_SUFFIX = ".calls";
+  static final String METHODS_SUFFIX = ".methods";
+
+  static final int MAGIC = 0x47524c47;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final int RECORD_SIZE = 56;
+
+  // Offsets of the fields within a record.
+  static final int SEQUENCE_OFFSET = 0;
+  static final int START_OFFSET = 8;
+  static final int DURATION_OFFSET = 16;
+  static final int BYTES_RECEIVED_OFFSET = 24;
+  static final int BYTES_SENT_OFFSET = 32;
+  static final int METHOD_OFFSET = 40;
+  static final int CODE_OFFSET = 44;
+  static final int MESSAGES_RECEIVED_OFFSET = 48;
+  static final int MESSAGES_SENT_OFFSET = 52;
+
+  static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final Path methodsFile;
+  private final ConcurrentMap<String, Integer> methodIds;
+  private final AtomicLong lastSequence;
+
+  /** Used to turn {@link System#nanoTime()} values into nanoseconds since the epoch. */
+  private final long epochNanosOffset;
+
+  /**
+   * Opens the log with the supplied name in the supplied directory, creating it with room for the
+   * given number of records if needed. An existing log is appended to.
+   */
+  public static CallLog open(Path directory, String name, int capacity) throws IOException {
+    Path recordsFile = directory.resolve(name + RECORDS_SUFFIX);
+    Path methodsFile = directory.resolve(name + METHODS_SUFFIX);
+    FileChannel channel =
+        FileChannel.open(
+            recordsFile,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    boolean isExisting = channel.size() > 0;
+    int fileSize = isExisting ? (int) channel.size() : HEADER_SIZE + capacity * RECORD_SIZE;
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    if (isExisting) {
+      capacity = readCapacity(buffer);
+      if (capacity < 0) {
+        channel.close();
+        throw new IOException("Not a valid call log: " + recordsFile);
+      }
+    } else {
+      buffer.order(ByteOrder.LITTLE_ENDIAN).putInt(0, MAGIC).putInt(4, VERSION);
+      buffer.putInt(8, capacity);
+    }
+    return new CallLog(channel, buffer, capacity, methodsFile);
+  }
+
+  private CallLog(FileChannel channel, MappedByteBuffer buffer, int capacity, Path methodsFile)
+      throws IOException {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.capacity = capacity;
+    this.methodsFile = methodsFile;
+    this.methodIds = new ConcurrentHashMap<>();
+    this.epochNanosOffset = epochNanos(Instant.now()) - System.nanoTime();
+
+    if (Files.exists(methodsFile)) {
+      List<String> methods = Files.readAllLines(methodsFile, StandardCharsets.UTF_8);
+      for (int id = 0; id < methods.size(); ++id) {
+        methodIds.put(methods.get(id), id);
+      }
+    }
+    long maxSequence = 0;
+    for (int i = 0; i < capacity; ++i) {
+      maxSequence = Math.max(maxSequence, buffer.getLong(recordOffset(i) + SEQUENCE_OFFSET));
+    }
+    this.lastSequence = new AtomicLong(maxSequence);
+  }
+
+  /** Appends a record for an rpc which is done. Safe to call from several threads at once. */
+  void append(GrpcMethod method, CallTracker tracker, Status.Code code) {
+    long durationNanos = tracker.elapsedNanos();
+    int methodId = methodId(method);
+    long sequence = lastSequence.incrementAndGet();
+    int offset = recordOffset((int) ((sequence - 1) % capacity));
+
+    // Readers skip records with a zero sequence, so invalidate the slot while overwriting it. The
+    // fence keeps the fields below from becoming visible before the invalidation, and readers drop
+    // records whose sequence changed while they were copying them.
+    LONGS.setOpaque(buffer, offset + SEQUENCE_OFFSET, 0L);
+    VarHandle.storeStoreFence();
+    buffer.putLong(offset + START_OFFSET, epochNanosOffset + tracker.startNanos());
+    buffer.putLong(offset + DURATION_OFFSET, durationNanos);
+    buffer.putLong(offset + BYTES_RECEIVED_OFFSET, tracker.bytesReceived());
+    buffer.putLong(offset + BYTES_SENT_OFFSET, tracker.bytesSent());
+    buffer.putInt(offset + METHOD_OFFSET, methodId);
+    buffer.putInt(offset + CODE_OFFSET, code.value());
+    buffer.putInt(offset + MESSAGES_RECEIVED_OFFSET, tracker.messagesReceived());
+    buffer.putInt(offset + MESSAGES_SENT_OFFSET, tracker.messagesSent());
+    LONGS.setRelease(buffer, offset + SEQUENCE_OFFSET, sequence);
+  }
+
+  /** Writes all records to disk and closes the log. */
+  @Override
+  public void close() throws IOException {
+    buffer.force();
+    channel.close();
+  }
+
+  static int recordOffset(int index) {
+    return HEADER_SIZE + index * RECORD_SIZE;
+  }
+
+  /** Returns the number of records of the log, or -1 if the buffer does not hold a valid log. */
+  static int readCapacity(MappedByteBuffer buffer) {
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < HEADER_SIZE
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION) {
+      return -1;
+    }
+    int capacity = buffer.getInt(8);
+    return buffer.capacity() < recordOffset(capacity) ? -1 : capacity;
+  }
+
+  private int methodId(GrpcMethod method) {
+    // The name is held by the method descriptor, so its hash code is cached and the lookup of a
+    // known method only compares references.
+    Integer id = methodIds.get(method.fullMethodName());
+    return id != null ? id : assignMethodId(method.fullMethodName());
+  }
+
+  /** Assigns the next id to a method seen for the first time, and adds it to the dictionary. */
+  private synchronized int assignMethodId(String fullMethodName) {
+    Integer id = methodIds.get(fullMethodName);
+    if (id != null) {
+      return id;
+    }
+    try {
+      Files.write(
+          methodsFile,
+          (fullMethodName + "\n").getBytes(StandardCharsets.UTF_8),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to add method to " + methodsFile, e);
+    }
+    int newId = methodIds.size();
+    methodIds.put(fullMethodName, newId);
+    return newId;
+  }
+
+  private static long epochNanos(Instant instant) {
+    return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+  }
+}
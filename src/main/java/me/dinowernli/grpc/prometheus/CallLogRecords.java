@@ -0,0 +1,154 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Status;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The records of a {@link CallLog}, ordered from oldest to newest. The records are kept in one
+ * array per field, which keeps them compact and makes it cheap to aggregate a single field.
+ */
+public class CallLogRecords {
+  private final List<String> methods;
+  private final int[] methodIds;
+  private final long[] startEpochNanos;
+  private final long[] durationNanos;
+  private final int[] codes;
+  private final int[] messagesReceived;
+  private final int[] messagesSent;
+  private final long[] bytesReceived;
+  private final long[] bytesSent;
+
+  /**
+   * Reads the log with the supplied name from the supplied directory. This can be done while the
+   * log is still being written to, in which case records being written at the time are skipped,
+   * as are records which get overwritten while reading them.
+   */
+  public static CallLogRecords read(Path directory, String name) throws IOException {
+    Path recordsFile = directory.resolve(name + CallLog.RECORDS_SUFFIX);
+    Path methodsFile = directory.resolve(name + CallLog.METHODS_SUFFIX);
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(recordsFile, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    int capacity = CallLog.readCapacity(buffer);
+    if (capacity < 0) {
+      throw new IOException("Not a valid call log: " + recordsFile);
+    }
+    List<String> methods =
+        Files.exists(methodsFile)
+            ? Files.readAllLines(methodsFile, StandardCharsets.UTF_8)
+            : new ArrayList<>();
+
+    // Collect the valid records, and sort them by their sequence number.
+    long[] sequences = new long[capacity];
+    List<Integer> indices = new ArrayList<>();
+    for (int i = 0; i < capacity; ++i) {
+      sequences[i] = (long) CallLog.LONGS.getAcquire(buffer, CallLog.recordOffset(i));
+      if (sequences[i] > 0) {
+        indices.add(i);
+      }
+    }
+    indices.sort(Comparator.comparingLong(i -> sequences[i]));
+
+    CallLogRecords records = new CallLogRecords(methods, indices.size());
+    int row = 0;
+    for (int index : indices) {
+      int offset = CallLog.recordOffset(index);
+      records.methodIds[row] = buffer.getInt(offset + CallLog.METHOD_OFFSET);
+      records.startEpochNanos[row] = buffer.getLong(offset + CallLog.START_OFFSET);
+      records.durationNanos[row] = buffer.getLong(offset + CallLog.DURATION_OFFSET);
+      records.codes[row] = buffer.getInt(offset + CallLog.CODE_OFFSET);
+      records.messagesReceived[row] = buffer.getInt(offset + CallLog.MESSAGES_RECEIVED_OFFSET);
+      records.messagesSent[row] = buffer.getInt(offset + CallLog.MESSAGES_SENT_OFFSET);
+      records.bytesReceived[row] = buffer.getLong(offset + CallLog.BYTES_RECEIVED_OFFSET);
+      records.bytesSent[row] = buffer.getLong(offset + CallLog.BYTES_SENT_OFFSET);
+
+      // The record got overwritten while copying it, unless its sequence is still the same.
+      VarHandle.loadLoadFence();
+      if ((long) CallLog.LONGS.getAcquire(buffer, offset + CallLog.SEQUENCE_OFFSET)
+          == sequences[index]) {
+        ++row;
+      }
+    }
+    return row == records.size() ? records : records.truncate(row);
+  }
+
+  private CallLogRecords(List<String> methods, int size) {
+    this.methods = methods;
+    this.methodIds = new int[size];
+    this.startEpochNanos = new long[size];
+    this.durationNanos = new long[size];
+    this.codes = new int[size];
+    this.messagesReceived = new int[size];
+    this.messagesSent = new int[size];
+    this.bytesReceived = new long[size];
+    this.bytesSent = new long[size];
+  }
+
+  /** Returns a copy of the first rows of these records. */
+  private CallLogRecords truncate(int size) {
+    CallLogRecords result = new CallLogRecords(methods, size);
+    System.arraycopy(methodIds, 0, result.methodIds, 0, size);
+    System.arraycopy(startEpochNanos, 0, result.startEpochNanos, 0, size);
+    System.arraycopy(durationNanos, 0, result.durationNanos, 0, size);
+    System.arraycopy(codes, 0, result.codes, 0, size);
+    System.arraycopy(messagesReceived, 0, result.messagesReceived, 0, size);
+    System.arraycopy(messagesSent, 0, result.messagesSent, 0, size);
+    System.arraycopy(bytesReceived, 0, result.bytesReceived, 0, size);
+    System.arraycopy(bytesSent, 0, result.bytesSent, 0, size);
+    return result;
+  }
+
+  public int size() {
+    return methodIds.length;
+  }
+
+  /** Returns the full name of the method of a record, e.g., "my.package.Service/Method". */
+  public String fullMethodName(int row) {
+    int id = methodIds[row];
+    return id < methods.size() ? methods.get(id) : "unknown";
+  }
+
+  /** Returns the time at which the rpc of a record started, in nanoseconds since the epoch. */
+  public long startEpochNanos(int row) {
+    return startEpochNanos[row];
+  }
+
+  public long durationNanos(int row) {
+    return durationNanos[row];
+  }
+
+  public Status.Code code(int row) {
+    return Status.fromCodeValue(codes[row]).getCode();
+  }
+
+  public int messagesReceived(int row) {
+    return messagesReceived[row];
+  }
+
+  public int messagesSent(int row) {
+    return messagesSent[row];
+  }
+
+  /** Returns the bytes received on the wire for the rpc of a record, or 0 if unknown. */
+  public long bytesReceived(int row) {
+    return bytesReceived[row];
+  }
+
+  /** Returns the bytes sent on the wire for the rpc of a record, or 0 if unknown. */
+  public long bytesSent(int row) {
+    return bytesSent[row];
+  }
+}
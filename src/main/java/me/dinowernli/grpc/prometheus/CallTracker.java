@@ -0,0 +1,78 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Attributes;
+import io.grpc.Grpc;
+import java.net.SocketAddress;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of the details of a single rpc which a {@link SlowCallRecorder} or a {@link CallLog}
+ * need once the rpc is done. This is shared between the monitoring call and its listener.
+ */
+class CallTracker {
+  private final long startNanos;
+  private final Supplier<Attributes> callAttributes;
+  private final Optional<MonitoringServerStreamTracer> streamTracer;
+  private final AtomicInteger messagesReceived;
+  private final AtomicInteger messagesSent;
+
+  /**
+   * Creates a tracker for an rpc which is just starting. If the rpc has a stream tracer, it is used
+   * to look up the number of bytes transferred.
+   */
+  CallTracker(
+      Supplier<Attributes> callAttributes, Optional<MonitoringServerStreamTracer> streamTracer) {
+    this.startNanos = System.nanoTime();
+    this.callAttributes = callAttributes;
+    this.streamTracer = streamTracer;
+    this.messagesReceived = new AtomicInteger();
+    this.messagesSent = new AtomicInteger();
+  }
+
+  void onMessageReceived() {
+    messagesReceived.incrementAndGet();
+  }
+
+  void onMessageSent() {
+    messagesSent.incrementAndGet();
+  }
+
+  /** Returns the {@link System#nanoTime()} at which the rpc started. */
+  long startNanos() {
+    return startNanos;
+  }
+
+  long elapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  int messagesReceived() {
+    return messagesReceived.get();
+  }
+
+  int messagesSent() {
+    return messagesSent.get();
+  }
+
+  /** Returns the bytes received on the wire, or 0 if they are not known. */
+  long bytesReceived() {
+    return streamTracer.isPresent() ? streamTracer.get().inboundWireBytes() : 0;
+  }
+
+  /** Returns the bytes sent on the wire, or 0 if they are not known. */
+  long bytesSent() {
+    return streamTracer.isPresent() ? streamTracer.get().outboundWireBytes() : 0;
+  }
+
+  /** Returns the address of the other side of the rpc, as far as the transport knows it. */
+  Optional<SocketAddress> peer() {
+    Attributes attributes = callAttributes.get();
+    return attributes == null
+        ? Optional.empty()
+        : Optional.ofNullable(attributes.get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR));
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Measures how long the handler of a single rpc keeps working after the rpc got cancelled, i.e.,
+ * the time from the cancellation until the handler last sends a message or closes the rpc.
+ *
+ * <p>The cancellation is taken from the rpc's context, which grpc cancels right away, rather than
+ * from the listener, whose {@code onCancel} only runs once the callbacks in progress returned. The
+ * work is recorded once the handler closes the rpc. Handlers which never close the rpc are followed
+ * for a fixed window after the cancellation, after which their work so far is recorded.
+ */
+class CancellationTracker {
+  /** Ends the window of the rpcs whose handler did not close them. */
+  private static final ScheduledExecutorService WINDOW_TIMER =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "grpc-prometheus-cancellation-window");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final long windowNanos;
+  private final Consumer<CancellationTracker> recorder;
+  private final AtomicBoolean isFinished = new AtomicBoolean();
+  private volatile boolean isCancelled;
+  private volatile long cancelledNanos;
+  private volatile long lastWorkNanos;
+  private ScheduledFuture<?> windowEnd;
+
+  /**
+   * Creates a tracker which follows the handler for the given window after a cancellation, and
+   * hands itself to the supplied recorder once the work after the cancellation is known.
+   */
+  CancellationTracker(long windowNanos, Consumer<CancellationTracker> recorder) {
+    this.windowNanos = windowNanos;
+    this.recorder = recorder;
+  }
+
+  /** Called when the rpc gets cancelled. Only the first call has any effect. */
+  synchronized void onCancel() {
+    if (isCancelled) {
+      return;
+    }
+    cancelledNanos = System.nanoTime();
+    isCancelled = true;
+    if (!isFinished.get()) {
+      windowEnd = WINDOW_TIMER.schedule(this::finish, windowNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Returns whether the rpc has been cancelled. */
+  boolean isCancelled() {
+    return isCancelled;
+  }
+
+  /** Called after the handler sent a message. */
+  void onWork() {
+    if (isCancelled && !isFinished.get()) {
+      lastWorkNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Called when the handler closes the rpc, which is the last work it can do. There is nothing to
+   * record if the rpc gets closed before it is cancelled.
+   */
+  void onClose() {
+    onWork();
+    if (isCancelled) {
+      finish();
+    } else {
+      isFinished.set(true);
+    }
+  }
+
+  /**
+   * Returns the time from the cancellation until the handler last sent a message or closed the rpc,
+   * or zero if it did neither.
+   */
+  long workAfterCancelNanos() {
+    long workNanos = lastWorkNanos;
+    return workNanos == 0 ? 0 : Math.max(0, workNanos - cancelledNanos);
+  }
+
+  private void finish() {
+    if (!isFinished.compareAndSet(false, true)) {
+      return;
+    }
+    synchronized (this) {
+      if (windowEnd != null) {
+        windowEnd.cancel(false);
+      }
+    }
+    recorder.accept(this);
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import me.dinowernli.grpc.prometheus.MetricStorage.Family;
+import me.dinowernli.grpc.prometheus.MetricStorage.HistogramSeries;
+
+/**
+ * Measures the time the callbacks of a single rpc take to get from one chain marker to the other,
+ * i.e., the time spent in the interceptors between the markers. Callbacks travelling from the
+ * transport towards the application (inbound) and in the other direction (outbound) are timed
+ * separately, since they can happen concurrently. Callbacks in either direction are serialized,
+ * and a callback passes both markers on the same thread.
+ */
+class ChainTimer {
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final Family<HistogramSeries> chainSeconds;
+  private final GrpcMethod method;
+  private long inboundStartNanos;
+  private long outboundStartNanos;
+
+  ChainTimer(Family<HistogramSeries> chainSeconds, GrpcMethod method) {
+    this.chainSeconds = chainSeconds;
+    this.method = method;
+  }
+
+  /** Called when an inbound callback passes the first marker. */
+  void beginInbound() {
+    inboundStartNanos = System.nanoTime();
+  }
+
+  /** Called when an inbound callback passes the second marker. */
+  void endInbound(String callback) {
+    long startNanos = inboundStartNanos;
+    if (startNanos != 0) {
+      inboundStartNanos = 0;
+      record(callback, System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Called when an inbound callback returns to the first marker, so that a callback which an
+   * interceptor did not pass on is not attributed to the next one.
+   */
+  void clearInbound() {
+    inboundStartNanos = 0;
+  }
+
+  /** Called when an outbound callback passes the first marker. */
+  void beginOutbound() {
+    outboundStartNanos = System.nanoTime();
+  }
+
+  /** Called when an outbound callback passes the second marker. */
+  void endOutbound(String callback) {
+    long startNanos = outboundStartNanos;
+    if (startNanos != 0) {
+      outboundStartNanos = 0;
+      record(callback, System.nanoTime() - startNanos);
+    }
+  }
+
+  /** Like {@link #clearInbound()}, for outbound callbacks. */
+  void clearOutbound() {
+    outboundStartNanos = 0;
+  }
+
+  private void record(String callback, long nanos) {
+    chainSeconds
+        .labels(method.type(), method.serviceName(), method.methodName(), callback)
+        .observe(nanos / NANOS_PER_SECOND);
+  }
+}
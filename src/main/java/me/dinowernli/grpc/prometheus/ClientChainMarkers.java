@@ -0,0 +1,267 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.prometheus.client.Histogram;
+import java.util.Optional;
+import java.util.function.Supplier;
+import me.dinowernli.grpc.prometheus.MetricStorage.Family;
+import me.dinowernli.grpc.prometheus.MetricStorage.HistogramSeries;
+
+/**
+ * A pair of client interceptors which measure the time spent in the interceptors placed between
+ * them, e.g., for adding credentials or tracing. The head has to be called first and the tail last,
+ * which means that the head comes last when using {@code ClientInterceptors.intercept}:
+ *
+ * <pre>{@code
+ * ClientChainMarkers markers = ClientChainMarkers.create(configuration);
+ * ClientInterceptors.intercept(
+ *     channel, markers.tail(), monitoringInterceptor, credentialsInterceptor, markers.head());
+ * }</pre>
+ *
+ * <p>The time is recorded per method for creating, starting and sending on the call, which pass
+ * from the head to the tail, and for the callbacks of the listener, which pass from the tail to the
+ * head. Only the collector registry and views of the configuration are used.
+ */
+public class ClientChainMarkers {
+  private static final String[] labelNames = {
+    "grpc_type", "grpc_service", "grpc_method", "callback"
+  };
+
+  private static final Supplier<Histogram.Builder> clientInterceptorChainSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("interceptor_chain_seconds")
+              .exponentialBuckets(1e-6, 4, 12)
+              .help(
+                  "Histogram of the time (seconds) spent in the client interceptors between the "
+                      + "chain markers, per callback.");
+
+  /** The timer of the call being created on the current thread, set by the head for the tail. */
+  private static final ThreadLocal<ChainTimer> creatingCall = new ThreadLocal<>();
+
+  private final Family<HistogramSeries> chainSeconds;
+
+  /** Creates markers which record their metrics as configured. */
+  public static ClientChainMarkers create(Configuration configuration) {
+    MetricStorage storage =
+        MetricStorage.forClient(
+            configuration, Optional.empty(), new MetricStorage.Registrations());
+    return new ClientChainMarkers(
+        storage.histogram(
+            clientInterceptorChainSecondsBuilder,
+            labelNames,
+            configuration.getCollectorRegistry()));
+  }
+
+  private ClientChainMarkers(Family<HistogramSeries> chainSeconds) {
+    this.chainSeconds = chainSeconds;
+  }
+
+  /** Returns the interceptor to be called before the interceptors to measure. */
+  public ClientInterceptor head() {
+    return new Head();
+  }
+
+  /** Returns the interceptor to be called after the interceptors to measure. */
+  public ClientInterceptor tail() {
+    return new Tail();
+  }
+
+  private class Head implements ClientInterceptor {
+    @Override
+    public <R, S> ClientCall<R, S> interceptCall(
+        MethodDescriptor<R, S> methodDescriptor, CallOptions callOptions, Channel next) {
+      ChainTimer timer = new ChainTimer(chainSeconds, GrpcMethod.of(methodDescriptor));
+      ChainTimer previous = creatingCall.get();
+      creatingCall.set(timer);
+      timer.beginOutbound();
+      try {
+        return new HeadCall<>(next.newCall(methodDescriptor, callOptions), timer);
+      } finally {
+        timer.clearOutbound();
+        creatingCall.set(previous);
+      }
+    }
+  }
+
+  private static class Tail implements ClientInterceptor {
+    @Override
+    public <R, S> ClientCall<R, S> interceptCall(
+        MethodDescriptor<R, S> methodDescriptor, CallOptions callOptions, Channel next) {
+      ChainTimer timer = creatingCall.get();
+      if (timer == null) {
+        // No head, or the call was created on another thread than the head ran on.
+        return next.newCall(methodDescriptor, callOptions);
+      }
+      creatingCall.remove();
+      timer.endOutbound("new_call");
+      return new TailCall<>(next.newCall(methodDescriptor, callOptions), timer);
+    }
+  }
+
+  private static class HeadCall<R, S>
+      extends ForwardingClientCall.SimpleForwardingClientCall<R, S> {
+    private final ChainTimer timer;
+
+    private HeadCall(ClientCall<R, S> delegate, ChainTimer timer) {
+      super(delegate);
+      this.timer = timer;
+    }
+
+    @Override
+    public void start(Listener<S> responseListener, Metadata headers) {
+      timer.beginOutbound();
+      try {
+        super.start(new HeadListener<>(responseListener, timer), headers);
+      } finally {
+        timer.clearOutbound();
+      }
+    }
+
+    @Override
+    public void sendMessage(R message) {
+      timer.beginOutbound();
+      try {
+        super.sendMessage(message);
+      } finally {
+        timer.clearOutbound();
+      }
+    }
+
+    @Override
+    public void halfClose() {
+      timer.beginOutbound();
+      try {
+        super.halfClose();
+      } finally {
+        timer.clearOutbound();
+      }
+    }
+  }
+
+  private static class TailCall<R, S>
+      extends ForwardingClientCall.SimpleForwardingClientCall<R, S> {
+    private final ChainTimer timer;
+
+    private TailCall(ClientCall<R, S> delegate, ChainTimer timer) {
+      super(delegate);
+      this.timer = timer;
+    }
+
+    @Override
+    public void start(Listener<S> responseListener, Metadata headers) {
+      timer.endOutbound("start");
+      super.start(new TailListener<>(responseListener, timer), headers);
+    }
+
+    @Override
+    public void sendMessage(R message) {
+      timer.endOutbound("send_message");
+      super.sendMessage(message);
+    }
+
+    @Override
+    public void halfClose() {
+      timer.endOutbound("half_close");
+      super.halfClose();
+    }
+  }
+
+  /** The listener seen by the head, which is reached last by the callbacks. */
+  private static class HeadListener<S>
+      extends ForwardingClientCallListener.SimpleForwardingClientCallListener<S> {
+    private final ChainTimer timer;
+
+    private HeadListener(ClientCall.Listener<S> delegate, ChainTimer timer) {
+      super(delegate);
+      this.timer = timer;
+    }
+
+    @Override
+    public void onHeaders(Metadata headers) {
+      timer.endInbound("on_headers");
+      super.onHeaders(headers);
+    }
+
+    @Override
+    public void onMessage(S message) {
+      timer.endInbound("on_message");
+      super.onMessage(message);
+    }
+
+    @Override
+    public void onClose(Status status, Metadata trailers) {
+      timer.endInbound("on_close");
+      super.onClose(status, trailers);
+    }
+
+    @Override
+    public void onReady() {
+      timer.endInbound("on_ready");
+      super.onReady();
+    }
+  }
+
+  /** The listener seen by the tail, which is reached first by the callbacks. */
+  private static class TailListener<S>
+      extends ForwardingClientCallListener.SimpleForwardingClientCallListener<S> {
+    private final ChainTimer timer;
+
+    private TailListener(ClientCall.Listener<S> delegate, ChainTimer timer) {
+      super(delegate);
+      this.timer = timer;
+    }
+
+    @Override
+    public void onHeaders(Metadata headers) {
+      timer.beginInbound();
+      try {
+        super.onHeaders(headers);
+      } finally {
+        timer.clearInbound();
+      }
+    }
+
+    @Override
+    public void onMessage(S message) {
+      timer.beginInbound();
+      try {
+        super.onMessage(message);
+      } finally {
+        timer.clearInbound();
+      }
+    }
+
+    @Override
+    public void onClose(Status status, Metadata trailers) {
+      timer.beginInbound();
+      try {
+        super.onClose(status, trailers);
+      } finally {
+        timer.clearInbound();
+      }
+    }
+
+    @Override
+    public void onReady() {
+      timer.beginInbound();
+      try {
+        super.onReady();
+      } finally {
+        timer.clearInbound();
+      }
+    }
+  }
+}
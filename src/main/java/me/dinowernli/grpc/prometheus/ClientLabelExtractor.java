@@ -0,0 +1,43 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.CallOptions;
+import io.grpc.Metadata;
+import java.util.function.Function;
+
+/**
+ * Extracts the value of a custom label for an rpc started by the client. Install extractors using
+ * {@link Configuration#withClientLabel(String, ClientLabelExtractor)}.
+ *
+ * <p>Extractors are called once per rpc, when the rpc is started.
+ */
+@FunctionalInterface
+public interface ClientLabelExtractor {
+  /** Returns the label value for an rpc, or "" if there is none. */
+  String extract(Metadata headers, CallOptions callOptions);
+
+  /**
+   * Returns an extractor which passes the values of this one through the supplied normalizer.
+   * Results are cached for a bounded number of distinct values, so the normalizer should be a pure
+   * function.
+   */
+  default ClientLabelExtractor normalized(Function<String, String> normalizer) {
+    MemoizedNormalizer memoized = new MemoizedNormalizer(normalizer);
+    return (headers, callOptions) -> memoized.apply(extract(headers, callOptions));
+  }
+
+  /** Returns an extractor for the value of a request header. */
+  static ClientLabelExtractor header(String headerName) {
+    HeaderLabel header = new HeaderLabel(headerName);
+    return (headers, callOptions) -> header.value(headers);
+  }
+
+  /** Returns an extractor for the string form of a call option of the rpc. */
+  static ClientLabelExtractor callOption(CallOptions.Key<?> key) {
+    return (headers, callOptions) -> {
+      Object value = callOptions.getOption(key);
+      return value == null ? "" : value.toString();
+    };
+  }
+}
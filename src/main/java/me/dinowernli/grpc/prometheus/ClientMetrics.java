@@ -4,110 +4,278 @@ package me.dinowernli.grpc.prometheus;
 
 import static me.dinowernli.grpc.prometheus.Labels.addLabels;
 import static me.dinowernli.grpc.prometheus.Labels.asArray;
-import static me.dinowernli.grpc.prometheus.Labels.customLabels;
-import static me.dinowernli.grpc.prometheus.Labels.metadataKeys;
 
+import io.grpc.CallOptions;
 import io.grpc.Metadata;
-import io.grpc.Metadata.Key;
 import io.grpc.Status.Code;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Histogram;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
+import me.dinowernli.grpc.prometheus.MetricStorage.CounterSeries;
+import me.dinowernli.grpc.prometheus.MetricStorage.Family;
+import me.dinowernli.grpc.prometheus.MetricStorage.HistogramSeries;
 
 /** Prometheus metric definitions used for client-side monitoring of grpc services. */
 class ClientMetrics {
+  private static final double NANOS_PER_SECOND = 1e9;
+
   private static final List<String> defaultRequestLabels =
       Arrays.asList("grpc_type", "grpc_service", "grpc_method");
 
   private static final List<String> defaultResponseLabels =
       Arrays.asList("grpc_type", "grpc_service", "grpc_method", "code", "grpc_code");
 
-  private static final Counter.Builder rpcStartedBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("client")
-          .name("started")
-          .help("Total number of RPCs started on the client.");
-
-  private static final Counter.Builder rpcCompletedBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("client")
-          .name("completed")
-          // TODO: The "code" label should be deprecated in a future major release. (See also below
-          // in recordClientHandled().)
-          .help("Total number of RPCs completed on the client, regardless of success or failure.");
-
-  private static final Histogram.Builder completedLatencySecondsBuilder =
-      Histogram.build()
-          .namespace("grpc")
-          .subsystem("client")
-          .name("completed_latency_seconds")
-          .help("Histogram of rpc response latency (in seconds) for completed rpcs.");
-
-  private static final Counter.Builder streamMessagesReceivedBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("client")
-          .name("msg_received")
-          .help("Total number of stream messages received from the server.");
-
-  private static final Counter.Builder streamMessagesSentBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("client")
-          .name("msg_sent")
-          .help("Total number of stream messages sent by the client.");
-
-  private final List<Key<String>> labelHeaderKeys;
-  private final Counter rpcStarted;
-  private final Counter rpcCompleted;
-  private final Counter streamMessagesReceived;
-  private final Counter streamMessagesSent;
-  private final Optional<Histogram> completedLatencySeconds;
+  private static final Supplier<Counter.Builder> rpcStartedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("started")
+              .help("Total number of RPCs started on the client.");
+
+  private static final Supplier<Counter.Builder> rpcCompletedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("completed")
+              // TODO: The "code" label should be deprecated in a future major release. (See also
+              // below in recordClientHandled().)
+              .help(
+                  "Total number of RPCs completed on the client, regardless of success or "
+                      + "failure.");
+
+  private static final Supplier<Histogram.Builder> completedLatencySecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("completed_latency_seconds")
+              .help("Histogram of rpc response latency (in seconds) for completed rpcs.");
+
+  private static final Supplier<Counter.Builder> streamMessagesReceivedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("msg_received")
+              .help("Total number of stream messages received from the server.");
+
+  private static final Supplier<Counter.Builder> streamMessagesSentBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("msg_sent")
+              .help("Total number of stream messages sent by the client.");
+
+  private static final Supplier<Histogram.Builder> notReadySecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("not_ready_seconds")
+              .help(
+                  "Histogram of the time (seconds) rpcs spent with their stream not ready to "
+                      + "accept messages.");
+
+  private static final Supplier<Counter.Builder> notReadyTransitionsBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("not_ready_transitions")
+              .help("Total number of times a stream was observed going from ready to not ready.");
+
+  private static final Supplier<Counter.Builder> streamMessagesBufferedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("msg_buffered")
+              .help("Total number of messages sent by the client while the stream was not ready.");
+
+  private static final Supplier<Counter.Builder> attemptsStartedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("attempts")
+              .help(
+                  "Total number of attempts started on the client, including retries and hedges.");
+
+  private static final Supplier<Counter.Builder> transparentRetriesBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("transparent_retries")
+              .help("Total number of attempts which were transparent retries done by grpc.");
+
+  private static final Supplier<Histogram.Builder> attemptLatencySecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("attempt_latency_seconds")
+              .help("Histogram of the latency (seconds) of individual attempts of rpcs.");
+
+  private static final Supplier<Histogram.Builder> attemptsPerCallBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("attempts_per_call")
+              .help("Histogram of the number of attempts made for completed rpcs.");
+
+  private static final double[] attemptsPerCallBuckets = {1, 2, 3, 4, 5};
+
+  private static final Supplier<Histogram.Builder> pendingSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("pending_seconds")
+              .help(
+                  "Histogram of the time (seconds) rpcs spent between being started and getting a "
+                      + "stream on a transport.");
+
+  private static final Supplier<Counter.Builder> completedWithoutStreamBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("completed_without_stream")
+              .help("Total number of RPCs completed on the client without ever getting a stream.");
+
+  private static final Supplier<Histogram.Builder> msgHandlerSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("msg_handler_seconds")
+              .exponentialBuckets(1e-5, 4, 10)
+              .help(
+                  "Histogram of the time (seconds) spent in the listener handling sampled messages "
+                      + "received from the server.");
+
+  private static final Supplier<Counter.Builder> latencyThresholdBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("client")
+              .name("latency_threshold")
+              .help(
+                  "Total number of RPCs completed on the client within (good) or slower than "
+                      + "(slow) each latency threshold (seconds).");
+
+  private final List<HeaderLabel> labelHeaders;
+  private final List<ClientLabelExtractor> labelExtractors;
+  private final CallOptions callOptions;
+  private final Family<CounterSeries> rpcStarted;
+  private final Family<CounterSeries> rpcCompleted;
+  private final Family<CounterSeries> streamMessagesReceived;
+  private final Family<CounterSeries> streamMessagesSent;
+  private final Optional<Family<HistogramSeries>> completedLatencySeconds;
+  private final Optional<Family<HistogramSeries>> notReadySeconds;
+  private final Optional<Family<CounterSeries>> notReadyTransitions;
+  private final Optional<Family<CounterSeries>> streamMessagesBuffered;
+  private final Optional<Family<CounterSeries>> attemptsStarted;
+  private final Optional<Family<CounterSeries>> transparentRetries;
+  private final Optional<Family<HistogramSeries>> attemptLatencySeconds;
+  private final Optional<Family<HistogramSeries>> attemptsPerCall;
+  private final Optional<Family<HistogramSeries>> pendingSeconds;
+  private final Optional<Family<CounterSeries>> completedWithoutStream;
+  private final Optional<LatencyThresholds.Series> latencyThreshold;
+  private final Optional<Family<HistogramSeries>> msgHandlerSeconds;
+  private final double messageHandlerSamplingRate;
 
   private final GrpcMethod method;
+  private final SelfMetrics.Overhead overhead;
+
+  /** The values of the custom labels of the rpc, extracted when first needed. */
+  private volatile List<String> customLabels;
 
   private ClientMetrics(
-      List<Key<String>> labelHeaderKeys,
+      List<HeaderLabel> labelHeaders,
+      List<ClientLabelExtractor> labelExtractors,
+      CallOptions callOptions,
       GrpcMethod method,
-      Counter rpcStarted,
-      Counter rpcCompleted,
-      Counter streamMessagesReceived,
-      Counter streamMessagesSent,
-      Optional<Histogram> completedLatencySeconds) {
-    this.labelHeaderKeys = labelHeaderKeys;
+      SelfMetrics.Overhead overhead,
+      Family<CounterSeries> rpcStarted,
+      Family<CounterSeries> rpcCompleted,
+      Family<CounterSeries> streamMessagesReceived,
+      Family<CounterSeries> streamMessagesSent,
+      Optional<Family<HistogramSeries>> completedLatencySeconds,
+      Optional<Family<HistogramSeries>> notReadySeconds,
+      Optional<Family<CounterSeries>> notReadyTransitions,
+      Optional<Family<CounterSeries>> streamMessagesBuffered,
+      Optional<Family<CounterSeries>> attemptsStarted,
+      Optional<Family<CounterSeries>> transparentRetries,
+      Optional<Family<HistogramSeries>> attemptLatencySeconds,
+      Optional<Family<HistogramSeries>> attemptsPerCall,
+      Optional<Family<HistogramSeries>> pendingSeconds,
+      Optional<Family<CounterSeries>> completedWithoutStream,
+      Optional<LatencyThresholds.Series> latencyThreshold,
+      Optional<Family<HistogramSeries>> msgHandlerSeconds,
+      double messageHandlerSamplingRate) {
+    this.labelHeaders = labelHeaders;
+    this.labelExtractors = labelExtractors;
+    this.callOptions = callOptions;
     this.method = method;
+    this.overhead = overhead;
     this.rpcStarted = rpcStarted;
     this.rpcCompleted = rpcCompleted;
     this.streamMessagesReceived = streamMessagesReceived;
     this.streamMessagesSent = streamMessagesSent;
     this.completedLatencySeconds = completedLatencySeconds;
+    this.notReadySeconds = notReadySeconds;
+    this.notReadyTransitions = notReadyTransitions;
+    this.streamMessagesBuffered = streamMessagesBuffered;
+    this.attemptsStarted = attemptsStarted;
+    this.transparentRetries = transparentRetries;
+    this.attemptLatencySeconds = attemptLatencySeconds;
+    this.attemptsPerCall = attemptsPerCall;
+    this.pendingSeconds = pendingSeconds;
+    this.completedWithoutStream = completedWithoutStream;
+    this.latencyThreshold = latencyThreshold;
+    this.msgHandlerSeconds = msgHandlerSeconds;
+    this.messageHandlerSamplingRate = messageHandlerSamplingRate;
   }
 
   public void recordCallStarted(Metadata metadata) {
-    addLabels(rpcStarted, customLabels(metadata, labelHeaderKeys), method).inc();
+    long startNanos = overhead.start();
+    addLabels(rpcStarted, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   public void recordClientHandled(Code code, Metadata metadata) {
     // TODO: The "code" label should be deprecated in a future major release.
+    long startNanos = overhead.start();
     List<String> allLabels = new ArrayList<>();
     allLabels.add(code.toString());
     allLabels.add(code.toString());
-    allLabels.addAll(customLabels(metadata, labelHeaderKeys));
+    allLabels.addAll(customLabels(metadata));
     addLabels(rpcCompleted, allLabels, method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   public void recordStreamMessageSent(Metadata metadata) {
-    addLabels(streamMessagesSent, customLabels(metadata, labelHeaderKeys), method).inc();
+    long startNanos = overhead.start();
+    addLabels(streamMessagesSent, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   public void recordStreamMessageReceived(Metadata metadata) {
-    addLabels(streamMessagesReceived, customLabels(metadata, labelHeaderKeys), method).inc();
+    long startNanos = overhead.start();
+    addLabels(streamMessagesReceived, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   /**
@@ -118,62 +286,356 @@ class ClientMetrics {
     if (!completedLatencySeconds.isPresent()) {
       return;
     }
-    addLabels(completedLatencySeconds.get(), customLabels(metadata, labelHeaderKeys), method)
-        .observe(latencySec);
+    long startNanos = overhead.start();
+    addLabels(completedLatencySeconds.get(), customLabels(metadata), method).observe(latencySec);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include latency thresholds. Otherwise, this
+   * does nothing.
+   */
+  public void recordLatencyThresholds(double latencySec, Code code) {
+    if (!latencyThreshold.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    latencyThreshold.get().record(latencySec, code);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Returns the timer for the {@code onMessage} callbacks of an rpc with the supplied metadata,
+   * which times a sample of them if message handler metrics are included.
+   */
+  public SampledTimer messageHandlerTimer(Metadata metadata) {
+    return msgHandlerSeconds.isPresent()
+        ? new SampledTimer(
+            messageHandlerSamplingRate,
+            handlerSec -> recordMessageHandlerTime(handlerSec, metadata))
+        : SampledTimer.NONE;
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include message handler metrics.
+   * Otherwise, this does nothing.
+   */
+  public void recordMessageHandlerTime(double handlerSec, Metadata metadata) {
+    if (!msgHandlerSeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    addLabels(msgHandlerSeconds.get(), customLabels(metadata), method).observe(handlerSec);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include flow control metrics. Otherwise,
+   * this does nothing.
+   */
+  public void recordFlowControl(FlowControlTracker tracker, Metadata metadata) {
+    if (!notReadySeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> labels = customLabels(metadata);
+    addLabels(notReadySeconds.get(), labels, method)
+        .observe(tracker.notReadyNanos() / NANOS_PER_SECOND);
+    if (tracker.notReadyTransitions() > 0) {
+      addLabels(notReadyTransitions.get(), labels, method).inc(tracker.notReadyTransitions());
+    }
+    if (tracker.bufferedMessages() > 0) {
+      addLabels(streamMessagesBuffered.get(), labels, method).inc(tracker.bufferedMessages());
+    }
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include attempt metrics. Otherwise, this
+   * does nothing.
+   */
+  public void recordAttemptStarted(boolean isTransparentRetry, Metadata metadata) {
+    if (!attemptsStarted.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> labels = customLabels(metadata);
+    addLabels(attemptsStarted.get(), labels, method).inc();
+    if (isTransparentRetry) {
+      addLabels(transparentRetries.get(), labels, method).inc();
+    }
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include attempt metrics. Otherwise, this
+   * does nothing.
+   */
+  public void recordAttemptLatency(double latencySec, Code code, Metadata metadata) {
+    if (!attemptLatencySeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> allLabels = new ArrayList<>(customLabels(metadata));
+    allLabels.add(code.toString());
+    addLabels(attemptLatencySeconds.get(), allLabels, method).observe(latencySec);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include attempt metrics. Otherwise, this
+   * does nothing.
+   */
+  public void recordAttemptsPerCall(int attempts, Metadata metadata) {
+    if (!attemptsPerCall.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    addLabels(attemptsPerCall.get(), customLabels(metadata), method).observe(attempts);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include pending metrics. Otherwise, this
+   * does nothing.
+   */
+  public void recordPendingTime(double pendingSec, Metadata metadata) {
+    if (!pendingSeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    addLabels(pendingSeconds.get(), customLabels(metadata), method).observe(pendingSec);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include pending metrics. Otherwise, this
+   * does nothing.
+   */
+  public void recordCompletedWithoutStream(Code code, Metadata metadata) {
+    if (!completedWithoutStream.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> allLabels = new ArrayList<>();
+    allLabels.add(code.toString());
+    allLabels.addAll(customLabels(metadata));
+    addLabels(completedWithoutStream.get(), allLabels, method).inc();
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Returns the values of the labels for headers, followed by the values of the labels computed by
+   * extractors. These are only computed once per rpc.
+   */
+  private List<String> customLabels(Metadata metadata) {
+    List<String> result = customLabels;
+    if (result == null) {
+      List<String> labels = new ArrayList<>(Labels.customLabels(metadata, labelHeaders));
+      for (ClientLabelExtractor extractor : labelExtractors) {
+        labels.add(extractor.extract(metadata, callOptions));
+      }
+      result = Collections.unmodifiableList(labels);
+      customLabels = result;
+    }
+    return result;
   }
 
   /** Knows how to produce {@link ClientMetrics} instances for individual methods. */
   static class Factory {
-    private final List<Key<String>> labelHeaderKeys;
-    private final Counter rpcStarted;
-    private final Counter rpcCompleted;
-    private final Counter streamMessagesReceived;
-    private final Counter streamMessagesSent;
-    private final Optional<Histogram> completedLatencySeconds;
-
-    Factory(Configuration configuration) {
+    private final List<HeaderLabel> labelHeaders;
+    private final List<ClientLabelExtractor> labelExtractors;
+    private final Family<CounterSeries> rpcStarted;
+    private final Family<CounterSeries> rpcCompleted;
+    private final Family<CounterSeries> streamMessagesReceived;
+    private final Family<CounterSeries> streamMessagesSent;
+    private final Optional<Family<HistogramSeries>> completedLatencySeconds;
+    private final Optional<Family<HistogramSeries>> notReadySeconds;
+    private final Optional<Family<CounterSeries>> notReadyTransitions;
+    private final Optional<Family<CounterSeries>> streamMessagesBuffered;
+    private final Optional<Family<CounterSeries>> attemptsStarted;
+    private final Optional<Family<CounterSeries>> transparentRetries;
+    private final Optional<Family<HistogramSeries>> attemptLatencySeconds;
+    private final Optional<Family<HistogramSeries>> attemptsPerCall;
+    private final Optional<Family<HistogramSeries>> pendingSeconds;
+    private final Optional<Family<CounterSeries>> completedWithoutStream;
+    private final Optional<LatencyThresholds> latencyThreshold;
+    private final Optional<Family<HistogramSeries>> msgHandlerSeconds;
+    private final double messageHandlerSamplingRate;
+    private final Optional<SelfMetrics> selfMetrics;
+    private final Configuration configuration;
+
+    /**
+     * Creates the metrics for the supplied configuration, registering those which are not yet
+     * registered with the supplied registrations.
+     */
+    Factory(Configuration configuration, MetricStorage.Registrations registrations) {
       CollectorRegistry registry = configuration.getCollectorRegistry();
-      this.labelHeaderKeys = metadataKeys(configuration.getLabelHeaders());
-      this.rpcStarted =
-          rpcStartedBuilder
-              .labelNames(asArray(defaultRequestLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
+      this.configuration = configuration;
+      this.selfMetrics =
+          configuration.isIncludeSelfMetrics()
+              ? Optional.of(registrations.selfMetrics(configuration, "client"))
+              : Optional.empty();
+      MetricStorage storage = MetricStorage.forClient(configuration, selfMetrics, registrations);
+      List<String> customLabelNames = new ArrayList<>(configuration.getSanitizedLabelHeaders());
+      customLabelNames.addAll(configuration.getClientLabels().keySet());
+      String[] requestLabels = asArray(defaultRequestLabels, customLabelNames);
+      this.labelHeaders = HeaderLabel.forHeaders(configuration.getLabelHeaders());
+      this.labelExtractors = new ArrayList<>(configuration.getClientLabels().values());
+      this.rpcStarted = storage.counter(rpcStartedBuilder, requestLabels, registry);
       this.rpcCompleted =
-          rpcCompletedBuilder
-              .labelNames(asArray(defaultResponseLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
+          storage.counter(
+              rpcCompletedBuilder, asArray(defaultResponseLabels, customLabelNames), registry);
       this.streamMessagesReceived =
-          streamMessagesReceivedBuilder
-              .labelNames(asArray(defaultRequestLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
-      this.streamMessagesSent =
-          streamMessagesSentBuilder
-              .labelNames(asArray(defaultRequestLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
+          storage.counter(streamMessagesReceivedBuilder, requestLabels, registry);
+      this.streamMessagesSent = storage.counter(streamMessagesSentBuilder, requestLabels, registry);
 
       if (configuration.isIncludeLatencyHistograms()) {
         this.completedLatencySeconds =
             Optional.of(
-                ClientMetrics.completedLatencySecondsBuilder
-                    .buckets(configuration.getLatencyBuckets())
-                    .labelNames(
-                        asArray(defaultRequestLabels, configuration.getSanitizedLabelHeaders()))
-                    .register(registry));
+                storage.histogram(
+                    completedLatencySecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    requestLabels,
+                    registry));
       } else {
         this.completedLatencySeconds = Optional.empty();
       }
+
+      if (configuration.isIncludeFlowControlMetrics()) {
+        this.notReadySeconds =
+            Optional.of(
+                storage.histogram(
+                    notReadySecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    requestLabels,
+                    registry));
+        this.notReadyTransitions =
+            Optional.of(storage.counter(notReadyTransitionsBuilder, requestLabels, registry));
+        this.streamMessagesBuffered =
+            Optional.of(storage.counter(streamMessagesBufferedBuilder, requestLabels, registry));
+      } else {
+        this.notReadySeconds = Optional.empty();
+        this.notReadyTransitions = Optional.empty();
+        this.streamMessagesBuffered = Optional.empty();
+      }
+
+      if (configuration.isIncludeAttemptMetrics()) {
+        List<String> attemptLatencyLabels = new ArrayList<>(defaultRequestLabels);
+        attemptLatencyLabels.addAll(customLabelNames);
+        attemptLatencyLabels.add("grpc_code");
+
+        this.attemptsStarted =
+            Optional.of(storage.counter(attemptsStartedBuilder, requestLabels, registry));
+        this.transparentRetries =
+            Optional.of(storage.counter(transparentRetriesBuilder, requestLabels, registry));
+        this.attemptLatencySeconds =
+            Optional.of(
+                storage.histogram(
+                    attemptLatencySecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    attemptLatencyLabels.toArray(new String[0]),
+                    registry));
+        this.attemptsPerCall =
+            Optional.of(
+                storage.histogram(
+                    attemptsPerCallBuilder,
+                    attemptsPerCallBuckets,
+                    requestLabels,
+                    registry));
+      } else {
+        this.attemptsStarted = Optional.empty();
+        this.transparentRetries = Optional.empty();
+        this.attemptLatencySeconds = Optional.empty();
+        this.attemptsPerCall = Optional.empty();
+      }
+
+      if (configuration.isIncludePendingMetrics()) {
+        this.pendingSeconds =
+            Optional.of(
+                storage.histogram(
+                    pendingSecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    requestLabels,
+                    registry));
+        this.completedWithoutStream =
+            Optional.of(
+                storage.counter(
+                    completedWithoutStreamBuilder,
+                    asArray(
+                        Arrays.asList("grpc_type", "grpc_service", "grpc_method", "grpc_code"),
+                        customLabelNames),
+                    registry));
+      } else {
+        this.pendingSeconds = Optional.empty();
+        this.completedWithoutStream = Optional.empty();
+      }
+
+      if (configuration.isIncludeLatencyThresholds()) {
+        this.latencyThreshold =
+            Optional.of(
+                new LatencyThresholds(
+                    latencyThresholdBuilder,
+                    configuration.getLatencyThresholds(),
+                    storage,
+                    registry));
+      } else {
+        this.latencyThreshold = Optional.empty();
+      }
+
+      this.messageHandlerSamplingRate = configuration.getMessageHandlerSamplingRate();
+      if (configuration.isIncludeMessageHandlerMetrics()) {
+        this.msgHandlerSeconds =
+            Optional.of(storage.histogram(msgHandlerSecondsBuilder, requestLabels, registry));
+      } else {
+        this.msgHandlerSeconds = Optional.empty();
+      }
+    }
+
+    /** Returns the configuration which the metrics were created for. */
+    Configuration configuration() {
+      return configuration;
+    }
+
+    /**
+     * Returns the object measuring the overhead of monitoring a new rpc, which does nothing unless
+     * self metrics are enabled and the rpc is sampled.
+     */
+    SelfMetrics.Overhead overheadForCall() {
+      return selfMetrics.isPresent()
+          ? selfMetrics.get().overheadForCall()
+          : SelfMetrics.Overhead.NONE;
     }
 
-    /** Creates a {@link ClientMetrics} for the supplied gRPC method. */
-    ClientMetrics createMetricsForMethod(GrpcMethod grpcMethod) {
+    /**
+     * Creates a {@link ClientMetrics} for an rpc of the supplied gRPC method and call options,
+     * whose recording time is measured by the supplied overhead.
+     */
+    ClientMetrics createMetricsForMethod(
+        GrpcMethod grpcMethod, CallOptions callOptions, SelfMetrics.Overhead overhead) {
       return new ClientMetrics(
-          labelHeaderKeys,
+          labelHeaders,
+          labelExtractors,
+          callOptions,
           grpcMethod,
+          overhead,
           rpcStarted,
           rpcCompleted,
           streamMessagesReceived,
           streamMessagesSent,
-          completedLatencySeconds);
+          completedLatencySeconds,
+          notReadySeconds,
+          notReadyTransitions,
+          streamMessagesBuffered,
+          attemptsStarted,
+          transparentRetries,
+          attemptLatencySeconds,
+          attemptsPerCall,
+          pendingSeconds,
+          completedWithoutStream,
+          latencyThreshold.map(thresholds -> thresholds.forMethod(grpcMethod)),
+          msgHandlerSeconds,
+          messageHandlerSamplingRate);
     }
   }
 }
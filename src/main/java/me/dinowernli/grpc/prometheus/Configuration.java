@@ -3,8 +3,14 @@
 package me.dinowernli.grpc.prometheus;
 
 import io.prometheus.client.CollectorRegistry;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
@@ -20,15 +26,27 @@ public class Configuration {
   private final double[] latencyBuckets;
   private final List<String> labelHeaders;
   private final boolean isAddCodeLabelToHistograms;
+  private final boolean isIncludeFlowControlMetrics;
+  private final boolean isIncludeAttemptMetrics;
+  private final boolean isIncludePendingMetrics;
+  private final double cpuTimeSamplingRate;
+  private final double allocationSamplingRate;
+  private final Optional<SlowCallRecorder> slowCallRecorder;
+  private final boolean isIncludeFlightRecorderEvents;
+  private final Optional<CallLog> callLog;
+  private final boolean isUseOffHeapStorage;
+  private final Map<String, ServerLabelExtractor> serverLabels;
+  private final Map<String, ClientLabelExtractor> clientLabels;
+  private final double selfMetricsSamplingRate;
+  private final List<MetricView> views;
+  private final double[] latencyThresholds;
+  private final boolean isIncludePhaseMetrics;
+  private final double messageHandlerSamplingRate;
+  private final Optional<Duration> cancellationWindow;
 
   /** Returns a {@link Configuration} for recording all cheap metrics about the rpcs. */
   public static Configuration cheapMetricsOnly() {
-    return new Configuration(
-        false /* isIncludeLatencyHistograms */,
-        CollectorRegistry.defaultRegistry,
-        DEFAULT_LATENCY_BUCKETS,
-        new ArrayList<>(),
-        false /* isAddCodeLabelToHistograms */);
+    return new Builder().build();
   }
 
   /**
@@ -36,12 +54,9 @@ public class Configuration {
    * which might produce a lot of data, such as latency histograms.
    */
   public static Configuration allMetrics() {
-    return new Configuration(
-        true /* isIncludeLatencyHistograms */,
-        CollectorRegistry.defaultRegistry,
-        DEFAULT_LATENCY_BUCKETS,
-        new ArrayList<>(),
-        false);
+    Builder builder = new Builder();
+    builder.isIncludeLatencyHistograms = true;
+    return builder.build();
   }
 
   /**
@@ -49,12 +64,29 @@ public class Configuration {
    * using the supplied {@link CollectorRegistry}.
    */
   public Configuration withCollectorRegistry(CollectorRegistry collectorRegistry) {
-    return new Configuration(
-        isIncludeLatencyHistograms,
-        collectorRegistry,
-        latencyBuckets,
-        labelHeaders,
-        isAddCodeLabelToHistograms);
+    Builder builder = toBuilder();
+    builder.collectorRegistry = collectorRegistry;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that latency histograms are recorded,
+   * as they are by {@link #allMetrics()}.
+   */
+  public Configuration withLatencyHistograms() {
+    Builder builder = toBuilder();
+    builder.isIncludeLatencyHistograms = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that no latency histograms are
+   * recorded.
+   */
+  public Configuration withoutLatencyHistograms() {
+    Builder builder = toBuilder();
+    builder.isIncludeLatencyHistograms = false;
+    return builder.build();
   }
 
   /**
@@ -62,12 +94,9 @@ public class Configuration {
    * recorded with the specified set of buckets.
    */
   public Configuration withLatencyBuckets(double[] buckets) {
-    return new Configuration(
-        isIncludeLatencyHistograms,
-        collectorRegistry,
-        buckets,
-        labelHeaders,
-        isAddCodeLabelToHistograms);
+    Builder builder = toBuilder();
+    builder.latencyBuckets = buckets;
+    return builder.build();
   }
 
   /**
@@ -88,12 +117,18 @@ public class Configuration {
   public Configuration withLabelHeaders(List<String> headers) {
     List<String> newHeaders = new ArrayList<>(labelHeaders);
     newHeaders.addAll(headers);
-    return new Configuration(
-        isIncludeLatencyHistograms,
-        collectorRegistry,
-        latencyBuckets,
-        newHeaders,
-        isAddCodeLabelToHistograms);
+    Builder builder = toBuilder();
+    builder.labelHeaders = newHeaders;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that no headers are used as labels.
+   */
+  public Configuration withoutLabelHeaders() {
+    Builder builder = toBuilder();
+    builder.labelHeaders = new ArrayList<>();
+    return builder.build();
   }
 
   /**
@@ -104,12 +139,291 @@ public class Configuration {
    * and load on prometheus (storage and memory usage, query-time complexity)
    */
   public Configuration withCodeLabelInLatencyHistogram() {
-    return new Configuration(
-        isIncludeLatencyHistograms,
-        collectorRegistry,
-        latencyBuckets,
-        labelHeaders,
-        true /* isAddCodeLabelToHistograms */);
+    Builder builder = toBuilder();
+    builder.isAddCodeLabelToHistograms = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that latency histograms have no status
+   * code label.
+   */
+  public Configuration withoutCodeLabelInLatencyHistogram() {
+    Builder builder = toBuilder();
+    builder.isAddCodeLabelToHistograms = false;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that flow control metrics are
+   * recorded, i.e., how long the stream of each rpc was not ready, how often it went from ready to
+   * not ready and how many messages were sent, and hence buffered, while it was not ready. Since
+   * gRPC has no callback for a stream becoming not ready, this is sampled when sending and when the
+   * application calls {@code isReady()}.
+   */
+  public Configuration withFlowControlMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludeFlowControlMetrics = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that no flow control metrics are
+   * recorded.
+   */
+  public Configuration withoutFlowControlMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludeFlowControlMetrics = false;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the client interceptor records
+   * metrics about the individual attempts of each rpc, i.e., how many attempts were made, how long
+   * each of them took and how many were transparent retries. This only has an effect on the client.
+   */
+  public Configuration withAttemptMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludeAttemptMetrics = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that no metrics about the attempts of
+   * rpcs are recorded.
+   */
+  public Configuration withoutAttemptMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludeAttemptMetrics = false;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the client interceptor records
+   * how long each rpc was pending before it got a stream on a transport, e.g., while waiting for
+   * name resolution, a load balancing pick or a ready connection. Rpcs which complete without ever
+   * getting a stream are counted separately. This only has an effect on the client.
+   */
+  public Configuration withPendingMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludePendingMetrics = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the pending time of rpcs is not
+   * recorded.
+   */
+  public Configuration withoutPendingMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludePendingMetrics = false;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the server interceptor measures
+   * the CPU time its threads spend in the callbacks of each rpc, i.e., receiving messages, sending
+   * messages and running the handler. Measuring is done for the given fraction of rpcs, which must
+   * be in [0, 1], in order to keep the overhead low. A fraction of 0 turns the measuring off. This
+   * only has an effect on the server, and only if the JVM supports measuring thread CPU time.
+   */
+  public Configuration withCpuTimeMetrics(double samplingRate) {
+    checkSamplingRate(samplingRate);
+    Builder builder = toBuilder();
+    builder.cpuTimeSamplingRate = samplingRate;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the server interceptor measures
+   * the heap memory its threads allocate in the callbacks of each rpc. Measuring is done for the
+   * given fraction of rpcs, which must be in [0, 1], where 0 turns the measuring off. This only has
+   * an effect on the server, and only if the JVM supports measuring allocations per thread.
+   */
+  public Configuration withAllocationMetrics(double samplingRate) {
+    checkSamplingRate(samplingRate);
+    Builder builder = toBuilder();
+    builder.allocationSamplingRate = samplingRate;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the slowest recent rpcs of each
+   * method are kept in the supplied {@link SlowCallRecorder}.
+   */
+  public Configuration withSlowCallRecorder(SlowCallRecorder slowCallRecorder) {
+    Builder builder = toBuilder();
+    builder.slowCallRecorder = Optional.of(slowCallRecorder);
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that Java Flight Recorder events are
+   * emitted for rpcs, their messages and cancellations. Events are only written if a recording has
+   * enabled them.
+   */
+  public Configuration withFlightRecorderEvents() {
+    Builder builder = toBuilder();
+    builder.isIncludeFlightRecorderEvents = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that no Java Flight Recorder events
+   * are emitted.
+   */
+  public Configuration withoutFlightRecorderEvents() {
+    Builder builder = toBuilder();
+    builder.isIncludeFlightRecorderEvents = false;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the server interceptor appends a
+   * record for every rpc to the supplied {@link CallLog}. This only has an effect on the server.
+   */
+  public Configuration withCallLog(CallLog callLog) {
+    Builder builder = toBuilder();
+    builder.callLog = Optional.of(callLog);
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the server keeps the values of
+   * its counters and histograms in off-heap memory instead of in simpleclient's objects. This
+   * reduces the heap used per series, which matters if header labels produce many series.
+   */
+  public Configuration withOffHeapStorage() {
+    Builder builder = toBuilder();
+    builder.isUseOffHeapStorage = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that server metrics get an additional
+   * label with the supplied name, whose value is computed by the supplied extractor once per rpc.
+   * The label comes after the labels for headers, and labels added earlier.
+   */
+  public Configuration withServerLabel(String labelName, ServerLabelExtractor extractor) {
+    Builder builder = toBuilder();
+    builder.serverLabels = new LinkedHashMap<>(serverLabels);
+    builder.serverLabels.put(labelName, extractor);
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that client metrics get an additional
+   * label with the supplied name, whose value is computed by the supplied extractor once per rpc.
+   * The label comes after the labels for headers, and labels added earlier.
+   */
+  public Configuration withClientLabel(String labelName, ClientLabelExtractor extractor) {
+    Builder builder = toBuilder();
+    builder.clientLabels = new LinkedHashMap<>(clientLabels);
+    builder.clientLabels.put(labelName, extractor);
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the interceptors record metrics
+   * about their own overhead: the time spent monitoring the given fraction of rpcs, which must be
+   * in [0, 1], and the number of series and time spent collecting each metric. A fraction of 0
+   * turns the self metrics off.
+   */
+  public Configuration withSelfMetrics(double samplingRate) {
+    checkSamplingRate(samplingRate);
+    Builder builder = toBuilder();
+    builder.selfMetricsSamplingRate = samplingRate;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the metrics are also, or only,
+   * exported as aggregated by the supplied {@link MetricView}. Views do not change what is
+   * recorded, and apply to the metrics of both interceptors.
+   */
+  public Configuration withView(MetricView view) {
+    Builder builder = toBuilder();
+    builder.views = new ArrayList<>(views);
+    builder.views.add(view);
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that, for each of the supplied
+   * latency thresholds (seconds), both interceptors count the rpcs of each method which completed
+   * within the threshold and those which were slower. This is much cheaper than latency histograms
+   * if all that is needed is the fraction of rpcs meeting a latency objective.
+   */
+  public Configuration withLatencyThresholds(double... thresholdsSec) {
+    for (double threshold : thresholdsSec) {
+      if (!(threshold > 0)) {
+        throw new IllegalArgumentException("Latency threshold must be positive, got: " + threshold);
+      }
+    }
+    Builder builder = toBuilder();
+    builder.latencyThresholds = Arrays.stream(thresholdsSec).sorted().distinct().toArray();
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the server records how long
+   * each rpc spent receiving the request, in the handler before the first response message, and
+   * sending the response. Bidi streaming rpcs are not included, since their phases overlap.
+   */
+  public Configuration withPhaseMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludePhaseMetrics = true;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the phases of rpcs are not
+   * recorded.
+   */
+  public Configuration withoutPhaseMetrics() {
+    Builder builder = toBuilder();
+    builder.isIncludePhaseMetrics = false;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that both interceptors measure the
+   * time spent in the {@code onMessage} callback of the listener for the given fraction of
+   * received messages, which must be in [0, 1], where 0 turns the measuring off. Slow callbacks
+   * hold up the other callbacks of their rpc, which makes this useful to find handlers blocking the
+   * callback thread.
+   */
+  public Configuration withMessageHandlerMetrics(double samplingRate) {
+    checkSamplingRate(samplingRate);
+    Builder builder = toBuilder();
+    builder.messageHandlerSamplingRate = samplingRate;
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the server measures how long the
+   * handler of each cancelled rpc keeps working on it, i.e., the time from the cancellation until
+   * the handler last sends a message or closes the rpc. Handlers which never close a cancelled rpc
+   * are followed for the given window, which must be positive. This only has an effect on the
+   * server.
+   */
+  public Configuration withCancellationMetrics(Duration window) {
+    if (window.isNegative() || window.isZero()) {
+      throw new IllegalArgumentException("Window must be positive, got: " + window);
+    }
+    Builder builder = toBuilder();
+    builder.cancellationWindow = Optional.of(window);
+    return builder.build();
+  }
+
+  /**
+   * Returns a copy {@link Configuration} with the difference that the work done after rpcs got
+   * cancelled is not measured.
+   */
+  public Configuration withoutCancellationMetrics() {
+    Builder builder = toBuilder();
+    builder.cancellationWindow = Optional.empty();
+    return builder.build();
   }
 
   /** Returns whether or not latency histograms for calls should be included. */
@@ -137,6 +451,121 @@ public class Configuration {
     return isAddCodeLabelToHistograms;
   }
 
+  /** Returns whether or not flow control metrics should be recorded. */
+  public boolean isIncludeFlowControlMetrics() {
+    return isIncludeFlowControlMetrics;
+  }
+
+  /** Returns whether or not metrics about individual attempts of client rpcs should be recorded. */
+  public boolean isIncludeAttemptMetrics() {
+    return isIncludeAttemptMetrics;
+  }
+
+  /** Returns whether or not metrics about the pending time of client rpcs should be recorded. */
+  public boolean isIncludePendingMetrics() {
+    return isIncludePendingMetrics;
+  }
+
+  /** Returns whether or not the CPU time used by server rpcs should be measured. */
+  public boolean isIncludeCpuTimeMetrics() {
+    return cpuTimeSamplingRate > 0;
+  }
+
+  /** Returns the fraction of server rpcs for which CPU time is measured. */
+  public double getCpuTimeSamplingRate() {
+    return cpuTimeSamplingRate;
+  }
+
+  /** Returns whether or not the heap memory allocated by server rpcs should be measured. */
+  public boolean isIncludeAllocationMetrics() {
+    return allocationSamplingRate > 0;
+  }
+
+  /** Returns the fraction of server rpcs for which allocated heap memory is measured. */
+  public double getAllocationSamplingRate() {
+    return allocationSamplingRate;
+  }
+
+  /** Returns the recorder which keeps the slowest rpcs, if any. */
+  public Optional<SlowCallRecorder> getSlowCallRecorder() {
+    return slowCallRecorder;
+  }
+
+  /** Returns whether or not Java Flight Recorder events should be emitted for rpcs. */
+  public boolean isIncludeFlightRecorderEvents() {
+    return isIncludeFlightRecorderEvents;
+  }
+
+  /** Returns the log which the server appends a record to for every rpc, if any. */
+  public Optional<CallLog> getCallLog() {
+    return callLog;
+  }
+
+  /** Returns whether or not the server should keep the values of its metrics off the heap. */
+  public boolean isUseOffHeapStorage() {
+    return isUseOffHeapStorage;
+  }
+
+  /** Returns the extractors of additional server labels, by label name. */
+  public Map<String, ServerLabelExtractor> getServerLabels() {
+    return Collections.unmodifiableMap(serverLabels);
+  }
+
+  /** Returns the extractors of additional client labels, by label name. */
+  public Map<String, ClientLabelExtractor> getClientLabels() {
+    return Collections.unmodifiableMap(clientLabels);
+  }
+
+  /** Returns whether or not the interceptors should record metrics about their own overhead. */
+  public boolean isIncludeSelfMetrics() {
+    return selfMetricsSamplingRate > 0;
+  }
+
+  /** Returns the fraction of rpcs for which the overhead of the interceptors is measured. */
+  public double getSelfMetricsSamplingRate() {
+    return selfMetricsSamplingRate;
+  }
+
+  /** Returns the views through which the metrics are exported. */
+  public List<MetricView> getViews() {
+    return Collections.unmodifiableList(views);
+  }
+
+  /** Returns whether or not rpcs should be counted against latency thresholds. */
+  public boolean isIncludeLatencyThresholds() {
+    return latencyThresholds.length > 0;
+  }
+
+  /** Returns the latency thresholds (seconds) to count rpcs against, in ascending order. */
+  public double[] getLatencyThresholds() {
+    return latencyThresholds.clone();
+  }
+
+  /** Returns whether or not the server should record the latency of the phases of rpcs. */
+  public boolean isIncludePhaseMetrics() {
+    return isIncludePhaseMetrics;
+  }
+
+  /** Returns whether or not the time spent handling received messages should be measured. */
+  public boolean isIncludeMessageHandlerMetrics() {
+    return messageHandlerSamplingRate > 0;
+  }
+
+  /** Returns the fraction of received messages for which the handling time is measured. */
+  public double getMessageHandlerSamplingRate() {
+    return messageHandlerSamplingRate;
+  }
+
+  /** Returns whether or not the server should measure the work done after rpcs got cancelled. */
+  public boolean isIncludeCancellationMetrics() {
+    return cancellationWindow.isPresent();
+  }
+
+  /** Returns how long the handlers of cancelled rpcs which never close them are followed. */
+  public Duration getCancellationWindow() {
+    return cancellationWindow.orElse(Duration.ZERO);
+  }
+
   /**
    * Returns the sanitized version of the label headers, after turning all hyphens to underscores.
    */
@@ -144,16 +573,92 @@ public class Configuration {
     return labelHeaders.stream().map(h -> h.replaceAll("-", "_")).collect(Collectors.toList());
   }
 
-  private Configuration(
-      boolean isIncludeLatencyHistograms,
-      CollectorRegistry collectorRegistry,
-      double[] latencyBuckets,
-      List<String> labelHeaders,
-      boolean isAddCodeLabelToHistograms) {
-    this.isIncludeLatencyHistograms = isIncludeLatencyHistograms;
-    this.collectorRegistry = collectorRegistry;
-    this.latencyBuckets = latencyBuckets;
-    this.labelHeaders = labelHeaders;
-    this.isAddCodeLabelToHistograms = isAddCodeLabelToHistograms;
+  private Configuration(Builder builder) {
+    this.isIncludeLatencyHistograms = builder.isIncludeLatencyHistograms;
+    this.collectorRegistry = builder.collectorRegistry;
+    this.latencyBuckets = builder.latencyBuckets;
+    this.labelHeaders = builder.labelHeaders;
+    this.isAddCodeLabelToHistograms = builder.isAddCodeLabelToHistograms;
+    this.isIncludeFlowControlMetrics = builder.isIncludeFlowControlMetrics;
+    this.isIncludeAttemptMetrics = builder.isIncludeAttemptMetrics;
+    this.isIncludePendingMetrics = builder.isIncludePendingMetrics;
+    this.cpuTimeSamplingRate = builder.cpuTimeSamplingRate;
+    this.allocationSamplingRate = builder.allocationSamplingRate;
+    this.slowCallRecorder = builder.slowCallRecorder;
+    this.isIncludeFlightRecorderEvents = builder.isIncludeFlightRecorderEvents;
+    this.callLog = builder.callLog;
+    this.isUseOffHeapStorage = builder.isUseOffHeapStorage;
+    this.serverLabels = builder.serverLabels;
+    this.clientLabels = builder.clientLabels;
+    this.selfMetricsSamplingRate = builder.selfMetricsSamplingRate;
+    this.views = builder.views;
+    this.latencyThresholds = builder.latencyThresholds;
+    this.isIncludePhaseMetrics = builder.isIncludePhaseMetrics;
+    this.messageHandlerSamplingRate = builder.messageHandlerSamplingRate;
+    this.cancellationWindow = builder.cancellationWindow;
+  }
+
+  /** Returns a builder holding the values of this configuration, for the {@code with*} methods. */
+  private Builder toBuilder() {
+    Builder builder = new Builder();
+    builder.isIncludeLatencyHistograms = isIncludeLatencyHistograms;
+    builder.collectorRegistry = collectorRegistry;
+    builder.latencyBuckets = latencyBuckets;
+    builder.labelHeaders = labelHeaders;
+    builder.isAddCodeLabelToHistograms = isAddCodeLabelToHistograms;
+    builder.isIncludeFlowControlMetrics = isIncludeFlowControlMetrics;
+    builder.isIncludeAttemptMetrics = isIncludeAttemptMetrics;
+    builder.isIncludePendingMetrics = isIncludePendingMetrics;
+    builder.cpuTimeSamplingRate = cpuTimeSamplingRate;
+    builder.allocationSamplingRate = allocationSamplingRate;
+    builder.slowCallRecorder = slowCallRecorder;
+    builder.isIncludeFlightRecorderEvents = isIncludeFlightRecorderEvents;
+    builder.callLog = callLog;
+    builder.isUseOffHeapStorage = isUseOffHeapStorage;
+    builder.serverLabels = serverLabels;
+    builder.clientLabels = clientLabels;
+    builder.selfMetricsSamplingRate = selfMetricsSamplingRate;
+    builder.views = views;
+    builder.latencyThresholds = latencyThresholds;
+    builder.isIncludePhaseMetrics = isIncludePhaseMetrics;
+    builder.messageHandlerSamplingRate = messageHandlerSamplingRate;
+    builder.cancellationWindow = cancellationWindow;
+    return builder;
+  }
+
+  private static void checkSamplingRate(double samplingRate) {
+    if (samplingRate < 0 || samplingRate > 1) {
+      throw new IllegalArgumentException("Sampling rate must be in [0, 1], got: " + samplingRate);
+    }
+  }
+
+  /** Collects the values of a {@link Configuration}, which keeps them in final fields. */
+  private static class Builder {
+    private boolean isIncludeLatencyHistograms;
+    private CollectorRegistry collectorRegistry = CollectorRegistry.defaultRegistry;
+    private double[] latencyBuckets = DEFAULT_LATENCY_BUCKETS;
+    private List<String> labelHeaders = new ArrayList<>();
+    private boolean isAddCodeLabelToHistograms;
+    private boolean isIncludeFlowControlMetrics;
+    private boolean isIncludeAttemptMetrics;
+    private boolean isIncludePendingMetrics;
+    private double cpuTimeSamplingRate;
+    private double allocationSamplingRate;
+    private Optional<SlowCallRecorder> slowCallRecorder = Optional.empty();
+    private boolean isIncludeFlightRecorderEvents;
+    private Optional<CallLog> callLog = Optional.empty();
+    private boolean isUseOffHeapStorage;
+    private Map<String, ServerLabelExtractor> serverLabels = Collections.emptyMap();
+    private Map<String, ClientLabelExtractor> clientLabels = Collections.emptyMap();
+    private double selfMetricsSamplingRate;
+    private List<MetricView> views = Collections.emptyList();
+    private double[] latencyThresholds = new double[0];
+    private boolean isIncludePhaseMetrics;
+    private double messageHandlerSamplingRate;
+    private Optional<Duration> cancellationWindow = Optional.empty();
+
+    private Configuration build() {
+      return new Configuration(this);
+    }
   }
 }
@@ -0,0 +1,136 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the {@link Configuration} of interceptors which can be changed while they are running, for
+ * instance to record latency histograms only while debugging:
+ *
+ * <pre>{@code
+ * ConfigurationHandle handle = ConfigurationHandle.create(Configuration.cheapMetricsOnly());
+ * ServerInterceptor interceptor = MonitoringServerInterceptor.create(handle);
+ * // Later.
+ * handle.update(Configuration::withLatencyHistograms);
+ * handle.setMethodConfiguration("my.Service/Slow", handle.get().withCpuTimeMetrics(1));
+ * }</pre>
+ *
+ * <p>Changes apply to the rpcs started afterwards. Rpcs read the configuration without locking, and
+ * metrics are only registered once a configuration enabling them is first used. Metrics which no
+ * configuration records anymore are unregistered, and metrics whose labels or buckets change are
+ * registered again, which resets their series. Configurations in use at the same time, e.g., that
+ * of a method and the default one, may record the same metric with different labels or buckets, in
+ * which case the series of both are exported. All configurations must use the same {@link
+ * CollectorRegistry}.
+ */
+public class ConfigurationHandle {
+  private final CollectorRegistry collectorRegistry;
+  private final AtomicReference<Snapshot> snapshot;
+
+  /** Returns a handle whose configuration is initially the supplied one. */
+  public static ConfigurationHandle create(Configuration configuration) {
+    return new ConfigurationHandle(
+        configuration.getCollectorRegistry(),
+        new Snapshot(configuration, Collections.emptyMap()));
+  }
+
+  private ConfigurationHandle(CollectorRegistry collectorRegistry, Snapshot snapshot) {
+    this.collectorRegistry = collectorRegistry;
+    this.snapshot = new AtomicReference<>(snapshot);
+  }
+
+  /** Returns the configuration of the methods which have no configuration of their own. */
+  public Configuration get() {
+    return snapshot.get().defaultConfiguration;
+  }
+
+  /** Replaces the configuration of the methods which have no configuration of their own. */
+  public void set(Configuration configuration) {
+    update(previous -> configuration);
+  }
+
+  /**
+   * Atomically replaces the configuration of the methods which have no configuration of their own
+   * by the result of the supplied function. The function may be called several times if the
+   * configuration is changed concurrently.
+   */
+  public void update(UnaryOperator<Configuration> update) {
+    snapshot.updateAndGet(
+        previous -> {
+          Configuration configuration = checkRegistry(update.apply(previous.defaultConfiguration));
+          return new Snapshot(configuration, previous.byMethod);
+        });
+  }
+
+  /**
+   * Makes the rpcs of the method with the supplied full name, e.g., {@code my.Service/Method}, use
+   * the supplied configuration rather than the default one.
+   */
+  public void setMethodConfiguration(String fullMethodName, Configuration configuration) {
+    checkRegistry(configuration);
+    snapshot.updateAndGet(
+        previous -> {
+          Map<String, Configuration> byMethod = new HashMap<>(previous.byMethod);
+          byMethod.put(fullMethodName, configuration);
+          return new Snapshot(previous.defaultConfiguration, byMethod);
+        });
+  }
+
+  /** Makes the rpcs of the method with the supplied full name use the default configuration. */
+  public void clearMethodConfiguration(String fullMethodName) {
+    snapshot.updateAndGet(
+        previous -> {
+          Map<String, Configuration> byMethod = new HashMap<>(previous.byMethod);
+          byMethod.remove(fullMethodName);
+          return new Snapshot(previous.defaultConfiguration, byMethod);
+        });
+  }
+
+  Snapshot snapshot() {
+    return snapshot.get();
+  }
+
+  private Configuration checkRegistry(Configuration configuration) {
+    if (configuration.getCollectorRegistry() != collectorRegistry) {
+      throw new IllegalArgumentException(
+          "All configurations of a handle must use the same collector registry");
+    }
+    return configuration;
+  }
+
+  /** The configurations of a handle at some point in time. */
+  static class Snapshot {
+    private final Configuration defaultConfiguration;
+    private final Map<String, Configuration> byMethod;
+
+    private Snapshot(Configuration defaultConfiguration, Map<String, Configuration> byMethod) {
+      this.defaultConfiguration = defaultConfiguration;
+      this.byMethod = byMethod;
+    }
+
+    Configuration defaultConfiguration() {
+      return defaultConfiguration;
+    }
+
+    /** Returns the methods which have a configuration of their own, by full method name. */
+    Map<String, Configuration> byMethod() {
+      return Collections.unmodifiableMap(byMethod);
+    }
+
+    /** Returns the default configuration followed by those of individual methods. */
+    List<Configuration> configurations() {
+      List<Configuration> result = new ArrayList<>();
+      result.add(defaultConfiguration);
+      result.addAll(byMethod.values());
+      return result;
+    }
+  }
+}
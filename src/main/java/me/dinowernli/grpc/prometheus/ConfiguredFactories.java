@@ -0,0 +1,101 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps the metric factories of an interceptor up to date with the configurations of its {@link
+ * ConfigurationHandle}. Factories are created the first time an rpc is started after the
+ * configurations changed, and are kept for the configurations which did not change. The metrics
+ * which are only recorded by the factories of previous configurations are unregistered then.
+ */
+class ConfiguredFactories<F> {
+  private final ConfigurationHandle handle;
+  private final BiFunction<Configuration, MetricStorage.Registrations, F> createFactory;
+  private final MetricStorage.Registrations registrations;
+  private volatile Resolved<F> resolved;
+
+  ConfiguredFactories(
+      ConfigurationHandle handle,
+      BiFunction<Configuration, MetricStorage.Registrations, F> createFactory) {
+    this.handle = handle;
+    this.createFactory = createFactory;
+    this.registrations = new MetricStorage.Registrations();
+    this.resolved = resolve(handle.snapshot(), new IdentityHashMap<>());
+  }
+
+  /** Returns the factory for the current configuration of the method with the supplied name. */
+  F forMethod(String fullMethodName) {
+    Resolved<F> result = resolved;
+    if (result.snapshot != handle.snapshot()) {
+      result = update();
+    }
+    return result.forMethod(fullMethodName);
+  }
+
+  private synchronized Resolved<F> update() {
+    ConfigurationHandle.Snapshot snapshot = handle.snapshot();
+    if (resolved.snapshot != snapshot) {
+      resolved = resolve(snapshot, resolved.byConfiguration);
+      // Only once the factories of the new configurations have taken over the metrics they share
+      // with the previous ones, the metrics no configuration records anymore can be dropped.
+      registrations.retain(
+          resolved.byConfiguration.keySet(),
+          snapshot.defaultConfiguration().getCollectorRegistry());
+    }
+    return resolved;
+  }
+
+  private Resolved<F> resolve(
+      ConfigurationHandle.Snapshot snapshot, Map<Configuration, F> previous) {
+    Map<Configuration, F> byConfiguration = new IdentityHashMap<>();
+    for (Configuration configuration : snapshot.configurations()) {
+      F factory = byConfiguration.get(configuration);
+      if (factory == null) {
+        factory = previous.get(configuration);
+      }
+      if (factory == null) {
+        factory = createFactory.apply(configuration, registrations);
+      }
+      byConfiguration.put(configuration, factory);
+    }
+    Map<String, F> byMethod = new HashMap<>();
+    snapshot.byMethod().forEach((method, c) -> byMethod.put(method, byConfiguration.get(c)));
+    return new Resolved<>(
+        snapshot,
+        byConfiguration,
+        byConfiguration.get(snapshot.defaultConfiguration()),
+        byMethod.isEmpty() ? Collections.emptyMap() : byMethod);
+  }
+
+  /** The factories for a snapshot of the configurations. */
+  private static class Resolved<F> {
+    private final ConfigurationHandle.Snapshot snapshot;
+    private final Map<Configuration, F> byConfiguration;
+    private final F defaultFactory;
+    private final Map<String, F> byMethod;
+
+    private Resolved(
+        ConfigurationHandle.Snapshot snapshot,
+        Map<Configuration, F> byConfiguration,
+        F defaultFactory,
+        Map<String, F> byMethod) {
+      this.snapshot = snapshot;
+      this.byConfiguration = byConfiguration;
+      this.defaultFactory = defaultFactory;
+      this.byMethod = byMethod;
+    }
+
+    private F forMethod(String fullMethodName) {
+      if (byMethod.isEmpty()) {
+        return defaultFactory;
+      }
+      return byMethod.getOrDefault(fullMethodName, defaultFactory);
+    }
+  }
+}
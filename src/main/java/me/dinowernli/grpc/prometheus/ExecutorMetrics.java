@@ -0,0 +1,135 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Prometheus metric definitions used for monitoring the executors of a grpc server. All executors
+ * monitored into the same registry share the metrics, and are told apart by the executor label.
+ */
+class ExecutorMetrics {
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private static final String[] taskLabels = {
+    "executor", "grpc_type", "grpc_service", "grpc_method"
+  };
+
+  private static final Supplier<Histogram.Builder> queueWaitSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server_executor")
+              .name("queue_wait_seconds")
+              .help(
+                  "Histogram of the time (seconds) tasks spent queued before they started "
+                      + "running.");
+
+  private static final Supplier<Histogram.Builder> executionSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server_executor")
+              .name("execution_seconds")
+              .help("Histogram of the time (seconds) tasks spent running.");
+
+  private static final Supplier<Gauge.Builder> queuedTasksBuilder =
+      () ->
+          Gauge.build()
+              .namespace("grpc")
+              .subsystem("server_executor")
+              .name("queued_tasks")
+              .help("Number of tasks which have been submitted but have not started running yet.");
+
+  private static final Supplier<Gauge.Builder> activeTasksBuilder =
+      () ->
+          Gauge.build()
+              .namespace("grpc")
+              .subsystem("server_executor")
+              .name("active_tasks")
+              .help("Number of tasks currently running, i.e., the number of busy workers.");
+
+  /** The metrics of each registry, shared by all executors monitored into it. */
+  private static final Map<CollectorRegistry, Shared> sharedByRegistry = new WeakHashMap<>();
+
+  private final String[] unknownMethodLabelValues;
+  private final String executorName;
+  private final MetricStorage.Family<MetricStorage.HistogramSeries> queueWaitSeconds;
+  private final MetricStorage.Family<MetricStorage.HistogramSeries> executionSeconds;
+  private final Gauge.Child queuedTasks;
+  private final Gauge.Child activeTasks;
+
+  /**
+   * Creates the metrics of the executor with the supplied name, registering them unless another
+   * executor already registered them with the registry of the configuration.
+   */
+  ExecutorMetrics(String executorName, Configuration configuration) {
+    CollectorRegistry registry = configuration.getCollectorRegistry();
+    Shared shared;
+    synchronized (sharedByRegistry) {
+      shared = sharedByRegistry.computeIfAbsent(registry, Shared::new);
+    }
+    MetricStorage storage =
+        MetricStorage.forServer(configuration, Optional.empty(), shared.registrations);
+    this.unknownMethodLabelValues = new String[] {executorName, "", "", ""};
+    this.executorName = executorName;
+    this.queueWaitSeconds =
+        storage.histogram(
+            queueWaitSecondsBuilder, configuration.getLatencyBuckets(), taskLabels, registry);
+    this.executionSeconds =
+        storage.histogram(
+            executionSecondsBuilder, configuration.getLatencyBuckets(), taskLabels, registry);
+    this.queuedTasks = shared.queuedTasks.labels(executorName);
+    this.activeTasks = shared.activeTasks.labels(executorName);
+  }
+
+  void recordTaskQueued() {
+    queuedTasks.inc();
+  }
+
+  void recordTaskRejected() {
+    queuedTasks.dec();
+  }
+
+  void recordTaskStarted() {
+    queuedTasks.dec();
+    activeTasks.inc();
+  }
+
+  /** Records a finished task, with the method being null if the task was never attributed. */
+  void recordTaskFinished(GrpcMethod method, long queueWaitNanos, long executionNanos) {
+    activeTasks.dec();
+    // Tasks which could not be attributed to any grpc method get empty method labels.
+    String[] labelValues =
+        method == null
+            ? unknownMethodLabelValues
+            : new String[] {
+              executorName, method.type(), method.serviceName(), method.methodName()
+            };
+    queueWaitSeconds.labels(labelValues).observe(queueWaitNanos / NANOS_PER_SECOND);
+    executionSeconds.labels(labelValues).observe(executionNanos / NANOS_PER_SECOND);
+  }
+
+  /**
+   * The metrics registered with a single registry. The histograms depend on the configuration, so
+   * they are registered like the metrics of an interceptor, while the gauges are registered right
+   * away.
+   */
+  private static class Shared {
+    private final MetricStorage.Registrations registrations;
+    private final Gauge queuedTasks;
+    private final Gauge activeTasks;
+
+    private Shared(CollectorRegistry registry) {
+      this.registrations = new MetricStorage.Registrations();
+      this.queuedTasks = queuedTasksBuilder.get().labelNames("executor").register(registry);
+      this.activeTasks = activeTasksBuilder.get().labelNames("executor").register(registry);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the rendered metrics of a registry for a while, so that several scrapers scraping within
+ * that time share a single collection. Scrapes which arrive while the metrics are being rendered
+ * wait for that rendering instead of starting their own.
+ *
+ * <pre>{@code
+ * ExpositionCache cache = ExpositionCache.create(registry, Duration.ofSeconds(5));
+ * // In the http handler.
+ * ExpositionCache.Payload payload =
+ *     cache.get(ExpositionFormat.negotiate(request.getHeader("Accept")));
+ * boolean isGzip = String.valueOf(request.getHeader("Accept-Encoding")).contains("gzip");
+ * response.setContentType(payload.getContentType());
+ * if (isGzip) {
+ *   response.setHeader("Content-Encoding", "gzip");
+ * }
+ * payload.writeTo(response.getOutputStream(), isGzip);
+ * }</pre>
+ */
+public class ExpositionCache {
+  private final CollectorRegistry registry;
+  private final long maxStalenessNanos;
+  private final Map<ExpositionFormat, AtomicReference<Entry>> entries;
+
+  /**
+   * Creates a cache which renders the metrics of the supplied registry at most once per format
+   * within the given duration, measured from the start of the previous rendering.
+   */
+  public static ExpositionCache create(CollectorRegistry registry, Duration maxStaleness) {
+    return new ExpositionCache(registry, maxStaleness.toNanos());
+  }
+
+  private ExpositionCache(CollectorRegistry registry, long maxStalenessNanos) {
+    this.registry = registry;
+    this.maxStalenessNanos = maxStalenessNanos;
+    this.entries = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the metrics of the registry in the supplied format. If they were rendered recently
+   * enough, or are being rendered, the existing rendering is returned.
+   */
+  public Payload get(ExpositionFormat format) throws IOException {
+    AtomicReference<Entry> reference =
+        entries.computeIfAbsent(format, f -> new AtomicReference<>());
+    while (true) {
+      Entry entry = reference.get();
+      long now = System.nanoTime();
+      if (entry != null && !entry.isStale(now, maxStalenessNanos)) {
+        return await(entry.payload);
+      }
+      Entry rendering = new Entry(now);
+      if (reference.compareAndSet(entry, rendering)) {
+        try {
+          rendering.payload.complete(render(format));
+        } catch (Throwable t) {
+          // Also for errors, since concurrent callers would otherwise wait for the payload forever.
+          rendering.payload.completeExceptionally(t);
+          throw t;
+        }
+        return await(rendering.payload);
+      }
+    }
+  }
+
+  private Payload render(ExpositionFormat format) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    format.write(registry.metricFamilySamples(), out);
+    return new Payload(format.getContentType(), out.toByteArray());
+  }
+
+  private static Payload await(CompletableFuture<Payload> payload) throws IOException {
+    try {
+      return payload.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** A rendering of the metrics, which is finished once its payload is complete. */
+  private static class Entry {
+    private final long startNanos;
+    private final CompletableFuture<Payload> payload;
+
+    private Entry(long startNanos) {
+      this.startNanos = startNanos;
+      this.payload = new CompletableFuture<>();
+    }
+
+    /** A rendering in progress is never stale, and a failed one always is. */
+    private boolean isStale(long nowNanos, long maxStalenessNanos) {
+      if (!payload.isDone()) {
+        return false;
+      }
+      return payload.isCompletedExceptionally() || nowNanos - startNanos > maxStalenessNanos;
+    }
+  }
+
+  /** The rendered metrics. The gzipped form is computed the first time it is needed. */
+  public static class Payload {
+    private final String contentType;
+    private final byte[] bytes;
+    private volatile byte[] gzippedBytes;
+
+    private Payload(String contentType, byte[] bytes) {
+      this.contentType = contentType;
+      this.bytes = bytes;
+    }
+
+    /** Returns the value of the Content-Type header for the payload. */
+    public String getContentType() {
+      return contentType;
+    }
+
+    /** Returns the uncompressed payload. The array must not be modified. */
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    /** Returns the payload compressed with gzip. The array must not be modified. */
+    public byte[] getGzippedBytes() {
+      byte[] result = gzippedBytes;
+      if (result == null) {
+        synchronized (this) {
+          result = gzippedBytes;
+          if (result == null) {
+            result = gzip(bytes);
+            gzippedBytes = result;
+          }
+        }
+      }
+      return result;
+    }
+
+    /** Writes the payload to the stream, compressed if requested, without closing the stream. */
+    public void writeTo(OutputStream out, boolean isGzip) throws IOException {
+      out.write(isGzip ? getGzippedBytes() : bytes);
+      out.flush();
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+        gzip.write(bytes);
+      } catch (IOException e) {
+        // Only the in-memory streams are written to.
+        throw new UncheckedIOException(e);
+      }
+      return out.toByteArray();
+    }
+  }
+}
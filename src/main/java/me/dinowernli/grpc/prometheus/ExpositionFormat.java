@@ -0,0 +1,134 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Locale;
+
+/**
+ * A format in which Prometheus can scrape metrics. An http handler serving the metrics of a
+ * registry can pick the format requested by the scraper as follows:
+ *
+ * <pre>{@code
+ * ExpositionFormat format = ExpositionFormat.negotiate(request.getHeader("Accept"));
+ * response.setContentType(format.getContentType());
+ * format.write(registry.metricFamilySamples(), response.getOutputStream());
+ * }</pre>
+ */
+public abstract class ExpositionFormat {
+  /** The text format, version 0.0.4, which all versions of Prometheus understand. */
+  public static final ExpositionFormat TEXT = new TextFormat();
+
+  /**
+   * The protobuf format, which is cheaper to produce and parse for histograms with many buckets.
+   * Prometheus requests it if {@code scrape_classic_histograms} or native histograms are enabled.
+   */
+  public static final ExpositionFormat PROTOBUF = new ProtobufFormat();
+
+  /**
+   * Returns the format to use for the supplied value of the Accept header, which may be null. The
+   * protobuf format is returned if the header accepts it with at least the quality of the text
+   * format, and the text format otherwise.
+   */
+  public static ExpositionFormat negotiate(String acceptHeader) {
+    if (acceptHeader == null) {
+      return TEXT;
+    }
+    double textQuality = 0;
+    double protobufQuality = 0;
+    for (String mediaRange : acceptHeader.split(",")) {
+      String[] parts = mediaRange.split(";");
+      String mediaType = parts[0].trim().toLowerCase(Locale.ROOT);
+      double quality = 1;
+      String proto = "";
+      String encoding = "";
+      for (int i = 1; i < parts.length; ++i) {
+        String[] parameter = parts[i].trim().split("=", 2);
+        if (parameter.length != 2) {
+          continue;
+        }
+        String value = parameter[1].trim();
+        switch (parameter[0].trim().toLowerCase(Locale.ROOT)) {
+          case "q":
+            try {
+              quality = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+              quality = 0;
+            }
+            break;
+          case "proto":
+            proto = value;
+            break;
+          case "encoding":
+            encoding = value;
+            break;
+          default:
+            break;
+        }
+      }
+      if (mediaType.equals("application/vnd.google.protobuf")
+          && proto.equals("io.prometheus.client.MetricFamily")
+          && encoding.equals("delimited")) {
+        protobufQuality = Math.max(protobufQuality, quality);
+      } else if (mediaType.equals("text/plain")
+          || mediaType.equals("text/*")
+          || mediaType.equals("*/*")) {
+        textQuality = Math.max(textQuality, quality);
+      }
+    }
+    return protobufQuality > 0 && protobufQuality >= textQuality ? PROTOBUF : TEXT;
+  }
+
+  /** Returns the value of the Content-Type header for responses in this format. */
+  public abstract String getContentType();
+
+  /** Writes the supplied metric families to the stream, which is flushed but not closed. */
+  public abstract void write(Enumeration<MetricFamilySamples> families, OutputStream out)
+      throws IOException;
+
+  private ExpositionFormat() {}
+
+  private static class TextFormat extends ExpositionFormat {
+    @Override
+    public String getContentType() {
+      return io.prometheus.client.exporter.common.TextFormat.CONTENT_TYPE_004;
+    }
+
+    @Override
+    public void write(Enumeration<MetricFamilySamples> families, OutputStream out)
+        throws IOException {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      io.prometheus.client.exporter.common.TextFormat.write004(writer, families);
+      writer.flush();
+    }
+  }
+
+  private static class ProtobufFormat extends ExpositionFormat {
+    /** Keeps an encoder, and with it an encoding buffer, per scraping thread. */
+    private final ThreadLocal<ProtobufEncoder> encoders =
+        ThreadLocal.withInitial(ProtobufEncoder::new);
+
+    @Override
+    public String getContentType() {
+      return "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; "
+          + "encoding=delimited";
+    }
+
+    @Override
+    public void write(Enumeration<MetricFamilySamples> families, OutputStream out)
+        throws IOException {
+      ProtobufEncoder encoder = encoders.get();
+      while (families.hasMoreElements()) {
+        encoder.writeDelimited(families.nextElement(), out);
+      }
+      out.flush();
+    }
+  }
+}
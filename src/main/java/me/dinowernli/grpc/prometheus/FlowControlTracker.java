@@ -0,0 +1,65 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+/**
+ * Keeps track of the flow control state of a single rpc. gRPC only signals when a stream becomes
+ * ready again, so the stream becoming not ready is detected by sampling {@code isReady()}: whenever
+ * the application asks for it, and before and after each message is sent, since sending is what
+ * fills up the stream. This is shared between the monitoring call and its listener, which can be
+ * invoked from different threads.
+ */
+class FlowControlTracker {
+  private boolean isNotReady;
+  private long notReadySinceNanos;
+  private long notReadyNanos;
+  private int notReadyTransitions;
+  private int bufferedMessages;
+
+  /** Called with the readiness of the stream whenever it is sampled. */
+  synchronized void onReadiness(boolean isReady) {
+    if (isReady) {
+      onReady();
+    } else if (!isNotReady) {
+      isNotReady = true;
+      notReadySinceNanos = System.nanoTime();
+      ++notReadyTransitions;
+    }
+  }
+
+  /** Called before a message is sent, with the readiness of the stream at that time. */
+  synchronized void onMessageSent(boolean isReady) {
+    if (!isReady) {
+      ++bufferedMessages;
+    }
+    onReadiness(isReady);
+  }
+
+  /** Called whenever the stream signals that it is ready to accept more messages. */
+  synchronized void onReady() {
+    if (isNotReady) {
+      isNotReady = false;
+      notReadyNanos += System.nanoTime() - notReadySinceNanos;
+    }
+  }
+
+  /** Called once the rpc is done. A stream which is still not ready is not ready until now. */
+  synchronized void finish() {
+    onReady();
+  }
+
+  /** Returns the total time the stream was observed to be not ready. */
+  synchronized long notReadyNanos() {
+    return notReadyNanos;
+  }
+
+  /** Returns the number of times the stream was observed going from ready to not ready. */
+  synchronized int notReadyTransitions() {
+    return notReadyTransitions;
+  }
+
+  /** Returns the number of messages which were sent while the stream was not ready. */
+  synchronized int bufferedMessages() {
+    return bufferedMessages;
+  }
+}
@@ -7,6 +7,7 @@ import io.grpc.MethodDescriptor.MethodType;
 
 /** Knows how to extract information about a single grpc method. */
 class GrpcMethod {
+  private final String fullMethodName;
   private final String serviceName;
   private final String methodName;
   private final MethodType type;
@@ -16,15 +17,22 @@ class GrpcMethod {
 
     // Full method names are of the form: "full.serviceName/MethodName". We extract the last part.
     String methodName = method.getFullMethodName().substring(serviceName.length() + 1);
-    return new GrpcMethod(serviceName, methodName, method.getType());
+    return new GrpcMethod(method.getFullMethodName(), serviceName, methodName, method.getType());
   }
 
-  private GrpcMethod(String serviceName, String methodName, MethodType type) {
+  private GrpcMethod(
+      String fullMethodName, String serviceName, String methodName, MethodType type) {
+    this.fullMethodName = fullMethodName;
     this.serviceName = serviceName;
     this.methodName = methodName;
     this.type = type;
   }
 
+  /** Returns the name of the form "full.serviceName/MethodName". */
+  String fullMethodName() {
+    return fullMethodName;
+  }
+
   String serviceName() {
     return serviceName;
   }
@@ -0,0 +1,32 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Metadata;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Looks up the value of a header which is used as a label. */
+class HeaderLabel {
+  private final Metadata.Key<String> key;
+
+  /** Creates the labels for the supplied header names, in order. */
+  static List<HeaderLabel> forHeaders(List<String> headerNames) {
+    List<HeaderLabel> result = new ArrayList<>();
+    for (String headerName : headerNames) {
+      result.add(new HeaderLabel(headerName));
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  HeaderLabel(String headerName) {
+    this.key = Metadata.Key.of(headerName, Metadata.ASCII_STRING_MARSHALLER);
+  }
+
+  /** Returns the value of the header in the supplied metadata, or "" if it is absent. */
+  String value(Metadata metadata) {
+    String value = metadata.get(key);
+    return value == null ? "" : value;
+  }
+}
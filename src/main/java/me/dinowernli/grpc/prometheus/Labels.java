@@ -29,25 +29,30 @@ class Labels {
    * Returns the ordered list of custom label values, by looking into metadata for values of
    * selected custom headers.
    */
-  static List<String> customLabels(Metadata metadata, List<Key<String>> labelHeaderKeys) {
+  static List<String> customLabels(Metadata metadata, List<HeaderLabel> labelHeaders) {
     List<String> labels = new ArrayList<>();
-    for (Key<String> key : labelHeaderKeys) {
-      if (metadata.containsKey(key)) {
-        labels.add(metadata.get(key));
-      } else {
-        labels.add("");
-      }
+    for (HeaderLabel labelHeader : labelHeaders) {
+      labels.add(labelHeader.value(metadata));
     }
     return Collections.unmodifiableList(labels);
   }
 
   /** Adds standard labels, as well as custom ones, in order, to a given collector. */
   static <T> T addLabels(SimpleCollector<T> collector, List<String> labels, GrpcMethod method) {
+    return collector.labels(allLabels(labels, method));
+  }
+
+  /** Adds standard labels, as well as custom ones, in order, to a given metric family. */
+  static <T> T addLabels(MetricStorage.Family<T> family, List<String> labels, GrpcMethod method) {
+    return family.labels(allLabels(labels, method));
+  }
+
+  private static String[] allLabels(List<String> labels, GrpcMethod method) {
     List<String> allLabels = new ArrayList<>();
     allLabels.add(method.type());
     allLabels.add(method.serviceName());
     allLabels.add(method.methodName());
     allLabels.addAll(labels);
-    return collector.labels(allLabels.toArray(new String[0]));
+    return allLabels.toArray(new String[0]);
   }
 }
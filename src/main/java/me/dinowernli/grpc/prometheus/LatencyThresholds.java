@@ -0,0 +1,98 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Status.Code;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import me.dinowernli.grpc.prometheus.MetricStorage.CounterSeries;
+import me.dinowernli.grpc.prometheus.MetricStorage.Family;
+
+/**
+ * Counts the rpcs of each method which completed within each of the configured latency thresholds,
+ * and those which were slower. The series of a method are resolved once, when its first rpc
+ * completes, so that recording an rpc only takes a comparison and an increment per threshold.
+ *
+ * <p>Status codes are merged into the classes {@code OK} and {@code NOT_OK}, and custom labels are
+ * not added, which keeps the number of series at four per method and threshold.
+ */
+class LatencyThresholds {
+  private static final String[] LABEL_NAMES = {
+    "grpc_type", "grpc_service", "grpc_method", "grpc_code", "threshold", "result"
+  };
+  private static final String[] CODE_CLASSES = {"OK", "NOT_OK"};
+  private static final String[] RESULTS = {"good", "slow"};
+
+  private final double[] thresholdsSec;
+  private final String[] thresholdLabels;
+  private final Family<CounterSeries> calls;
+  private final ConcurrentHashMap<String, Series> seriesByMethod;
+
+  LatencyThresholds(
+      Supplier<Counter.Builder> definition,
+      double[] thresholdsSec,
+      MetricStorage storage,
+      CollectorRegistry registry) {
+    this.thresholdsSec = thresholdsSec;
+    this.thresholdLabels = new String[thresholdsSec.length];
+    for (int i = 0; i < thresholdsSec.length; ++i) {
+      thresholdLabels[i] = Collector.doubleToGoString(thresholdsSec[i]);
+    }
+    this.calls = storage.counter(definition, LABEL_NAMES, registry);
+    this.seriesByMethod = new ConcurrentHashMap<>();
+  }
+
+  /** Returns the series in which the rpcs of the supplied method are counted. */
+  Series forMethod(GrpcMethod method) {
+    Series series = seriesByMethod.get(method.fullMethodName());
+    if (series == null) {
+      series = seriesByMethod.computeIfAbsent(method.fullMethodName(), name -> resolve(method));
+    }
+    return series;
+  }
+
+  private Series resolve(GrpcMethod method) {
+    CounterSeries[] counters =
+        new CounterSeries[CODE_CLASSES.length * thresholdsSec.length * RESULTS.length];
+    int index = 0;
+    for (String codeClass : CODE_CLASSES) {
+      for (String threshold : thresholdLabels) {
+        for (String result : RESULTS) {
+          counters[index++] =
+              calls.labels(
+                  method.type(),
+                  method.serviceName(),
+                  method.methodName(),
+                  codeClass,
+                  threshold,
+                  result);
+        }
+      }
+    }
+    return new Series(thresholdsSec, counters);
+  }
+
+  /** The pre-resolved series of a single method. */
+  static class Series {
+    private final double[] thresholdsSec;
+
+    /** Indexed by code class, then threshold, then good or slow. */
+    private final CounterSeries[] counters;
+
+    private Series(double[] thresholdsSec, CounterSeries[] counters) {
+      this.thresholdsSec = thresholdsSec;
+      this.counters = counters;
+    }
+
+    void record(double latencySec, Code code) {
+      int index = code == Code.OK ? 0 : thresholdsSec.length * 2;
+      for (double thresholdSec : thresholdsSec) {
+        counters[latencySec <= thresholdSec ? index : index + 1].inc();
+        index += 2;
+      }
+    }
+  }
+}
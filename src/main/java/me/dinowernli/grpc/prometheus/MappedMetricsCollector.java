@@ -0,0 +1,124 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link Collector} which merges the metrics written by the {@link MappedMetricsWriter}s of all
+ * processes using the same directory, by summing up the values of identical samples.
+ *
+ * <p>This is meant to be registered with the registry served by a single scrape endpoint per host,
+ * which should not itself hold the metrics being mirrored, since those would be counted twice.
+ */
+public class MappedMetricsCollector extends Collector {
+  private final Path directory;
+
+  /**
+   * Caches the mapping of each file, which only needs to be redone if a file gets replaced. Files
+   * which got deleted are dropped at the next collection.
+   */
+  private final ConcurrentMap<Path, MappedByteBuffer> buffers;
+
+  public MappedMetricsCollector(Path directory) {
+    this.directory = directory;
+    this.buffers = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    // Keeps families and samples in the order of the first file holding them.
+    Map<String, MergedFamily> families = new LinkedHashMap<>();
+    Set<Path> collectedFiles = new HashSet<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        if (MappedMetricsLayout.isMetricsFile(file)) {
+          collectFile(file, families);
+          collectedFiles.add(file);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read metrics files in " + directory, e);
+    }
+    buffers.keySet().retainAll(collectedFiles);
+
+    List<MetricFamilySamples> result = new ArrayList<>();
+    for (Map.Entry<String, MergedFamily> family : families.entrySet()) {
+      Type type = null;
+      List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+      for (Map.Entry<String, Double> sample : family.getValue().samples.entrySet()) {
+        String[] parts = MappedMetricsLayout.splitKey(sample.getKey());
+        type = Type.valueOf(parts[1]);
+        List<String> labelNames = new ArrayList<>();
+        List<String> labelValues = new ArrayList<>();
+        for (int i = 3; i + 1 < parts.length; i += 2) {
+          labelNames.add(parts[i]);
+          labelValues.add(parts[i + 1]);
+        }
+        samples.add(
+            new MetricFamilySamples.Sample(parts[2], labelNames, labelValues, sample.getValue()));
+      }
+      if (type == null) {
+        continue;
+      }
+      String help = family.getValue().help;
+      result.add(
+          new MetricFamilySamples(
+              family.getKey(),
+              type,
+              help != null ? help : "Merged from all processes: " + family.getKey(),
+              samples));
+    }
+    return result;
+  }
+
+  private void collectFile(Path file, Map<String, MergedFamily> families) throws IOException {
+    MappedByteBuffer buffer = buffers.get(file);
+    if (buffer == null || buffer.capacity() != Files.size(file)) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      buffers.put(file, buffer);
+    }
+
+    int slotCount = MappedMetricsLayout.readSlotCount(buffer);
+    for (int slot = 0; slot < slotCount; ++slot) {
+      String key = MappedMetricsLayout.readKey(buffer, slot);
+      if (key == null) {
+        continue;
+      }
+      String familyName = key.substring(0, key.indexOf('\0'));
+      MergedFamily family = families.computeIfAbsent(familyName, f -> new MergedFamily());
+      String help = MappedMetricsLayout.readHelp(key);
+      if (help != null) {
+        if (family.help == null) {
+          family.help = help;
+        }
+        continue;
+      }
+      family.samples.merge(key, MappedMetricsLayout.readValue(buffer, slot), Double::sum);
+    }
+  }
+
+  /** The help text of a family, and the merged values of its samples by key. */
+  private static class MergedFamily {
+    private final Map<String, Double> samples = new LinkedHashMap<>();
+    private String help;
+  }
+}
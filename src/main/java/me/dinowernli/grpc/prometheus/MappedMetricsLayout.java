@@ -0,0 +1,163 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector.Type;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Describes the layout of the files shared between {@link MappedMetricsWriter} and {@link
+ * MappedMetricsCollector}.
+ *
+ * <p>A file consists of a header followed by a fixed number of fixed-size slots. Each slot holds a
+ * single sample, identified by a key which is written once when the slot is claimed. The length of
+ * the key is published last, so readers never see a partially written key. Values are updated with
+ * single aligned 64-bit stores, so readers in other processes never see torn values either.
+ *
+ * <p>Slots are claimed in the order in which the samples are first written, so that readers get
+ * them in the order of the registry, e.g., with the buckets of a histogram in increasing order.
+ * Each family also claims a slot for its help text, ahead of its samples.
+ */
+class MappedMetricsLayout {
+  static final String FILE_SUFFIX = ".grpc-metrics";
+
+  static final int MAGIC = 0x47525043;
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 16;
+  static final int SLOT_SIZE = 256;
+  static final int VALUE_OFFSET = 8;
+  static final int KEY_OFFSET = 16;
+  static final int MAX_KEY_LENGTH = SLOT_SIZE - KEY_OFFSET;
+
+  private static final char SEPARATOR = '\0';
+  private static final String HELP = "HELP";
+
+  private static final VarHandle INTS =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  static boolean isMetricsFile(Path file) {
+    return Files.isRegularFile(file) && file.getFileName().toString().endsWith(FILE_SUFFIX);
+  }
+
+  static int fileSize(int slotCount) {
+    return HEADER_SIZE + slotCount * SLOT_SIZE;
+  }
+
+  static int slotOffset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  static void writeHeader(ByteBuffer buffer, int slotCount) {
+    INTS.setRelease(buffer, 0, MAGIC);
+    INTS.setRelease(buffer, 4, VERSION);
+    INTS.setRelease(buffer, 8, slotCount);
+  }
+
+  /**
+   * Returns the number of slots of the file, or -1 if the buffer does not hold a valid file. Files
+   * of the first version are valid, but have no help texts.
+   */
+  static int readSlotCount(ByteBuffer buffer) {
+    if (buffer.capacity() < HEADER_SIZE || (int) INTS.getAcquire(buffer, 0) != MAGIC) {
+      return -1;
+    }
+    int version = (int) INTS.getAcquire(buffer, 4);
+    if (version < 1 || version > VERSION) {
+      return -1;
+    }
+    int slotCount = (int) INTS.getAcquire(buffer, 8);
+    return buffer.capacity() < fileSize(slotCount) ? -1 : slotCount;
+  }
+
+  /** Returns the key of the supplied slot, or null if the slot has not been claimed yet. */
+  static String readKey(ByteBuffer buffer, int slot) {
+    int offset = slotOffset(slot);
+    int keyLength = (int) INTS.getAcquire(buffer, offset);
+    if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH) {
+      return null;
+    }
+    byte[] key = new byte[keyLength];
+    for (int i = 0; i < keyLength; ++i) {
+      key[i] = buffer.get(offset + KEY_OFFSET + i);
+    }
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  static double readValue(ByteBuffer buffer, int slot) {
+    long bits = (long) LONGS.getAcquire(buffer, slotOffset(slot) + VALUE_OFFSET);
+    return Double.longBitsToDouble(bits);
+  }
+
+  /** Claims the supplied free slot for a key, which must be at most {@link #MAX_KEY_LENGTH}. */
+  static void claimSlot(ByteBuffer buffer, int slot, byte[] key, double value) {
+    int offset = slotOffset(slot);
+    for (int i = 0; i < key.length; ++i) {
+      buffer.put(offset + KEY_OFFSET + i, key[i]);
+    }
+    writeValue(buffer, slot, value);
+    INTS.setRelease(buffer, offset, key.length);
+  }
+
+  static void writeValue(ByteBuffer buffer, int slot, double value) {
+    LONGS.setRelease(buffer, slotOffset(slot) + VALUE_OFFSET, Double.doubleToRawLongBits(value));
+  }
+
+  /** Builds the key identifying a single sample of a metric family. */
+  static String key(
+      String familyName,
+      Type type,
+      String sampleName,
+      List<String> labelNames,
+      List<String> labelValues) {
+    StringBuilder result = new StringBuilder();
+    result.append(familyName).append(SEPARATOR).append(type.name()).append(SEPARATOR);
+    result.append(sampleName);
+    for (int i = 0; i < labelNames.size(); ++i) {
+      result.append(SEPARATOR).append(labelNames.get(i));
+      result.append(SEPARATOR).append(labelValues.get(i));
+    }
+    return result.toString();
+  }
+
+  /**
+   * Builds the key of the slot holding the help text of a metric family. The help text is cut off
+   * if the key would not fit into a slot otherwise.
+   */
+  static String helpKey(String familyName, String help) {
+    String prefix = familyName + SEPARATOR + HELP + SEPARATOR;
+    String result = prefix + help;
+    int length = help.length();
+    while (result.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_LENGTH && length > 0) {
+      --length;
+      if (length > 0 && Character.isHighSurrogate(help.charAt(length - 1))) {
+        --length;
+      }
+      result = prefix + help.substring(0, length);
+    }
+    return result;
+  }
+
+  /** Returns the help text if the key was built by {@link #helpKey}, and null otherwise. */
+  static String readHelp(String key) {
+    int typeStart = key.indexOf(SEPARATOR) + 1;
+    int helpStart = typeStart + HELP.length() + 1;
+    return key.startsWith(HELP + SEPARATOR, typeStart) ? key.substring(helpStart) : null;
+  }
+
+  /**
+   * Splits a key built by {@link #key} into the family name, the type, the sample name and the
+   * label names and values, in this order.
+   */
+  static String[] splitKey(String key) {
+    return key.split(String.valueOf(SEPARATOR), -1);
+  }
+}
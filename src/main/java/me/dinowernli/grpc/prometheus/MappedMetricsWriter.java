@@ -0,0 +1,166 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.CollectorRegistry;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirrors the counters and histograms of a {@link CollectorRegistry} into a memory-mapped file, so
+ * that a {@link MappedMetricsCollector} can merge the metrics of several processes on a host.
+ *
+ * <p>Each process should use its own file, named after a stable identifier of the process (e.g.,
+ * its worker index). When a process gets restarted with the same name, the values already in the
+ * file are used as a starting point, so counters keep increasing across restarts.
+ *
+ * <p>Gauges and summaries are not mirrored, since their values cannot be merged by summing them.
+ */
+public class MappedMetricsWriter implements Closeable {
+  private static final int DEFAULT_SLOT_COUNT = 4096;
+
+  private final CollectorRegistry registry;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int slotCount;
+
+  /** Maps the keys of all claimed slots to the index of the slot. */
+  private final Map<String, Integer> slots;
+
+  /** Holds the values found in the file when it was opened, i.e., left by previous processes. */
+  private final Map<String, Double> baseValues;
+
+  /** The slot after the one claimed last, where the search for a free slot starts. */
+  private int nextSlot;
+
+  private ScheduledFuture<?> flushTask;
+
+  /**
+   * Opens the file for the process with the supplied name in the supplied directory, creating it
+   * with room for a default number of samples if needed.
+   */
+  public static MappedMetricsWriter open(
+      Path directory, String processName, CollectorRegistry registry) throws IOException {
+    return open(directory, processName, registry, DEFAULT_SLOT_COUNT);
+  }
+
+  /**
+   * Opens the file for the process with the supplied name in the supplied directory, creating it
+   * with room for the given number of samples if needed. Samples which don't fit into the file
+   * anymore are not mirrored.
+   */
+  public static MappedMetricsWriter open(
+      Path directory, String processName, CollectorRegistry registry, int slotCount)
+      throws IOException {
+    Path file = directory.resolve(processName + MappedMetricsLayout.FILE_SUFFIX);
+    FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean isExisting = channel.size() > 0;
+    int fileSize = isExisting ? (int) channel.size() : MappedMetricsLayout.fileSize(slotCount);
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    int existingSlotCount = isExisting ? MappedMetricsLayout.readSlotCount(buffer) : -1;
+    if (isExisting && existingSlotCount < 0) {
+      channel.close();
+      throw new IOException("Not a valid metrics file: " + file);
+    }
+    // Files of a previous version are upgraded, since they only lack the help texts.
+    MappedMetricsLayout.writeHeader(buffer, isExisting ? existingSlotCount : slotCount);
+    return new MappedMetricsWriter(
+        registry, channel, buffer, isExisting ? existingSlotCount : slotCount);
+  }
+
+  private MappedMetricsWriter(
+      CollectorRegistry registry, FileChannel channel, MappedByteBuffer buffer, int slotCount) {
+    this.registry = registry;
+    this.channel = channel;
+    this.buffer = buffer;
+    this.slotCount = slotCount;
+    this.slots = new HashMap<>();
+    this.baseValues = new HashMap<>();
+    for (int slot = 0; slot < slotCount; ++slot) {
+      String key = MappedMetricsLayout.readKey(buffer, slot);
+      if (key != null) {
+        slots.put(key, slot);
+        baseValues.put(key, MappedMetricsLayout.readValue(buffer, slot));
+        nextSlot = (slot + 1) % slotCount;
+      }
+    }
+  }
+
+  /** Writes the current values of all counters and histograms of the registry to the file. */
+  public synchronized void flush() {
+    for (MetricFamilySamples family : Collections.list(registry.metricFamilySamples())) {
+      if (family.type != Type.COUNTER && family.type != Type.HISTOGRAM) {
+        continue;
+      }
+      write(MappedMetricsLayout.helpKey(family.name, family.help), 0);
+      for (Sample sample : family.samples) {
+        // The creation timestamps of series are not counters, and can't be summed up.
+        if (sample.name.endsWith("_created")) {
+          continue;
+        }
+        String key =
+            MappedMetricsLayout.key(
+                family.name, family.type, sample.name, sample.labelNames, sample.labelValues);
+        write(key, baseValues.getOrDefault(key, 0.0) + sample.value);
+      }
+    }
+  }
+
+  /** Flushes the registry to the file periodically, using the supplied executor. */
+  public synchronized void flushPeriodically(ScheduledExecutorService executor, Duration interval) {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+    }
+    flushTask =
+        executor.scheduleAtFixedRate(
+            this::flush, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /** Flushes the registry a last time, and stops any periodic flushing. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+    }
+    flush();
+    buffer.force();
+    channel.close();
+  }
+
+  private void write(String key, double value) {
+    Integer slot = slots.get(key);
+    if (slot != null) {
+      MappedMetricsLayout.writeValue(buffer, slot, value);
+      return;
+    }
+
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > MappedMetricsLayout.MAX_KEY_LENGTH || slots.size() >= slotCount) {
+      return;
+    }
+    int candidate = nextSlot;
+    while (MappedMetricsLayout.readKey(buffer, candidate) != null) {
+      candidate = (candidate + 1) % slotCount;
+    }
+    MappedMetricsLayout.claimSlot(buffer, candidate, keyBytes, value);
+    slots.put(key, candidate);
+    nextSlot = (candidate + 1) % slotCount;
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Histogram;
+import java.util.Optional;
+import me.dinowernli.grpc.prometheus.MetricStorage.Family;
+import me.dinowernli.grpc.prometheus.MetricStorage.HistogramSeries;
+
+/**
+ * Prometheus metric definitions used for monitoring the marshalling of grpc messages, on either the
+ * server or the client.
+ */
+class MarshallerMetrics {
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private static final String[] defaultMessageLabels = {"grpc_type", "grpc_service", "grpc_method"};
+
+  private final Family<HistogramSeries> parseSeconds;
+  private final Family<HistogramSeries> serializeSeconds;
+  private final Family<HistogramSeries> parsedBytes;
+  private final Family<HistogramSeries> serializedBytes;
+
+  /** Creates the metrics for the marshallers of a server, which may be kept off-heap. */
+  static MarshallerMetrics forServer(Configuration configuration) {
+    MetricStorage.Registrations registrations = new MetricStorage.Registrations();
+    MetricStorage storage =
+        MetricStorage.forServer(
+            configuration, selfMetrics(configuration, registrations, "server"), registrations);
+    return new MarshallerMetrics(configuration, storage, "server");
+  }
+
+  /** Creates the metrics for the marshallers of a client. */
+  static MarshallerMetrics forClient(Configuration configuration) {
+    MetricStorage.Registrations registrations = new MetricStorage.Registrations();
+    MetricStorage storage =
+        MetricStorage.forClient(
+            configuration, selfMetrics(configuration, registrations, "client"), registrations);
+    return new MarshallerMetrics(configuration, storage, "client");
+  }
+
+  private MarshallerMetrics(Configuration configuration, MetricStorage storage, String subsystem) {
+    CollectorRegistry registry = configuration.getCollectorRegistry();
+    this.parseSeconds =
+        storage.histogram(
+            () ->
+                Histogram.build()
+                    .namespace("grpc")
+                    .subsystem(subsystem)
+                    .name("msg_parse_seconds")
+                    .help("Histogram of the time (seconds) spent parsing received messages."),
+            configuration.getLatencyBuckets(),
+            defaultMessageLabels,
+            registry);
+    this.serializeSeconds =
+        storage.histogram(
+            () ->
+                Histogram.build()
+                    .namespace("grpc")
+                    .subsystem(subsystem)
+                    .name("msg_serialize_seconds")
+                    .help("Histogram of the time (seconds) spent serializing sent messages."),
+            configuration.getLatencyBuckets(),
+            defaultMessageLabels,
+            registry);
+    this.parsedBytes =
+        storage.histogram(
+            () ->
+                Histogram.build()
+                    .namespace("grpc")
+                    .subsystem(subsystem)
+                    .name("msg_parsed_bytes")
+                    .help("Histogram of the size (bytes) of received messages.")
+                    .exponentialBuckets(64, 4, 10),
+            defaultMessageLabels,
+            registry);
+    this.serializedBytes =
+        storage.histogram(
+            () ->
+                Histogram.build()
+                    .namespace("grpc")
+                    .subsystem(subsystem)
+                    .name("msg_serialized_bytes")
+                    .help("Histogram of the size (bytes) of sent messages.")
+                    .exponentialBuckets(64, 4, 10),
+            defaultMessageLabels,
+            registry);
+  }
+
+  /** Records a parsed message, with a negative size if the size of the message is not known. */
+  void recordParsed(GrpcMethod method, long nanos, int bytes) {
+    parseSeconds.labels(labelValues(method)).observe(nanos / NANOS_PER_SECOND);
+    if (bytes >= 0) {
+      parsedBytes.labels(labelValues(method)).observe(bytes);
+    }
+  }
+
+  /** Records a serialized message, with a negative size if the size of the message is not known. */
+  void recordSerialized(GrpcMethod method, long nanos, int bytes) {
+    serializeSeconds.labels(labelValues(method)).observe(nanos / NANOS_PER_SECOND);
+    if (bytes >= 0) {
+      serializedBytes.labels(labelValues(method)).observe(bytes);
+    }
+  }
+
+  /**
+   * Returns the self metrics measuring the collection of the marshaller metrics, if enabled. They
+   * use a subsystem of their own, since those of the interceptor are registered separately.
+   */
+  private static Optional<SelfMetrics> selfMetrics(
+      Configuration configuration, MetricStorage.Registrations registrations, String side) {
+    return configuration.isIncludeSelfMetrics()
+        ? Optional.of(registrations.selfMetrics(configuration, side + "_marshaller"))
+        : Optional.empty();
+  }
+
+  private static String[] labelValues(GrpcMethod method) {
+    return new String[] {method.type(), method.serviceName(), method.methodName()};
+  }
+}
@@ -0,0 +1,40 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Applies a normalizer to label values, remembering the results for up to a fixed number of
+ * distinct values. Values seen after the cache is full are normalized every time.
+ */
+class MemoizedNormalizer implements Function<String, String> {
+  private static final int MAX_ENTRIES = 1024;
+
+  private final Function<String, String> normalizer;
+  private final Map<String, String> results;
+
+  MemoizedNormalizer(Function<String, String> normalizer) {
+    this.normalizer = normalizer;
+    this.results = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public String apply(String value) {
+    String result = results.get(value);
+    if (result != null) {
+      return result;
+    }
+    result = normalizer.apply(value);
+    if (result == null) {
+      result = "";
+    }
+    // The size check races with other threads, so the cache might grow slightly past the limit.
+    if (results.size() < MAX_ENTRIES) {
+      results.put(value, result);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the uncompressed sizes of the messages of a single rpc, as reported by a stream tracer, to
+ * the monitoring call and listener. Received messages are read by the transport before they are
+ * delivered to the listener, so their sizes are queued up. Sent messages are written while they are
+ * being sent, unless the transport is not ready for them yet, so the size of a sent message is only
+ * known if it got reported before sending returned.
+ *
+ * <p>A client call can have several attempts, each reading messages on a stream of its own, but
+ * only the attempt grpc commits to delivers its messages. Each attempt therefore queues up the
+ * sizes of the messages it received separately, and only the queue of the committed attempt is
+ * used.
+ */
+class MessageSizes {
+  private final AtomicReference<Queue<Long>> committedInboundBytes = new AtomicReference<>();
+  private int outboundSeqNo;
+  private long outboundBytes = -1;
+
+  /** Adds an attempt of the rpc, to which its stream tracer reports the sizes. */
+  Attempt newAttempt() {
+    return new Attempt();
+  }
+
+  /** Returns the size of the message being delivered, or -1 if it is not known. */
+  long takeInbound() {
+    Queue<Long> inboundBytes = committedInboundBytes.get();
+    Long bytes = inboundBytes == null ? null : inboundBytes.poll();
+    return bytes == null ? -1 : bytes;
+  }
+
+  /** Returns the size of the message which was just sent, or -1 if it is not known. */
+  synchronized long takeOutbound() {
+    long bytes = outboundBytes;
+    outboundBytes = -1;
+    ++outboundSeqNo;
+    return bytes;
+  }
+
+  private synchronized void onOutbound(int seqNo, long bytes) {
+    if (seqNo == outboundSeqNo) {
+      outboundBytes = bytes;
+    }
+  }
+
+  /** The sizes reported by the stream tracer of a single attempt of the rpc. */
+  class Attempt {
+    private final Queue<Long> inboundBytes = new ConcurrentLinkedQueue<>();
+
+    private Attempt() {}
+
+    /**
+     * Called once grpc commits to the attempt, which a client call does for the first attempt to
+     * receive headers, and a server call has no other attempts to begin with. Only the first call
+     * for any attempt of the rpc has an effect.
+     */
+    void commit() {
+      committedInboundBytes.compareAndSet(null, inboundBytes);
+    }
+
+    /** Called by the stream tracer once a received message has been read. */
+    void onInbound(long bytes) {
+      inboundBytes.add(bytes);
+    }
+
+    /**
+     * Called by the stream tracer once a message has been written. Messages written again, e.g.,
+     * for a retry or by another hedged attempt, and messages written after sending returned are
+     * ignored.
+     */
+    void onOutbound(int seqNo, long bytes) {
+      MessageSizes.this.onOutbound(seqNo, bytes);
+    }
+  }
+}
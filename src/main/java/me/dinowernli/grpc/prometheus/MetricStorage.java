@@ -0,0 +1,366 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Creates the labeled counters and histograms in which metrics are recorded, either as regular
+ * simpleclient collectors or using {@link OffHeapCollector}s. The collectors are registered such
+ * that configured {@link MetricView}s are applied, and the time spent collecting them is recorded
+ * if self metrics are present.
+ *
+ * <p>The storages of an interceptor share its {@link Registrations}, so that a storage created for
+ * a new configuration only registers the metrics which were not registered before.
+ */
+class MetricStorage {
+  /** A metric with one series per combination of label values. */
+  interface Family<T> {
+    T labels(String... labelValues);
+  }
+
+  /** A single series of a counter. */
+  interface CounterSeries {
+    void inc(double amount);
+
+    default void inc() {
+      inc(1);
+    }
+  }
+
+  /** A single series of a histogram. */
+  interface HistogramSeries {
+    void observe(double value);
+  }
+
+  private final Configuration configuration;
+  private final boolean isOffHeap;
+  private final List<MetricView> views;
+  private final Optional<SelfMetrics> selfMetrics;
+  private final Registrations registrations;
+
+  /** Returns the storage for the server metrics, which may be kept off-heap. */
+  static MetricStorage forServer(
+      Configuration configuration,
+      Optional<SelfMetrics> selfMetrics,
+      Registrations registrations) {
+    return new MetricStorage(
+        configuration,
+        configuration.isUseOffHeapStorage(),
+        configuration.getViews(),
+        selfMetrics,
+        registrations);
+  }
+
+  /** Returns the storage for the client metrics, which are always kept on-heap. */
+  static MetricStorage forClient(
+      Configuration configuration,
+      Optional<SelfMetrics> selfMetrics,
+      Registrations registrations) {
+    return new MetricStorage(
+        configuration,
+        false /* isOffHeap */,
+        configuration.getViews(),
+        selfMetrics,
+        registrations);
+  }
+
+  private MetricStorage(
+      Configuration configuration,
+      boolean isOffHeap,
+      List<MetricView> views,
+      Optional<SelfMetrics> selfMetrics,
+      Registrations registrations) {
+    this.configuration = configuration;
+    this.isOffHeap = isOffHeap;
+    this.views = views;
+    this.selfMetrics = selfMetrics;
+    this.registrations = registrations;
+  }
+
+  /**
+   * Registers a counter with the supplied registry, unless the interceptor registered it before
+   * with the same labels and settings. The name and help text are taken from a new builder obtained
+   * from the supplied definition, which also identifies the metric.
+   */
+  Family<CounterSeries> counter(
+      Supplier<Counter.Builder> definition, String[] labelNames, CollectorRegistry registry) {
+    return registrations.<Family<CounterSeries>>register(
+        definition,
+        labelNames,
+        Collections.emptyList(),
+        this,
+        registry,
+        () -> {
+          Counter counter = definition.get().labelNames(labelNames).create();
+          if (isOffHeap) {
+            OffHeapCounter offHeapCounter = new OffHeapCounter(counter, labelNames);
+            return new Created<>(offHeapCounter, offHeapCounter);
+          }
+          return new Created<>(counter, labelValues -> counter.labels(labelValues)::inc);
+        });
+  }
+
+  /**
+   * Like {@link #counter}, for a histogram whose buckets are taken from the definition. Such
+   * buckets must not depend on the configuration.
+   */
+  Family<HistogramSeries> histogram(
+      Supplier<Histogram.Builder> definition, String[] labelNames, CollectorRegistry registry) {
+    return histogram(definition, Collections.emptyList(), labelNames, registry);
+  }
+
+  /**
+   * Like {@link #counter}, for a histogram with the supplied buckets. A histogram registered before
+   * with other buckets is registered again.
+   */
+  Family<HistogramSeries> histogram(
+      Supplier<Histogram.Builder> definition,
+      double[] buckets,
+      String[] labelNames,
+      CollectorRegistry registry) {
+    List<Double> bucketList = Arrays.stream(buckets).boxed().collect(Collectors.toList());
+    return histogram(definition, bucketList, labelNames, registry);
+  }
+
+  private Family<HistogramSeries> histogram(
+      Supplier<Histogram.Builder> definition,
+      List<Double> buckets,
+      String[] labelNames,
+      CollectorRegistry registry) {
+    return registrations.<Family<HistogramSeries>>register(
+        definition,
+        labelNames,
+        buckets,
+        this,
+        registry,
+        () -> {
+          Histogram.Builder builder = definition.get().labelNames(labelNames);
+          if (!buckets.isEmpty()) {
+            builder.buckets(buckets.stream().mapToDouble(Double::doubleValue).toArray());
+          }
+          Histogram histogram = builder.create();
+          if (isOffHeap) {
+            OffHeapHistogram offHeapHistogram = new OffHeapHistogram(histogram, labelNames);
+            return new Created<>(offHeapHistogram, offHeapHistogram);
+          }
+          return new Created<>(
+              histogram, labelValues -> histogram.labels(labelValues)::observe);
+        });
+  }
+
+  /** Returns the collector which is registered in place of the supplied one. */
+  private Collector wrap(Collector collector) {
+    Collector viewed = views.isEmpty() ? collector : new ViewCollector(collector, views);
+    return selfMetrics.map(s -> s.measured(viewed)).orElse(viewed);
+  }
+
+  /**
+   * Returns the settings which determine how a metric is stored and registered. A metric can only
+   * be reused by storages with equal settings.
+   */
+  private List<Object> settings() {
+    return Arrays.asList(isOffHeap, views, selfMetrics.isPresent());
+  }
+
+  /** A new collector, and the family through which its values are recorded. */
+  private static class Created<T> {
+    private final Collector collector;
+    private final T family;
+
+    private Created(Collector collector, T family) {
+      this.collector = collector;
+      this.family = family;
+    }
+  }
+
+  /**
+   * A collector recording a metric with certain label names, buckets and settings, along with the
+   * configurations whose storages record into it.
+   */
+  private static class Variant {
+    private final Collector collector;
+    private final Object family;
+    private final List<String> labelNames;
+    private final List<Double> buckets;
+    private final List<Object> settings;
+    private final Set<Configuration> users;
+
+    private Variant(
+        Collector collector,
+        Object family,
+        List<String> labelNames,
+        List<Double> buckets,
+        List<Object> settings) {
+      this.collector = collector;
+      this.family = family;
+      this.labelNames = labelNames;
+      this.buckets = buckets;
+      this.settings = settings;
+      this.users = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private boolean matches(List<String> labelNames, List<Double> buckets, List<Object> settings) {
+      return this.labelNames.equals(labelNames)
+          && this.buckets.equals(buckets)
+          && this.settings.equals(settings);
+    }
+  }
+
+  /**
+   * The collector registered for a metric, which exports the samples of all its variants in use.
+   * Variants with different label names can be in use at the same time, e.g., if a method records
+   * additional labels, in which case the samples of the variants end up in the same family.
+   */
+  private static class VariantCollector extends Collector {
+    private volatile List<Collector> collectors = Collections.emptyList();
+
+    private void setVariants(Collection<Variant> variants) {
+      List<Collector> result = new ArrayList<>();
+      for (Variant variant : variants) {
+        result.add(variant.collector);
+      }
+      collectors = Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      List<Collector> current = collectors;
+      if (current.size() == 1) {
+        return current.get(0).collect();
+      }
+      Map<String, MetricFamilySamples> byName = new LinkedHashMap<>();
+      for (Collector collector : current) {
+        for (MetricFamilySamples family : collector.collect()) {
+          MetricFamilySamples previous = byName.get(family.name);
+          if (previous == null) {
+            byName.put(family.name, family);
+          } else {
+            List<MetricFamilySamples.Sample> samples = new ArrayList<>(previous.samples);
+            samples.addAll(family.samples);
+            byName.put(
+                family.name,
+                new MetricFamilySamples(
+                    previous.name, previous.unit, previous.type, previous.help, samples));
+          }
+        }
+      }
+      return new ArrayList<>(byName.values());
+    }
+  }
+
+  /**
+   * The metrics registered by the storages of a single interceptor, keyed by the definition of the
+   * metric, and its self metrics.
+   *
+   * <p>A storage which records a metric with other label names, buckets or settings than those in
+   * use gets a variant of its own, which is exported along with the others. A variant is only
+   * unregistered once none of the configurations recording into it are in use anymore, so that
+   * changing the configuration of some methods never stops the metrics of the others.
+   */
+  static class Registrations {
+    private final Map<Supplier<?>, List<Variant>> variants;
+    private final Map<Supplier<?>, VariantCollector> collectors;
+    private SelfMetrics selfMetrics;
+
+    Registrations() {
+      this.variants = new HashMap<>();
+      this.collectors = new HashMap<>();
+    }
+
+    /**
+     * Returns the self metrics for the supplied configuration, whose collectors are only registered
+     * the first time self metrics are needed.
+     */
+    synchronized SelfMetrics selfMetrics(Configuration configuration, String subsystem) {
+      if (selfMetrics == null) {
+        selfMetrics = new SelfMetrics(configuration, subsystem);
+      }
+      return selfMetrics.withSamplingRate(configuration.getSelfMetricsSamplingRate());
+    }
+
+    /**
+     * Unregisters the variants which are only recorded into by configurations other than the
+     * supplied ones, which are those still in use. Rpcs which started before may still record into
+     * such variants, but their values are no longer exported.
+     */
+    synchronized void retain(Collection<Configuration> configurations, CollectorRegistry registry) {
+      Set<Configuration> live = Collections.newSetFromMap(new IdentityHashMap<>());
+      live.addAll(configurations);
+      Iterator<Map.Entry<Supplier<?>, List<Variant>>> entries = variants.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<Supplier<?>, List<Variant>> entry = entries.next();
+        List<Variant> metricVariants = entry.getValue();
+        for (Variant variant : metricVariants) {
+          variant.users.retainAll(live);
+        }
+        if (!metricVariants.removeIf(v -> v.users.isEmpty())) {
+          continue;
+        }
+        VariantCollector collector = collectors.get(entry.getKey());
+        registry.unregister(collector);
+        if (metricVariants.isEmpty()) {
+          collectors.remove(entry.getKey());
+          entries.remove();
+        } else {
+          collector.setVariants(metricVariants);
+          registry.register(collector);
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> T register(
+        Supplier<?> definition,
+        String[] labelNames,
+        List<Double> buckets,
+        MetricStorage storage,
+        CollectorRegistry registry,
+        Supplier<Created<T>> create) {
+      List<String> labelNameList = Arrays.asList(labelNames.clone());
+      List<Object> settings = storage.settings();
+      List<Variant> metricVariants = variants.computeIfAbsent(definition, d -> new ArrayList<>());
+      for (Variant variant : metricVariants) {
+        if (variant.matches(labelNameList, buckets, settings)) {
+          variant.users.add(storage.configuration);
+          return (T) variant.family;
+        }
+      }
+      Created<T> created = create.get();
+      Variant variant =
+          new Variant(
+              storage.wrap(created.collector), created.family, labelNameList, buckets, settings);
+      variant.users.add(storage.configuration);
+      metricVariants.add(variant);
+
+      // The collector is registered again, since the variant may export metrics of other names.
+      VariantCollector collector = collectors.get(definition);
+      if (collector == null) {
+        collector = new VariantCollector();
+        collectors.put(definition, collector);
+      } else {
+        registry.unregister(collector);
+      }
+      collector.setVariants(metricVariants);
+      registry.register(collector);
+      return created.family;
+    }
+  }
+}
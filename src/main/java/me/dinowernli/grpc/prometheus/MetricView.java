@@ -0,0 +1,141 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Describes an aggregation of the grpc metrics which is computed when the metrics are collected.
+ * Recording is not affected, so the registry keeps all series, but the view can drop labels and
+ * merge label values before the metrics are exported. For instance, the following view exports
+ * per-service totals in which all non-OK codes are merged:
+ *
+ * <pre>{@code
+ * MetricView.create("service").withoutLabels("grpc_method").withCodesMerged()
+ * }</pre>
+ *
+ * <p>A view named {@code service} exports {@code grpc_server_handled} as {@code
+ * service:grpc_server_handled}, following the naming of Prometheus recording rules. Views only
+ * apply to counters and histograms.
+ */
+public class MetricView {
+  private static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+  private static final String OK = "OK";
+  private static final String NOT_OK = "NOT_OK";
+
+  private final String name;
+  private Set<String> metricNames = Collections.emptySet();
+  private Set<String> droppedLabels = Collections.emptySet();
+  private Map<String, Function<String, String>> labelValueMappings = Collections.emptyMap();
+  private boolean isReplacingRawSeries;
+
+  /** Returns a view with the supplied name, which does not aggregate anything yet. */
+  public static MetricView create(String name) {
+    if (!NAME_PATTERN.matcher(name).matches()) {
+      throw new IllegalArgumentException("Invalid view name: " + name);
+    }
+    return new MetricView(name);
+  }
+
+  /**
+   * Returns a copy of this view with the difference that the supplied labels are dropped, i.e.,
+   * series which only differ in these labels are added up. Labels which a metric does not have are
+   * ignored.
+   */
+  public MetricView withoutLabels(String... labelNames) {
+    if (Arrays.asList(labelNames).contains("le")) {
+      throw new IllegalArgumentException("The bucket label of histograms cannot be dropped");
+    }
+    MetricView result = copy();
+    result.droppedLabels = new HashSet<>(droppedLabels);
+    result.droppedLabels.addAll(Arrays.asList(labelNames));
+    return result;
+  }
+
+  /**
+   * Returns a copy of this view with the difference that the values of the supplied label are
+   * replaced by the result of the mapping, adding up the series which end up with equal values.
+   */
+  public MetricView withLabelValues(String labelName, Function<String, String> mapping) {
+    if (labelName.equals("le")) {
+      throw new IllegalArgumentException("The bucket label of histograms cannot be mapped");
+    }
+    MetricView result = copy();
+    result.labelValueMappings = new LinkedHashMap<>(labelValueMappings);
+    result.labelValueMappings.put(labelName, mapping);
+    return result;
+  }
+
+  /**
+   * Returns a copy of this view with the difference that status codes other than {@code OK} are
+   * merged into {@code NOT_OK}.
+   */
+  public MetricView withCodesMerged() {
+    Function<String, String> mapping = code -> code.equals(OK) ? OK : NOT_OK;
+    return withLabelValues("code", mapping).withLabelValues("grpc_code", mapping);
+  }
+
+  /**
+   * Returns a copy of this view with the difference that it only applies to the metrics with the
+   * supplied names, e.g., {@code grpc_server_handled}. By default, a view applies to all metrics.
+   */
+  public MetricView onlyFor(String... metricNames) {
+    MetricView result = copy();
+    result.metricNames = new HashSet<>(this.metricNames);
+    result.metricNames.addAll(Arrays.asList(metricNames));
+    return result;
+  }
+
+  /**
+   * Returns a copy of this view with the difference that the metrics it applies to are only
+   * exported as aggregated by the view, rather than in addition to their raw series.
+   */
+  public MetricView replacingRawSeries() {
+    MetricView result = copy();
+    result.isReplacingRawSeries = true;
+    return result;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  boolean isDroppedLabel(String labelName) {
+    return droppedLabels.contains(labelName);
+  }
+
+  /** Returns the value which the view exports for a label with the supplied value. */
+  String labelValue(String labelName, String labelValue) {
+    Function<String, String> mapping = labelValueMappings.get(labelName);
+    return mapping == null ? labelValue : mapping.apply(labelValue);
+  }
+
+  boolean isReplacingRawSeries() {
+    return isReplacingRawSeries;
+  }
+
+  /** Returns whether the view applies to the metric with the supplied name. */
+  boolean appliesTo(String metricName) {
+    return metricNames.isEmpty() || metricNames.contains(metricName);
+  }
+
+  private MetricView(String name) {
+    this.name = name;
+  }
+
+  private MetricView copy() {
+    MetricView result = new MetricView(name);
+    result.metricNames = metricNames;
+    result.droppedLabels = droppedLabels;
+    result.labelValueMappings = labelValueMappings;
+    result.isReplacingRawSeries = isReplacingRawSeries;
+    return result;
+  }
+}
@@ -6,6 +6,7 @@ import io.grpc.ClientCall;
 import io.grpc.ForwardingClientCall;
 import io.grpc.Metadata;
 import java.time.Clock;
+import java.util.Optional;
 
 /** A {@link SimpleForwardingClientCall} which increments prometheus counters for the rpc call. */
 class MonitoringClientCall<R, S> extends ForwardingClientCall.SimpleForwardingClientCall<R, S> {
@@ -13,6 +14,10 @@ class MonitoringClientCall<R, S> extends ForwardingClientCall.SimpleForwardingCl
   private final GrpcMethod grpcMethod;
   private final Configuration configuration;
   private final Clock clock;
+  private final Optional<FlowControlTracker> flowControlTracker;
+  private final Optional<MonitoringClientStreamTracer.Factory> streamTracerFactory;
+  private final Optional<CallTracker> callTracker;
+  private final Optional<RpcEvents> rpcEvents;
   private Metadata requestMetadata;
 
   MonitoringClientCall(
@@ -20,21 +25,49 @@ class MonitoringClientCall<R, S> extends ForwardingClientCall.SimpleForwardingCl
       ClientMetrics clientMetrics,
       GrpcMethod grpcMethod,
       Configuration configuration,
-      Clock clock) {
+      Clock clock,
+      Optional<MonitoringClientStreamTracer.Factory> streamTracerFactory) {
     super(delegate);
     this.clientMetrics = clientMetrics;
     this.grpcMethod = grpcMethod;
     this.configuration = configuration;
     this.clock = clock;
+    this.flowControlTracker =
+        configuration.isIncludeFlowControlMetrics()
+            ? Optional.of(new FlowControlTracker())
+            : Optional.empty();
+    this.streamTracerFactory = streamTracerFactory;
+    this.callTracker =
+        configuration.getSlowCallRecorder().isPresent()
+            ? Optional.of(new CallTracker(delegate::getAttributes, Optional.empty()))
+            : Optional.empty();
+    Optional<MessageSizes> messageSizes =
+        streamTracerFactory.flatMap(MonitoringClientStreamTracer.Factory::messageSizes);
+    this.rpcEvents =
+        configuration.isIncludeFlightRecorderEvents()
+            ? Optional.of(new RpcEvents(grpcMethod, "client", messageSizes))
+            : Optional.empty();
   }
 
   @Override
   public void start(Listener<S> delegate, Metadata metadata) {
     this.requestMetadata = metadata;
     clientMetrics.recordCallStarted(metadata);
+    if (streamTracerFactory.isPresent()) {
+      streamTracerFactory.get().callStarted();
+    }
     super.start(
         new MonitoringClientCallListener<>(
-            delegate, clientMetrics, grpcMethod, configuration, clock, metadata),
+            delegate,
+            clientMetrics,
+            grpcMethod,
+            configuration,
+            clock,
+            metadata,
+            flowControlTracker,
+            streamTracerFactory,
+            callTracker,
+            rpcEvents),
         metadata);
   }
 
@@ -44,6 +77,35 @@ class MonitoringClientCall<R, S> extends ForwardingClientCall.SimpleForwardingCl
       clientMetrics.recordStreamMessageSent(
           requestMetadata == null ? new Metadata() : requestMetadata);
     }
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onMessageSent(super.isReady());
+    }
+    if (callTracker.isPresent()) {
+      callTracker.get().onMessageSent();
+    }
     super.sendMessage(requestMessage);
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onMessageSent();
+    }
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onReadiness(super.isReady());
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    boolean isReady = super.isReady();
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onReadiness(isReady);
+    }
+    return isReady;
+  }
+
+  @Override
+  public void cancel(String message, Throwable cause) {
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onCancelled();
+    }
+    super.cancel(message, cause);
   }
 }
@@ -8,6 +8,7 @@ import io.grpc.Metadata;
 import io.grpc.Status;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.Optional;
 
 class MonitoringClientCallListener<S> extends ForwardingClientCallListener<S> {
   private static final long MILLIS_PER_SECOND = 1000L;
@@ -19,6 +20,11 @@ class MonitoringClientCallListener<S> extends ForwardingClientCallListener<S> {
   private final Clock clock;
   private final Instant startInstant;
   private final Metadata requestMetadata;
+  private final Optional<FlowControlTracker> flowControlTracker;
+  private final Optional<MonitoringClientStreamTracer.Factory> streamTracerFactory;
+  private final Optional<CallTracker> callTracker;
+  private final Optional<RpcEvents> rpcEvents;
+  private final SampledTimer messageHandlerTimer;
 
   MonitoringClientCallListener(
       ClientCall.Listener<S> delegate,
@@ -26,7 +32,11 @@ class MonitoringClientCallListener<S> extends ForwardingClientCallListener<S> {
       GrpcMethod grpcMethod,
       Configuration configuration,
       Clock clock,
-      Metadata requestMetadata) {
+      Metadata requestMetadata,
+      Optional<FlowControlTracker> flowControlTracker,
+      Optional<MonitoringClientStreamTracer.Factory> streamTracerFactory,
+      Optional<CallTracker> callTracker,
+      Optional<RpcEvents> rpcEvents) {
     this.delegate = delegate;
     this.clientMetrics = clientMetrics;
     this.grpcMethod = grpcMethod;
@@ -34,6 +44,11 @@ class MonitoringClientCallListener<S> extends ForwardingClientCallListener<S> {
     this.clock = clock;
     this.startInstant = clock.instant();
     this.requestMetadata = requestMetadata;
+    this.flowControlTracker = flowControlTracker;
+    this.streamTracerFactory = streamTracerFactory;
+    this.callTracker = callTracker;
+    this.rpcEvents = rpcEvents;
+    this.messageHandlerTimer = clientMetrics.messageHandlerTimer(requestMetadata);
   }
 
   @Override
@@ -44,10 +59,30 @@ class MonitoringClientCallListener<S> extends ForwardingClientCallListener<S> {
   @Override
   public void onClose(Status status, Metadata metadata) {
     clientMetrics.recordClientHandled(status.getCode(), requestMetadata);
-    if (configuration.isIncludeLatencyHistograms()) {
+    if (configuration.isIncludeLatencyHistograms() || configuration.isIncludeLatencyThresholds()) {
       double latencySec =
           (clock.millis() - startInstant.toEpochMilli()) / (double) MILLIS_PER_SECOND;
       clientMetrics.recordLatency(latencySec, requestMetadata);
+      clientMetrics.recordLatencyThresholds(latencySec, status.getCode());
+    }
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().finish();
+      clientMetrics.recordFlowControl(flowControlTracker.get(), requestMetadata);
+    }
+    if (streamTracerFactory.isPresent()) {
+      clientMetrics.recordAttemptsPerCall(streamTracerFactory.get().attempts(), requestMetadata);
+      if (!streamTracerFactory.get().hasCreatedStream()) {
+        clientMetrics.recordCompletedWithoutStream(status.getCode(), requestMetadata);
+      }
+    }
+    if (configuration.getSlowCallRecorder().isPresent()) {
+      configuration
+          .getSlowCallRecorder()
+          .get()
+          .record(grpcMethod, callTracker.get(), status.getCode(), requestMetadata);
+    }
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onClose(status.getCode());
     }
     super.onClose(status, metadata);
   }
@@ -57,6 +92,20 @@ class MonitoringClientCallListener<S> extends ForwardingClientCallListener<S> {
     if (grpcMethod.streamsResponses()) {
       clientMetrics.recordStreamMessageReceived(requestMetadata);
     }
-    super.onMessage(responseMessage);
+    if (callTracker.isPresent()) {
+      callTracker.get().onMessageReceived();
+    }
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onMessageReceived();
+    }
+    messageHandlerTimer.run(() -> super.onMessage(responseMessage));
+  }
+
+  @Override
+  public void onReady() {
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onReady();
+    }
+    super.onReady();
   }
 }
@@ -8,31 +8,65 @@ import io.grpc.ClientCall;
 import io.grpc.ClientInterceptor;
 import io.grpc.MethodDescriptor;
 import java.time.Clock;
+import java.util.Optional;
 
 /** A {@link ClientInterceptor} which sends stats about incoming grpc calls to Prometheus. */
 public class MonitoringClientInterceptor implements ClientInterceptor {
   private final Clock clock;
-  private final Configuration configuration;
-  private final ClientMetrics.Factory clientMetricsFactory;
+  private final ConfiguredFactories<ClientMetrics.Factory> clientMetricsFactories;
 
   public static MonitoringClientInterceptor create(Configuration configuration) {
+    return create(ConfigurationHandle.create(configuration));
+  }
+
+  /**
+   * Returns an interceptor whose configuration can be changed while it is running, using the
+   * supplied handle.
+   */
+  public static MonitoringClientInterceptor create(ConfigurationHandle configurationHandle) {
     return new MonitoringClientInterceptor(
-        Clock.systemDefaultZone(), configuration, new ClientMetrics.Factory(configuration));
+        Clock.systemDefaultZone(),
+        new ConfiguredFactories<>(configurationHandle, ClientMetrics.Factory::new));
   }
 
   private MonitoringClientInterceptor(
-      Clock clock, Configuration configuration, ClientMetrics.Factory clientMetricsFactory) {
+      Clock clock, ConfiguredFactories<ClientMetrics.Factory> clientMetricsFactories) {
     this.clock = clock;
-    this.configuration = configuration;
-    this.clientMetricsFactory = clientMetricsFactory;
+    this.clientMetricsFactories = clientMetricsFactories;
   }
 
   @Override
   public <R, S> ClientCall<R, S> interceptCall(
       MethodDescriptor<R, S> methodDescriptor, CallOptions callOptions, Channel channel) {
+    ClientMetrics.Factory clientMetricsFactory =
+        clientMetricsFactories.forMethod(methodDescriptor.getFullMethodName());
+    Configuration configuration = clientMetricsFactory.configuration();
+    SelfMetrics.Overhead overhead = clientMetricsFactory.overheadForCall();
+    long startNanos = overhead.start();
     GrpcMethod grpcMethod = GrpcMethod.of(methodDescriptor);
-    ClientMetrics metrics = clientMetricsFactory.createMetricsForMethod(grpcMethod);
+    ClientMetrics metrics =
+        clientMetricsFactory.createMetricsForMethod(grpcMethod, callOptions, overhead);
+    Optional<MonitoringClientStreamTracer.Factory> streamTracerFactory = Optional.empty();
+    if (configuration.isIncludeAttemptMetrics()
+        || configuration.isIncludePendingMetrics()
+        || configuration.isIncludeFlightRecorderEvents()) {
+      // The flight recorder events need the stream tracer for the sizes of the messages.
+      Optional<MessageSizes> messageSizes =
+          configuration.isIncludeFlightRecorderEvents()
+              ? Optional.of(new MessageSizes())
+              : Optional.empty();
+      streamTracerFactory =
+          Optional.of(new MonitoringClientStreamTracer.Factory(metrics, messageSizes));
+      callOptions = callOptions.withStreamTracerFactory(streamTracerFactory.get());
+    }
+    // The time spent in the interceptors further down the chain is not overhead.
+    overhead.stopIntercept(startNanos);
     return new MonitoringClientCall<>(
-        channel.newCall(methodDescriptor, callOptions), metrics, grpcMethod, configuration, clock);
+        channel.newCall(methodDescriptor, callOptions),
+        metrics,
+        grpcMethod,
+        configuration,
+        clock,
+        streamTracerFactory);
   }
 }
@@ -0,0 +1,119 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Attributes;
+import io.grpc.ClientStreamTracer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ClientStreamTracer} which updates Prometheus metrics for a single attempt of an rpc. An
+ * rpc has more than one attempt if it gets retried or hedged, either as configured in the service
+ * config or transparently by grpc.
+ *
+ * <p>Also keeps track of when the rpc first got a stream on a transport, which can take a while if
+ * the channel is still resolving names, waiting for a load balancing pick or waiting for a
+ * connection to become ready.
+ */
+class MonitoringClientStreamTracer extends ClientStreamTracer {
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final Factory factory;
+  private final ClientMetrics clientMetrics;
+  private final Metadata headers;
+  private final long startNanos;
+  private final Optional<MessageSizes.Attempt> messageSizes;
+
+  private MonitoringClientStreamTracer(
+      Factory factory, ClientMetrics clientMetrics, Metadata headers, long startNanos) {
+    this.factory = factory;
+    this.clientMetrics = clientMetrics;
+    this.headers = headers;
+    this.startNanos = startNanos;
+    this.messageSizes = factory.messageSizes.map(MessageSizes::newAttempt);
+  }
+
+  @Override
+  public void streamCreated(Attributes transportAttrs, Metadata headers) {
+    if (factory.streamCreated.compareAndSet(false, true)) {
+      double pendingSec = (System.nanoTime() - factory.callStartNanos) / NANOS_PER_SECOND;
+      clientMetrics.recordPendingTime(pendingSec, this.headers);
+    }
+  }
+
+  @Override
+  public void inboundHeaders() {
+    // Grpc commits to the first attempt receiving headers, and messages only follow headers.
+    if (messageSizes.isPresent()) {
+      messageSizes.get().commit();
+    }
+  }
+
+  @Override
+  public void inboundMessageRead(int seqNo, long optionalWireSize, long optionalUncompressedSize) {
+    if (messageSizes.isPresent()) {
+      messageSizes.get().onInbound(optionalUncompressedSize);
+    }
+  }
+
+  @Override
+  public void outboundMessageSent(int seqNo, long optionalWireSize, long optionalUncompressedSize) {
+    if (messageSizes.isPresent()) {
+      messageSizes.get().onOutbound(seqNo, optionalUncompressedSize);
+    }
+  }
+
+  @Override
+  public void streamClosed(Status status) {
+    double latencySec = (System.nanoTime() - startNanos) / NANOS_PER_SECOND;
+    clientMetrics.recordAttemptLatency(latencySec, status.getCode(), headers);
+  }
+
+  /** Creates a {@link MonitoringClientStreamTracer} for every attempt of a single rpc. */
+  static class Factory extends ClientStreamTracer.Factory {
+    private final ClientMetrics clientMetrics;
+    private final Optional<MessageSizes> messageSizes;
+    private final AtomicInteger attempts;
+    private final AtomicBoolean streamCreated;
+    private volatile long callStartNanos;
+
+    /** Creates a factory which also passes the sizes of messages to the supplied tracker. */
+    Factory(ClientMetrics clientMetrics, Optional<MessageSizes> messageSizes) {
+      this.clientMetrics = clientMetrics;
+      this.messageSizes = messageSizes;
+      this.attempts = new AtomicInteger();
+      this.streamCreated = new AtomicBoolean();
+    }
+
+    /** Called when the rpc is started, before any of its attempts. */
+    void callStarted() {
+      callStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public ClientStreamTracer newClientStreamTracer(StreamInfo info, Metadata headers) {
+      attempts.incrementAndGet();
+      clientMetrics.recordAttemptStarted(info.isTransparentRetry(), headers);
+      return new MonitoringClientStreamTracer(this, clientMetrics, headers, System.nanoTime());
+    }
+
+    /** Returns the tracker of the message sizes of the rpc, if they are tracked. */
+    Optional<MessageSizes> messageSizes() {
+      return messageSizes;
+    }
+
+    /** Returns the number of attempts made so far for the rpc. */
+    int attempts() {
+      return attempts.get();
+    }
+
+    /** Returns whether any attempt of the rpc got a stream on a transport so far. */
+    boolean hasCreatedStream() {
+      return streamCreated.get();
+    }
+  }
+}
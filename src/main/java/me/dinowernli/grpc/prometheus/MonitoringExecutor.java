@@ -0,0 +1,100 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link Executor} which records Prometheus metrics about the tasks it runs, such as how long
+ * each task waited before it started running and how many tasks are currently queued or running.
+ *
+ * <p>Intended to wrap the executor of a grpc server, e.g., {@code
+ * ServerBuilder.executor(MonitoringExecutor.create(executor, configuration))}. Tasks which run
+ * grpc callbacks for a call monitored by a {@link MonitoringServerInterceptor} are labeled with
+ * the method of that call, all other tasks carry empty method labels.
+ *
+ * <p>This does not make any assumptions about the wrapped executor and can be used with thread
+ * pools as well as with executors which start a (virtual) thread per task.
+ */
+public class MonitoringExecutor implements Executor {
+  /** Holds the task currently being run by a {@link MonitoringExecutor} on this thread, if any. */
+  private static final ThreadLocal<MonitoredTask> currentTask = new ThreadLocal<>();
+
+  private final Executor delegate;
+  private final ExecutorMetrics executorMetrics;
+
+  /** Creates an executor whose metrics carry an empty executor label. */
+  public static MonitoringExecutor create(Executor delegate, Configuration configuration) {
+    return create(delegate, "", configuration);
+  }
+
+  /**
+   * Creates an executor whose metrics carry the supplied name in the executor label. Executors
+   * using the same registry share the metrics, so each of them should have a name of its own.
+   */
+  public static MonitoringExecutor create(
+      Executor delegate, String name, Configuration configuration) {
+    return new MonitoringExecutor(delegate, new ExecutorMetrics(name, configuration));
+  }
+
+  private MonitoringExecutor(Executor delegate, ExecutorMetrics executorMetrics) {
+    this.delegate = delegate;
+    this.executorMetrics = executorMetrics;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    MonitoredTask task = new MonitoredTask(command, System.nanoTime());
+    executorMetrics.recordTaskQueued();
+    try {
+      delegate.execute(task);
+    } catch (RuntimeException e) {
+      // The task was rejected, so it will never start running.
+      executorMetrics.recordTaskRejected();
+      throw e;
+    }
+  }
+
+  /**
+   * Attributes the task currently running on this thread, if any, to the supplied method. Only the
+   * first method a task gets attributed to is used for its labels.
+   */
+  static void attributeCurrentTask(GrpcMethod method) {
+    MonitoredTask task = currentTask.get();
+    if (task != null && task.method == null) {
+      task.method = method;
+    }
+  }
+
+  private class MonitoredTask implements Runnable {
+    private final Runnable delegate;
+    private final long queuedNanos;
+
+    // Only ever accessed from the thread running this task.
+    private GrpcMethod method;
+
+    MonitoredTask(Runnable delegate, long queuedNanos) {
+      this.delegate = delegate;
+      this.queuedNanos = queuedNanos;
+    }
+
+    @Override
+    public void run() {
+      long startNanos = System.nanoTime();
+      executorMetrics.recordTaskStarted();
+      MonitoredTask previous = currentTask.get();
+      currentTask.set(this);
+      try {
+        delegate.run();
+      } finally {
+        if (previous == null) {
+          currentTask.remove();
+        } else {
+          currentTask.set(previous);
+        }
+        executorMetrics.recordTaskFinished(
+            method, startNanos - queuedNanos, System.nanoTime() - startNanos);
+      }
+    }
+  }
+}
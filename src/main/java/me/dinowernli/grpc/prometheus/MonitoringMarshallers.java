@@ -0,0 +1,280 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.Marshaller;
+import io.grpc.MethodDescriptor.PrototypeMarshaller;
+import io.grpc.MethodDescriptor.ReflectableMarshaller;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decorates the request and response {@link Marshaller}s of grpc methods in order to record the
+ * time spent parsing and serializing messages, as well as the size of the messages.
+ *
+ * <p>Marshallers don't have access to the headers of the rpc, so these metrics are only labeled
+ * with the method, and not with any of the configured label headers.
+ */
+public class MonitoringMarshallers {
+  private final MarshallerMetrics metrics;
+  private final String side;
+  private final boolean isEmittingEvents;
+  private final ConcurrentMap<MethodDescriptor<?, ?>, MethodDescriptor<?, ?>> wrappedMethods;
+
+  /** Creates an instance which records metrics for messages marshalled by a grpc server. */
+  public static MonitoringMarshallers forServer(Configuration configuration) {
+    return new MonitoringMarshallers(
+        MarshallerMetrics.forServer(configuration),
+        "server",
+        configuration.isIncludeFlightRecorderEvents());
+  }
+
+  /** Creates an instance which records metrics for messages marshalled by a grpc client. */
+  public static MonitoringMarshallers forClient(Configuration configuration) {
+    return new MonitoringMarshallers(
+        MarshallerMetrics.forClient(configuration),
+        "client",
+        configuration.isIncludeFlightRecorderEvents());
+  }
+
+  private MonitoringMarshallers(MarshallerMetrics metrics, String side, boolean isEmittingEvents) {
+    this.metrics = metrics;
+    this.side = side;
+    this.isEmittingEvents = isEmittingEvents;
+    this.wrappedMethods = new ConcurrentHashMap<>();
+  }
+
+  /** Returns a copy of the supplied service in which all methods use monitored marshallers. */
+  public ServerServiceDefinition wrapService(ServerServiceDefinition service) {
+    ServiceDescriptor descriptor = service.getServiceDescriptor();
+    ServiceDescriptor.Builder descriptorBuilder =
+        ServiceDescriptor.newBuilder(descriptor.getName())
+            .setSchemaDescriptor(descriptor.getSchemaDescriptor());
+    List<ServerMethodDefinition<?, ?>> methods = new ArrayList<>();
+    for (ServerMethodDefinition<?, ?> method : service.getMethods()) {
+      ServerMethodDefinition<?, ?> wrapped = wrapMethodDefinition(method);
+      descriptorBuilder.addMethod(wrapped.getMethodDescriptor());
+      methods.add(wrapped);
+    }
+
+    ServerServiceDefinition.Builder serviceBuilder =
+        ServerServiceDefinition.builder(descriptorBuilder.build());
+    for (ServerMethodDefinition<?, ?> method : methods) {
+      serviceBuilder.addMethod(method);
+    }
+    return serviceBuilder.build();
+  }
+
+  /** Returns a copy of the supplied method which uses monitored marshallers. */
+  public <R, S> MethodDescriptor<R, S> wrapMethod(MethodDescriptor<R, S> method) {
+    GrpcMethod grpcMethod = GrpcMethod.of(method);
+    return method
+        .toBuilder(
+            monitored(method.getRequestMarshaller(), grpcMethod),
+            monitored(method.getResponseMarshaller(), grpcMethod))
+        .build();
+  }
+
+  /**
+   * Returns an interceptor which makes the calls going through it use monitored marshallers. This
+   * allows monitoring the marshalling done by generated client stubs.
+   */
+  public ClientInterceptor clientInterceptor() {
+    return new ClientInterceptor() {
+      @Override
+      public <R, S> ClientCall<R, S> interceptCall(
+          MethodDescriptor<R, S> method, CallOptions callOptions, Channel next) {
+        return next.newCall(cachedWrapMethod(method), callOptions);
+      }
+    };
+  }
+
+  private <R, S> ServerMethodDefinition<R, S> wrapMethodDefinition(
+      ServerMethodDefinition<R, S> method) {
+    return ServerMethodDefinition.create(
+        wrapMethod(method.getMethodDescriptor()), method.getServerCallHandler());
+  }
+
+  @SuppressWarnings("unchecked")
+  private <R, S> MethodDescriptor<R, S> cachedWrapMethod(MethodDescriptor<R, S> method) {
+    return (MethodDescriptor<R, S>) wrappedMethods.computeIfAbsent(method, m -> wrapMethod(method));
+  }
+
+  /**
+   * Returns a monitored version of the supplied marshaller, which keeps providing the message class
+   * and prototype if the supplied one does, as the protobuf marshallers do for reflection.
+   */
+  private <T> Marshaller<T> monitored(Marshaller<T> marshaller, GrpcMethod grpcMethod) {
+    if (marshaller instanceof PrototypeMarshaller) {
+      return new MonitoringPrototypeMarshaller<>((PrototypeMarshaller<T>) marshaller, grpcMethod);
+    }
+    if (marshaller instanceof ReflectableMarshaller) {
+      return new MonitoringReflectableMarshaller<>(
+          (ReflectableMarshaller<T>) marshaller, grpcMethod);
+    }
+    return new MonitoringMarshaller<>(marshaller, grpcMethod);
+  }
+
+  private class MonitoringMarshaller<T> implements Marshaller<T> {
+    private final Marshaller<T> delegate;
+    private final GrpcMethod grpcMethod;
+
+    MonitoringMarshaller(Marshaller<T> delegate, GrpcMethod grpcMethod) {
+      this.delegate = delegate;
+      this.grpcMethod = grpcMethod;
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+      int bytes = knownLength(stream);
+      long startNanos = System.nanoTime();
+      T result = delegate.parse(stream);
+      recordParsed(grpcMethod, System.nanoTime() - startNanos, bytes);
+      return result;
+    }
+
+    @Override
+    public InputStream stream(T value) {
+      long startNanos = System.nanoTime();
+      InputStream result = delegate.stream(value);
+      long streamNanos = System.nanoTime() - startNanos;
+
+      // Marshallers such as the protobuf ones only serialize once the transport drains the stream,
+      // so we need to include the time spent draining in order to capture the actual work.
+      if (result instanceof Drainable && result instanceof KnownLength) {
+        return new MonitoringInputStream(result, grpcMethod, streamNanos);
+      }
+      recordSerialized(grpcMethod, streamNanos, knownLength(result));
+      return result;
+    }
+  }
+
+  private class MonitoringReflectableMarshaller<T> extends MonitoringMarshaller<T>
+      implements ReflectableMarshaller<T> {
+    private final ReflectableMarshaller<T> delegate;
+
+    MonitoringReflectableMarshaller(ReflectableMarshaller<T> delegate, GrpcMethod grpcMethod) {
+      super(delegate, grpcMethod);
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Class<T> getMessageClass() {
+      return delegate.getMessageClass();
+    }
+  }
+
+  private class MonitoringPrototypeMarshaller<T> extends MonitoringReflectableMarshaller<T>
+      implements PrototypeMarshaller<T> {
+    private final PrototypeMarshaller<T> delegate;
+
+    MonitoringPrototypeMarshaller(PrototypeMarshaller<T> delegate, GrpcMethod grpcMethod) {
+      super(delegate, grpcMethod);
+      this.delegate = delegate;
+    }
+
+    @Override
+    public T getMessagePrototype() {
+      return delegate.getMessagePrototype();
+    }
+  }
+
+  /**
+   * Wraps a stream returned by a serializing marshaller, and records the serialization once the
+   * stream has been drained, or once it gets closed without having been drained.
+   */
+  private class MonitoringInputStream extends InputStream implements Drainable, KnownLength {
+    private final InputStream delegate;
+    private final GrpcMethod grpcMethod;
+    private final int bytes;
+    private long serializeNanos;
+    private boolean isRecorded;
+
+    MonitoringInputStream(InputStream delegate, GrpcMethod grpcMethod, long streamNanos) {
+      this.delegate = delegate;
+      this.grpcMethod = grpcMethod;
+      this.bytes = knownLength(delegate);
+      this.serializeNanos = streamNanos;
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      long startNanos = System.nanoTime();
+      try {
+        return ((Drainable) delegate).drainTo(target);
+      } finally {
+        serializeNanos += System.nanoTime() - startNanos;
+        record();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      return delegate.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return delegate.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return delegate.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      record();
+      delegate.close();
+    }
+
+    private void record() {
+      if (!isRecorded) {
+        isRecorded = true;
+        recordSerialized(grpcMethod, serializeNanos, bytes);
+      }
+    }
+  }
+
+  private void recordParsed(GrpcMethod grpcMethod, long nanos, int bytes) {
+    metrics.recordParsed(grpcMethod, nanos, bytes);
+    if (isEmittingEvents) {
+      RpcEvents.emitMarshalled(grpcMethod, side, "parse", nanos, bytes);
+    }
+  }
+
+  private void recordSerialized(GrpcMethod grpcMethod, long nanos, int bytes) {
+    metrics.recordSerialized(grpcMethod, nanos, bytes);
+    if (isEmittingEvents) {
+      RpcEvents.emitMarshalled(grpcMethod, side, "serialize", nanos, bytes);
+    }
+  }
+
+  /** Returns the number of bytes in the supplied stream, or -1 if that is not known up front. */
+  private static int knownLength(InputStream stream) {
+    if (!(stream instanceof KnownLength)) {
+      return -1;
+    }
+    try {
+      return stream.available();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+}
@@ -8,6 +8,7 @@ import io.grpc.ServerCall;
 import io.grpc.Status;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.Optional;
 
 /**
  * A {@link ForwardingServerCall} which updates Prometheus metrics based on the server-side actions
@@ -22,6 +23,12 @@ class MonitoringServerCall<R, S> extends ForwardingServerCall.SimpleForwardingSe
   private final Configuration configuration;
   private final Instant startInstant;
   private final Metadata requestMetadata;
+  private final Optional<FlowControlTracker> flowControlTracker;
+  private final Optional<CancellationTracker> cancellationTracker;
+  private final Optional<ResourceUsageTracker> resourceUsageTracker;
+  private final Optional<CallTracker> callTracker;
+  private final Optional<PhaseTracker> phaseTracker;
+  private final Optional<RpcEvents> rpcEvents;
 
   MonitoringServerCall(
       ServerCall<R, S> delegate,
@@ -29,7 +36,13 @@ class MonitoringServerCall<R, S> extends ForwardingServerCall.SimpleForwardingSe
       GrpcMethod grpcMethod,
       ServerMetrics serverMetrics,
       Configuration configuration,
-      Metadata requestMetadata) {
+      Metadata requestMetadata,
+      Optional<FlowControlTracker> flowControlTracker,
+      Optional<CancellationTracker> cancellationTracker,
+      Optional<ResourceUsageTracker> resourceUsageTracker,
+      Optional<CallTracker> callTracker,
+      Optional<PhaseTracker> phaseTracker,
+      Optional<RpcEvents> rpcEvents) {
     super(delegate);
     this.clock = clock;
     this.grpcMethod = grpcMethod;
@@ -37,6 +50,12 @@ class MonitoringServerCall<R, S> extends ForwardingServerCall.SimpleForwardingSe
     this.configuration = configuration;
     this.startInstant = clock.instant();
     this.requestMetadata = requestMetadata;
+    this.flowControlTracker = flowControlTracker;
+    this.cancellationTracker = cancellationTracker;
+    this.resourceUsageTracker = resourceUsageTracker;
+    this.callTracker = callTracker;
+    this.phaseTracker = phaseTracker;
+    this.rpcEvents = rpcEvents;
 
     // TODO(dino): Consider doing this in the onReady() method of the listener instead.
     reportStartMetrics();
@@ -44,6 +63,9 @@ class MonitoringServerCall<R, S> extends ForwardingServerCall.SimpleForwardingSe
 
   @Override
   public void close(Status status, Metadata responseHeaders) {
+    if (cancellationTracker.isPresent()) {
+      cancellationTracker.get().onClose();
+    }
     reportEndMetrics(status);
     super.close(status, responseHeaders);
   }
@@ -53,7 +75,41 @@ class MonitoringServerCall<R, S> extends ForwardingServerCall.SimpleForwardingSe
     if (grpcMethod.streamsResponses()) {
       serverMetrics.recordStreamMessageSent(requestMetadata);
     }
-    super.sendMessage(message);
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onMessageSent(super.isReady());
+    }
+    if (isCancelled()) {
+      serverMetrics.recordMessageSentAfterCancel(requestMetadata);
+    }
+    if (callTracker.isPresent()) {
+      callTracker.get().onMessageSent();
+    }
+    if (phaseTracker.isPresent()) {
+      phaseTracker.get().onMessageSent();
+    }
+    if (resourceUsageTracker.isPresent()) {
+      resourceUsageTracker.get().measure(() -> super.sendMessage(message));
+    } else {
+      super.sendMessage(message);
+    }
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onReadiness(super.isReady());
+    }
+    if (cancellationTracker.isPresent()) {
+      cancellationTracker.get().onWork();
+    }
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onMessageSent();
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    boolean isReady = super.isReady();
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onReadiness(isReady);
+    }
+    return isReady;
   }
 
   private void reportStartMetrics() {
@@ -63,10 +119,31 @@ class MonitoringServerCall<R, S> extends ForwardingServerCall.SimpleForwardingSe
   private void reportEndMetrics(Status status) {
     Status.Code code = status.getCode();
     serverMetrics.recordServerHandled(code, requestMetadata);
-    if (configuration.isIncludeLatencyHistograms()) {
+    if (configuration.isIncludeLatencyHistograms() || configuration.isIncludeLatencyThresholds()) {
       double latencySec =
           (clock.millis() - startInstant.toEpochMilli()) / (double) MILLIS_PER_SECOND;
       serverMetrics.recordLatency(latencySec, requestMetadata, code);
+      serverMetrics.recordLatencyThresholds(latencySec, code);
+    }
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().finish();
+      serverMetrics.recordFlowControl(flowControlTracker.get(), requestMetadata);
+    }
+    if (phaseTracker.isPresent()) {
+      phaseTracker.get().finish();
+      serverMetrics.recordPhases(phaseTracker.get(), requestMetadata);
+    }
+    if (configuration.getSlowCallRecorder().isPresent()) {
+      configuration
+          .getSlowCallRecorder()
+          .get()
+          .record(grpcMethod, callTracker.get(), code, requestMetadata);
+    }
+    if (configuration.getCallLog().isPresent()) {
+      configuration.getCallLog().get().append(grpcMethod, callTracker.get(), code);
+    }
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onClose(code);
     }
   }
 }
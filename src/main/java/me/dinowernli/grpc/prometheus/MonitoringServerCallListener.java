@@ -5,26 +5,49 @@ package me.dinowernli.grpc.prometheus;
 import io.grpc.ForwardingServerCallListener;
 import io.grpc.Metadata;
 import io.grpc.ServerCall;
+import java.util.Optional;
 
 /**
  * A {@link ForwardingServerCallListener} which updates Prometheus metrics for a single rpc based on
  * updates received from grpc.
  */
 class MonitoringServerCallListener<R> extends ForwardingServerCallListener<R> {
+  private static final double NANOS_PER_SECOND = 1e9;
+
   private final ServerCall.Listener<R> delegate;
   private final GrpcMethod grpcMethod;
   private final ServerMetrics serverMetrics;
   private final Metadata requestMetadata;
+  private final Optional<FlowControlTracker> flowControlTracker;
+  private final Optional<CancellationTracker> cancellationTracker;
+  private final Optional<ResourceUsageTracker> resourceUsageTracker;
+  private final Optional<CallTracker> callTracker;
+  private final Optional<PhaseTracker> phaseTracker;
+  private final Optional<RpcEvents> rpcEvents;
+  private final SampledTimer messageHandlerTimer;
 
   MonitoringServerCallListener(
       ServerCall.Listener<R> delegate,
       ServerMetrics serverMetrics,
       GrpcMethod grpcMethod,
-      Metadata requestMetadata) {
+      Metadata requestMetadata,
+      Optional<FlowControlTracker> flowControlTracker,
+      Optional<CancellationTracker> cancellationTracker,
+      Optional<ResourceUsageTracker> resourceUsageTracker,
+      Optional<CallTracker> callTracker,
+      Optional<PhaseTracker> phaseTracker,
+      Optional<RpcEvents> rpcEvents) {
     this.delegate = delegate;
     this.serverMetrics = serverMetrics;
     this.grpcMethod = grpcMethod;
     this.requestMetadata = requestMetadata;
+    this.flowControlTracker = flowControlTracker;
+    this.cancellationTracker = cancellationTracker;
+    this.resourceUsageTracker = resourceUsageTracker;
+    this.callTracker = callTracker;
+    this.phaseTracker = phaseTracker;
+    this.rpcEvents = rpcEvents;
+    this.messageHandlerTimer = serverMetrics.messageHandlerTimer(requestMetadata);
   }
 
   @Override
@@ -34,9 +57,92 @@ class MonitoringServerCallListener<R> extends ForwardingServerCallListener<R> {
 
   @Override
   public void onMessage(R request) {
+    MonitoringExecutor.attributeCurrentTask(grpcMethod);
     if (grpcMethod.streamsRequests()) {
       serverMetrics.recordStreamMessageReceived(requestMetadata);
     }
-    super.onMessage(request);
+    if (callTracker.isPresent()) {
+      callTracker.get().onMessageReceived();
+    }
+    if (phaseTracker.isPresent()) {
+      phaseTracker.get().onMessageReceived();
+    }
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onMessageReceived();
+    }
+    messageHandlerTimer.run(
+        () -> {
+          if (resourceUsageTracker.isPresent()) {
+            resourceUsageTracker.get().measure(() -> super.onMessage(request));
+          } else {
+            super.onMessage(request);
+          }
+        });
+  }
+
+  @Override
+  public void onHalfClose() {
+    MonitoringExecutor.attributeCurrentTask(grpcMethod);
+    if (phaseTracker.isPresent()) {
+      phaseTracker.get().onHalfClose();
+    }
+    if (resourceUsageTracker.isPresent()) {
+      resourceUsageTracker.get().measure(super::onHalfClose);
+    } else {
+      super.onHalfClose();
+    }
+  }
+
+  @Override
+  public void onCancel() {
+    MonitoringExecutor.attributeCurrentTask(grpcMethod);
+    serverMetrics.recordCancelled(requestMetadata);
+    if (cancellationTracker.isPresent()) {
+      // Usually the cancellation of the context has been tracked already, in which case this does
+      // nothing.
+      cancellationTracker.get().onCancel();
+    }
+    if (rpcEvents.isPresent()) {
+      rpcEvents.get().onCancelled();
+    }
+    super.onCancel();
+    reportResourceUsage();
+  }
+
+  @Override
+  public void onComplete() {
+    MonitoringExecutor.attributeCurrentTask(grpcMethod);
+    super.onComplete();
+    reportResourceUsage();
+  }
+
+  @Override
+  public void onReady() {
+    MonitoringExecutor.attributeCurrentTask(grpcMethod);
+    if (flowControlTracker.isPresent()) {
+      flowControlTracker.get().onReady();
+    }
+    if (resourceUsageTracker.isPresent()) {
+      resourceUsageTracker.get().measure(super::onReady);
+    } else {
+      super.onReady();
+    }
+  }
+
+  /**
+   * Called once the rpc is done. All other callbacks have returned at this point, so the resource
+   * usage of the rpc is final (except for messages the handler might still attempt to send).
+   */
+  private void reportResourceUsage() {
+    if (!resourceUsageTracker.isPresent()) {
+      return;
+    }
+    ResourceUsageTracker tracker = resourceUsageTracker.get();
+    if (tracker.isMeasuringCpuTime()) {
+      serverMetrics.recordCpuTime(tracker.cpuNanos() / NANOS_PER_SECOND, requestMetadata);
+    }
+    if (tracker.isMeasuringAllocations()) {
+      serverMetrics.recordAllocatedBytes(tracker.allocatedBytes(), requestMetadata);
+    }
   }
 }
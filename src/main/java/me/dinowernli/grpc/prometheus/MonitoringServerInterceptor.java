@@ -2,40 +2,155 @@
 
 package me.dinowernli.grpc.prometheus;
 
+import io.grpc.Context;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
 import io.grpc.ServerCall;
 import io.grpc.ServerCallHandler;
 import io.grpc.ServerInterceptor;
+import io.grpc.ServerStreamTracer;
 import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 /** A {@link ServerInterceptor} which sends stats about incoming grpc calls to Prometheus. */
 public class MonitoringServerInterceptor implements ServerInterceptor {
+  private static final double NANOS_PER_SECOND = 1e9;
+
   private final Clock clock;
-  private final Configuration configuration;
-  private final ServerMetrics.Factory serverMetricsFactory;
+  private final ConfiguredFactories<ServerMetrics.Factory> serverMetricsFactories;
 
   public static MonitoringServerInterceptor create(Configuration configuration) {
+    return create(ConfigurationHandle.create(configuration));
+  }
+
+  /**
+   * Returns an interceptor whose configuration can be changed while it is running, using the
+   * supplied handle.
+   */
+  public static MonitoringServerInterceptor create(ConfigurationHandle configurationHandle) {
     return new MonitoringServerInterceptor(
-        Clock.systemDefaultZone(), configuration, new ServerMetrics.Factory(configuration));
+        Clock.systemDefaultZone(),
+        new ConfiguredFactories<>(configurationHandle, ServerMetrics.Factory::new));
+  }
+
+  /**
+   * Returns a {@link ServerStreamTracer.Factory} which, if installed on the server using {@code
+   * ServerBuilder.addStreamTracerFactory}, allows the interceptor to record the delay between the
+   * transport receiving an rpc and the rpc being started on the server executor. The delay is only
+   * recorded if monitoring is configured to include latency histograms. The tracer also provides
+   * the number of bytes transferred to a configured {@link CallLog}.
+   */
+  public static ServerStreamTracer.Factory streamTracerFactory() {
+    return new MonitoringServerStreamTracer.Factory();
   }
 
   private MonitoringServerInterceptor(
-      Clock clock, Configuration configuration, ServerMetrics.Factory serverMetricsFactory) {
+      Clock clock, ConfiguredFactories<ServerMetrics.Factory> serverMetricsFactories) {
     this.clock = clock;
-    this.configuration = configuration;
-    this.serverMetricsFactory = serverMetricsFactory;
+    this.serverMetricsFactories = serverMetricsFactories;
   }
 
   @Override
   public <R, S> ServerCall.Listener<R> interceptCall(
       ServerCall<R, S> call, Metadata requestMetadata, ServerCallHandler<R, S> next) {
     MethodDescriptor<R, S> methodDescriptor = call.getMethodDescriptor();
+    ServerMetrics.Factory serverMetricsFactory =
+        serverMetricsFactories.forMethod(methodDescriptor.getFullMethodName());
+    Configuration configuration = serverMetricsFactory.configuration();
+    SelfMetrics.Overhead overhead = serverMetricsFactory.overheadForCall();
+    long startNanos = overhead.start();
     GrpcMethod grpcMethod = GrpcMethod.of(methodDescriptor);
-    ServerMetrics metrics = serverMetricsFactory.createMetricsForMethod(grpcMethod);
+    ServerMetrics metrics =
+        serverMetricsFactory.createMetricsForMethod(grpcMethod, Context.current(), overhead);
+    MonitoringExecutor.attributeCurrentTask(grpcMethod);
+    MonitoringServerStreamTracer tracer = MonitoringServerStreamTracer.current();
+    if (tracer != null) {
+      double delaySec = (System.nanoTime() - tracer.createdNanos()) / NANOS_PER_SECOND;
+      metrics.recordStartDelay(delaySec, requestMetadata);
+    }
+    Optional<FlowControlTracker> flowControlTracker =
+        configuration.isIncludeFlowControlMetrics()
+            ? Optional.of(new FlowControlTracker())
+            : Optional.empty();
+    Optional<CancellationTracker> cancellationTracker = Optional.empty();
+    if (configuration.isIncludeCancellationMetrics()) {
+      CancellationTracker tracker =
+          new CancellationTracker(
+              configuration.getCancellationWindow().toNanos(),
+              t -> metrics.recordWorkAfterCancel(t, requestMetadata));
+      // The context of the rpc is cancelled right away, and with a cause only if the rpc got
+      // cancelled rather than completed.
+      Context.current()
+          .addListener(
+              context -> {
+                if (context.cancellationCause() != null) {
+                  tracker.onCancel();
+                }
+              },
+              Runnable::run);
+      cancellationTracker = Optional.of(tracker);
+    }
+    boolean isMeasuringCpuTime =
+        configuration.isIncludeCpuTimeMetrics()
+            && isSampled(configuration.getCpuTimeSamplingRate())
+            && ResourceUsageTracker.isCpuTimeSupported();
+    boolean isMeasuringAllocations =
+        configuration.isIncludeAllocationMetrics()
+            && isSampled(configuration.getAllocationSamplingRate())
+            && ResourceUsageTracker.isAllocationSupported();
+    Optional<ResourceUsageTracker> resourceUsageTracker =
+        isMeasuringCpuTime || isMeasuringAllocations
+            ? Optional.of(new ResourceUsageTracker(isMeasuringCpuTime, isMeasuringAllocations))
+            : Optional.empty();
+    Optional<CallTracker> callTracker =
+        configuration.getSlowCallRecorder().isPresent() || configuration.getCallLog().isPresent()
+            ? Optional.of(new CallTracker(call::getAttributes, Optional.ofNullable(tracer)))
+            : Optional.empty();
+    Optional<PhaseTracker> phaseTracker =
+        configuration.isIncludePhaseMetrics()
+                && !(grpcMethod.streamsRequests() && grpcMethod.streamsResponses())
+            ? Optional.of(new PhaseTracker())
+            : Optional.empty();
+    Optional<RpcEvents> rpcEvents =
+        configuration.isIncludeFlightRecorderEvents()
+            ? Optional.of(
+                new RpcEvents(
+                    grpcMethod,
+                    "server",
+                    tracer == null ? Optional.empty() : Optional.of(tracer.trackMessageSizes())))
+            : Optional.empty();
     ServerCall<R, S> monitoringCall =
-        new MonitoringServerCall(call, clock, grpcMethod, metrics, configuration, requestMetadata);
+        new MonitoringServerCall(
+            call,
+            clock,
+            grpcMethod,
+            metrics,
+            configuration,
+            requestMetadata,
+            flowControlTracker,
+            cancellationTracker,
+            resourceUsageTracker,
+            callTracker,
+            phaseTracker,
+            rpcEvents);
+    // The time spent in the interceptors and handler further down the chain is not overhead.
+    overhead.stopIntercept(startNanos);
     return new MonitoringServerCallListener<>(
-        next.startCall(monitoringCall, requestMetadata), metrics, grpcMethod, requestMetadata);
+        next.startCall(monitoringCall, requestMetadata),
+        metrics,
+        grpcMethod,
+        requestMetadata,
+        flowControlTracker,
+        cancellationTracker,
+        resourceUsageTracker,
+        callTracker,
+        phaseTracker,
+        rpcEvents);
+  }
+
+  /** Returns whether the rpc being intercepted is part of a sample with the supplied rate. */
+  private static boolean isSampled(double samplingRate) {
+    return ThreadLocalRandom.current().nextDouble() < samplingRate;
   }
 }
@@ -0,0 +1,99 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.ServerStreamTracer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ServerStreamTracer} which remembers when the transport received a new rpc, and makes
+ * itself available to the {@link MonitoringServerInterceptor} through the call's {@link Context}.
+ */
+class MonitoringServerStreamTracer extends ServerStreamTracer {
+  private static final Context.Key<MonitoringServerStreamTracer> CONTEXT_KEY =
+      Context.key("grpc-prometheus-server-stream-tracer");
+
+  private final long createdNanos;
+  private final AtomicLong inboundWireBytes;
+  private final AtomicLong outboundWireBytes;
+  private volatile MessageSizes.Attempt messageSizes;
+
+  private MonitoringServerStreamTracer(long createdNanos) {
+    this.createdNanos = createdNanos;
+    this.inboundWireBytes = new AtomicLong();
+    this.outboundWireBytes = new AtomicLong();
+  }
+
+  /** Returns the tracer of the rpc running in the current context, or null if there is none. */
+  static MonitoringServerStreamTracer current() {
+    return CONTEXT_KEY.get();
+  }
+
+  /** Returns the {@link System#nanoTime()} at which the transport received the rpc. */
+  long createdNanos() {
+    return createdNanos;
+  }
+
+  /** Returns the number of bytes received on the wire for the rpc so far. */
+  long inboundWireBytes() {
+    return inboundWireBytes.get();
+  }
+
+  /** Returns the number of bytes sent on the wire for the rpc so far. */
+  long outboundWireBytes() {
+    return outboundWireBytes.get();
+  }
+
+  /**
+   * Starts passing the sizes of the messages of the rpc to the returned tracker. Only called by the
+   * interceptor if it needs them, since nothing consumes the sizes otherwise.
+   */
+  MessageSizes trackMessageSizes() {
+    MessageSizes result = new MessageSizes();
+    MessageSizes.Attempt attempt = result.newAttempt();
+    attempt.commit();
+    messageSizes = attempt;
+    return result;
+  }
+
+  @Override
+  public void inboundMessageRead(int seqNo, long optionalWireSize, long optionalUncompressedSize) {
+    MessageSizes.Attempt sizes = messageSizes;
+    if (sizes != null) {
+      sizes.onInbound(optionalUncompressedSize);
+    }
+  }
+
+  @Override
+  public void outboundMessageSent(int seqNo, long optionalWireSize, long optionalUncompressedSize) {
+    MessageSizes.Attempt sizes = messageSizes;
+    if (sizes != null) {
+      sizes.onOutbound(seqNo, optionalUncompressedSize);
+    }
+  }
+
+  @Override
+  public void inboundWireSize(long bytes) {
+    inboundWireBytes.addAndGet(bytes);
+  }
+
+  @Override
+  public void outboundWireSize(long bytes) {
+    outboundWireBytes.addAndGet(bytes);
+  }
+
+  @Override
+  public Context filterContext(Context context) {
+    return context.withValue(CONTEXT_KEY, this);
+  }
+
+  /** Creates a {@link MonitoringServerStreamTracer} for every incoming rpc. */
+  static class Factory extends ServerStreamTracer.Factory {
+    @Override
+    public ServerStreamTracer newServerStreamTracer(String fullMethodName, Metadata headers) {
+      return new MonitoringServerStreamTracer(System.nanoTime());
+    }
+  }
+}
@@ -0,0 +1,275 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base class for collectors which keep the values of their series in direct memory rather than in
+ * one object per series, which keeps the heap used per series small and doesn't add work for the
+ * garbage collector.
+ *
+ * <p>Each series gets a fixed-size region in a slab of direct memory, addressed by the index of the
+ * series. Label values are mapped to indexes using an open-addressing hash table of ints. Looking
+ * up an existing series doesn't lock, and neither does updating its values.
+ *
+ * <p>Collecting only creates the samples of the series if they are accessed. The protobuf format
+ * encodes the series straight from direct memory instead, see {@link Snapshot}.
+ *
+ * @param <T> the type used to update a single series
+ */
+abstract class OffHeapCollector<T> extends Collector implements MetricStorage.Family<T> {
+  private static final int SLAB_SHIFT = 10;
+  private static final int SERIES_PER_SLAB = 1 << SLAB_SHIFT;
+  private static final int INITIAL_SLOTS = 64;
+
+  /** Every series starts with its creation time, followed by the values of the subclass. */
+  private static final int CREATED_OFFSET = 0;
+
+  static final int VALUES_OFFSET = 8;
+
+  static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+  private static final VarHandle LABEL_VALUES =
+      MethodHandles.arrayElementVarHandle(String[][].class);
+
+  private final String name;
+  private final String help;
+  private final Type type;
+  private final List<String> labelNames;
+  private final int seriesBytes;
+
+  private volatile Index index;
+  private volatile ByteBuffer[] slabs;
+  private volatile int size;
+
+  /**
+   * Maps label values to series indexes. Slots hold the index of a series plus one, so that zero
+   * marks an empty slot. Replaced by a larger copy once half of the slots are used.
+   */
+  private static class Index {
+    private final int[] slots;
+    private final String[][] labelValues;
+
+    private Index(int slotCount) {
+      this.slots = new int[slotCount];
+      this.labelValues = new String[slotCount / 2][];
+    }
+  }
+
+  OffHeapCollector(String name, String help, Type type, String[] labelNames, int valueBytes) {
+    this.name = name;
+    this.help = help;
+    this.type = type;
+    this.labelNames = Collections.unmodifiableList(Arrays.asList(labelNames.clone()));
+    this.seriesBytes = VALUES_OFFSET + valueBytes;
+    this.index = new Index(INITIAL_SLOTS);
+    this.slabs = new ByteBuffer[0];
+  }
+
+  /** Returns the object used to update the series stored at the supplied offset of a slab. */
+  abstract T series(ByteBuffer slab, int offset);
+
+  /** Adds the samples of the series stored at the supplied offset of a slab. */
+  abstract void collectSeries(
+      List<String> labelValues, ByteBuffer slab, int offset, List<MetricFamilySamples.Sample> out);
+
+  /** Encodes the series stored at the supplied offset of a slab as a single metric. */
+  abstract void encodeSeries(
+      List<String> labelValues, ByteBuffer slab, int offset, ProtobufEncoder encoder);
+
+  @Override
+  public T labels(String... labelValues) {
+    if (labelValues.length != labelNames.size()) {
+      throw new IllegalArgumentException("Incorrect number of labels.");
+    }
+    for (String labelValue : labelValues) {
+      if (labelValue == null) {
+        throw new IllegalArgumentException("Label cannot be null.");
+      }
+    }
+    int seriesIndex = indexOf(labelValues);
+    return series(slabs[seriesIndex >> SLAB_SHIFT], offset(seriesIndex));
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    return Collections.singletonList(new Snapshot(new Series()));
+  }
+
+  /**
+   * The family of the collector as of a scrape. Its samples are only created once they are
+   * accessed, and {@link ProtobufEncoder} encodes the series without them.
+   */
+  class Snapshot extends MetricFamilySamples {
+    private final Series series;
+
+    private Snapshot(Series series) {
+      super(
+          OffHeapCollector.this.name,
+          OffHeapCollector.this.type,
+          OffHeapCollector.this.help,
+          series);
+      this.series = series;
+    }
+
+    /** Returns the number of series, without creating the samples. */
+    int seriesCount() {
+      return series.count;
+    }
+
+    /** Encodes the family, unless it has no series. */
+    void encode(ProtobufEncoder encoder) {
+      if (series.count == 0) {
+        return;
+      }
+      encoder.encodeHeader(name, help, type);
+      for (int i = 0; i < series.count; ++i) {
+        encodeSeries(
+            Arrays.asList(series.index.labelValues[i]),
+            series.slabs[i >> SLAB_SHIFT],
+            offset(i),
+            encoder);
+      }
+    }
+  }
+
+  /** The series which were complete when a scrape started, as samples created on first access. */
+  private class Series extends AbstractList<MetricFamilySamples.Sample> {
+    // The size is published last when adding a series, so all series below it are complete.
+    private final int count = size;
+    private final Index index = OffHeapCollector.this.index;
+    private final ByteBuffer[] slabs = OffHeapCollector.this.slabs;
+    private List<MetricFamilySamples.Sample> samples;
+
+    @Override
+    public MetricFamilySamples.Sample get(int i) {
+      return samples().get(i);
+    }
+
+    @Override
+    public int size() {
+      return samples().size();
+    }
+
+    private synchronized List<MetricFamilySamples.Sample> samples() {
+      if (samples == null) {
+        samples = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+          ByteBuffer slab = slabs[i >> SLAB_SHIFT];
+          int offset = offset(i);
+          List<String> labelValues = Arrays.asList(index.labelValues[i]);
+          collectSeries(labelValues, slab, offset, samples);
+          samples.add(
+              new MetricFamilySamples.Sample(
+                  name + "_created", labelNames, labelValues, readDouble(slab, offset)));
+        }
+      }
+      return samples;
+    }
+  }
+
+  List<String> labelNames() {
+    return labelNames;
+  }
+
+  static double readDouble(ByteBuffer slab, int offset) {
+    return Double.longBitsToDouble((long) LONGS.getAcquire(slab, offset));
+  }
+
+  static void addDouble(ByteBuffer slab, int offset, double amount) {
+    long bits;
+    do {
+      bits = (long) LONGS.getVolatile(slab, offset);
+    } while (!LONGS.weakCompareAndSet(
+        slab, offset, bits, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + amount)));
+  }
+
+  private int indexOf(String[] labelValues) {
+    int hash = hash(labelValues);
+    Index current = index;
+    int mask = current.slots.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = (int) SLOTS.getAcquire(current.slots, slot);
+      if (entry == 0) {
+        return addSeries(labelValues, hash);
+      }
+      if (Arrays.equals((String[]) LABEL_VALUES.get(current.labelValues, entry - 1), labelValues)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  private synchronized int addSeries(String[] labelValues, int hash) {
+    // Another thread might have added the same series since the lookup, or the index might have
+    // been replaced, in which case the lookup missed the series.
+    Index current = index;
+    int slot = findSlot(current, labelValues, hash);
+    if (current.slots[slot] != 0) {
+      return current.slots[slot] - 1;
+    }
+
+    int seriesIndex = size;
+    if (seriesIndex == current.labelValues.length) {
+      current = grow(current);
+      index = current;
+      slot = findSlot(current, labelValues, hash);
+    }
+    if ((seriesIndex >> SLAB_SHIFT) == slabs.length) {
+      ByteBuffer[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+      newSlabs[slabs.length] =
+          ByteBuffer.allocateDirect(SERIES_PER_SLAB * seriesBytes).order(ByteOrder.nativeOrder());
+      slabs = newSlabs;
+    }
+    ByteBuffer slab = slabs[seriesIndex >> SLAB_SHIFT];
+    LONGS.set(
+        slab,
+        offset(seriesIndex) + CREATED_OFFSET,
+        Double.doubleToRawLongBits(System.currentTimeMillis() / 1000.0));
+
+    LABEL_VALUES.setRelease(current.labelValues, seriesIndex, labelValues.clone());
+    SLOTS.setRelease(current.slots, slot, seriesIndex + 1);
+    size = seriesIndex + 1;
+    return seriesIndex;
+  }
+
+  /** Returns the slot holding the supplied label values, or the empty slot they would go into. */
+  private static int findSlot(Index index, String[] labelValues, int hash) {
+    int mask = index.slots.length - 1;
+    int slot = hash & mask;
+    while (index.slots[slot] != 0
+        && !Arrays.equals(index.labelValues[index.slots[slot] - 1], labelValues)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static Index grow(Index current) {
+    Index result = new Index(current.slots.length * 2);
+    for (int i = 0; i < current.labelValues.length; ++i) {
+      String[] labelValues = current.labelValues[i];
+      result.labelValues[i] = labelValues;
+      result.slots[findSlot(result, labelValues, hash(labelValues))] = i + 1;
+    }
+    return result;
+  }
+
+  private int offset(int seriesIndex) {
+    return (seriesIndex & (SERIES_PER_SLAB - 1)) * seriesBytes;
+  }
+
+  private static int hash(String[] labelValues) {
+    int hash = Arrays.hashCode(labelValues);
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Counter;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** A counter which keeps its values in direct memory. See {@link OffHeapCollector}. */
+class OffHeapCounter extends OffHeapCollector<MetricStorage.CounterSeries> {
+  private final String sampleName;
+
+  /** Creates a counter with the name and help text of the supplied unregistered counter. */
+  OffHeapCounter(Counter template, String[] labelNames) {
+    this(template.collect().get(0), labelNames);
+  }
+
+  private OffHeapCounter(MetricFamilySamples template, String[] labelNames) {
+    super(template.name, template.help, Type.COUNTER, labelNames, Long.BYTES);
+    this.sampleName = template.name + "_total";
+  }
+
+  @Override
+  MetricStorage.CounterSeries series(ByteBuffer slab, int offset) {
+    return amount -> {
+      if (amount < 0) {
+        throw new IllegalArgumentException("Amount to increment must be non-negative.");
+      }
+      addDouble(slab, offset + VALUES_OFFSET, amount);
+    };
+  }
+
+  @Override
+  void collectSeries(
+      List<String> labelValues, ByteBuffer slab, int offset, List<MetricFamilySamples.Sample> out) {
+    out.add(
+        new MetricFamilySamples.Sample(
+            sampleName, labelNames(), labelValues, readDouble(slab, offset + VALUES_OFFSET)));
+  }
+
+  @Override
+  void encodeSeries(
+      List<String> labelValues, ByteBuffer slab, int offset, ProtobufEncoder encoder) {
+    encoder.encodeCounter(labelNames(), labelValues, readDouble(slab, offset + VALUES_OFFSET));
+  }
+}
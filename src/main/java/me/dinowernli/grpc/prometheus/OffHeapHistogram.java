@@ -0,0 +1,104 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Histogram;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A histogram which keeps the bucket counts and the sum of each series in direct memory. See
+ * {@link OffHeapCollector}.
+ */
+class OffHeapHistogram extends OffHeapCollector<MetricStorage.HistogramSeries> {
+  private static final int SUM_OFFSET = VALUES_OFFSET;
+  private static final int BUCKETS_OFFSET = VALUES_OFFSET + Long.BYTES;
+
+  private final String name;
+  private final double[] upperBounds;
+  private final List<String> bucketLabelNames;
+
+  /** Creates a histogram with the name, help text and buckets of the supplied one. */
+  OffHeapHistogram(Histogram template, String[] labelNames) {
+    this(template.collect().get(0), labelNames, upperBounds(template, labelNames.length));
+  }
+
+  private OffHeapHistogram(
+      MetricFamilySamples template, String[] labelNames, double[] upperBounds) {
+    super(
+        template.name,
+        template.help,
+        Type.HISTOGRAM,
+        labelNames,
+        Long.BYTES + upperBounds.length * Long.BYTES);
+    this.name = template.name;
+    this.upperBounds = upperBounds;
+    this.bucketLabelNames = new ArrayList<>(labelNames());
+    this.bucketLabelNames.add("le");
+  }
+
+  @Override
+  MetricStorage.HistogramSeries series(ByteBuffer slab, int offset) {
+    return value -> {
+      int bucket = 0;
+      while (bucket < upperBounds.length - 1 && value > upperBounds[bucket]) {
+        ++bucket;
+      }
+      LONGS.getAndAdd(slab, offset + BUCKETS_OFFSET + bucket * Long.BYTES, 1L);
+      addDouble(slab, offset + SUM_OFFSET, value);
+    };
+  }
+
+  @Override
+  void collectSeries(
+      List<String> labelValues, ByteBuffer slab, int offset, List<MetricFamilySamples.Sample> out) {
+    long count = 0;
+    for (int bucket = 0; bucket < upperBounds.length; ++bucket) {
+      count += (long) LONGS.getAcquire(slab, offset + BUCKETS_OFFSET + bucket * Long.BYTES);
+      List<String> bucketLabelValues = new ArrayList<>(labelValues);
+      bucketLabelValues.add(doubleToGoString(upperBounds[bucket]));
+      out.add(
+          new MetricFamilySamples.Sample(
+              name + "_bucket", bucketLabelNames, bucketLabelValues, count));
+    }
+    out.add(new MetricFamilySamples.Sample(name + "_count", labelNames(), labelValues, count));
+    out.add(
+        new MetricFamilySamples.Sample(
+            name + "_sum", labelNames(), labelValues, readDouble(slab, offset + SUM_OFFSET)));
+  }
+
+  @Override
+  void encodeSeries(
+      List<String> labelValues, ByteBuffer slab, int offset, ProtobufEncoder encoder) {
+    encoder.beginHistogram(labelNames(), labelValues);
+    long count = 0;
+    for (int bucket = 0; bucket < upperBounds.length; ++bucket) {
+      count += (long) LONGS.getAcquire(slab, offset + BUCKETS_OFFSET + bucket * Long.BYTES);
+      // The protobuf format leaves out the final infinite bucket, which holds the count.
+      if (bucket < upperBounds.length - 1) {
+        encoder.encodeBucket(count, upperBounds[bucket], null /* exemplar */);
+      }
+    }
+    encoder.endHistogram(count, readDouble(slab, offset + SUM_OFFSET));
+  }
+
+  /**
+   * Returns the bucket bounds of an unregistered histogram, including the final infinite one. The
+   * histogram doesn't expose them directly, so this reads them from the samples of a single series.
+   */
+  private static double[] upperBounds(Histogram template, int labelCount) {
+    String[] labelValues = new String[labelCount];
+    Arrays.fill(labelValues, "");
+    template.labels(labelValues);
+    List<Double> result = new ArrayList<>();
+    for (MetricFamilySamples.Sample sample : template.collect().get(0).samples) {
+      if (sample.name.endsWith("_bucket")) {
+        String le = sample.labelValues.get(sample.labelValues.size() - 1);
+        result.add(le.equals("+Inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(le));
+      }
+    }
+    return result.stream().mapToDouble(Double::doubleValue).toArray();
+  }
+}
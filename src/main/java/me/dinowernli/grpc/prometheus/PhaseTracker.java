@@ -0,0 +1,78 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+/**
+ * Remembers when a single server rpc moved from receiving the request to the handler computing the
+ * response, and from there to sending the response. The phases are:
+ *
+ * <ul>
+ *   <li>receive: from the start of the rpc until the client half-closed, or the last request
+ *       message if the rpc was closed before that.
+ *   <li>handle: from the end of the receive phase until the first response message was sent, or
+ *       the rpc was closed if there was none.
+ *   <li>send: from the first response message until the rpc was closed.
+ * </ul>
+ *
+ * <p>The phases of bidi streaming rpcs overlap, which is why they are not tracked.
+ */
+class PhaseTracker {
+  private final long startNanos;
+  private volatile long lastMessageReceivedNanos;
+  private volatile long halfClosedNanos;
+  private volatile long firstMessageSentNanos;
+  private volatile long closedNanos;
+
+  PhaseTracker() {
+    this.startNanos = System.nanoTime();
+  }
+
+  /** Called when the listener of the rpc receives a request message. */
+  void onMessageReceived() {
+    lastMessageReceivedNanos = System.nanoTime();
+  }
+
+  /** Called when the listener of the rpc is told that the client is done sending. */
+  void onHalfClose() {
+    halfClosedNanos = System.nanoTime();
+  }
+
+  /** Called when the handler sends a response message. */
+  void onMessageSent() {
+    if (firstMessageSentNanos == 0) {
+      firstMessageSentNanos = System.nanoTime();
+    }
+  }
+
+  /** Called when the handler closes the rpc, after which the phases are final. */
+  void finish() {
+    closedNanos = System.nanoTime();
+  }
+
+  long receiveNanos() {
+    return receiveEndNanos() - startNanos;
+  }
+
+  /** Returns zero for handlers which start sending before the client is done. */
+  long handleNanos() {
+    long handleEndNanos = firstMessageSentNanos != 0 ? firstMessageSentNanos : closedNanos;
+    return Math.max(0, handleEndNanos - receiveEndNanos());
+  }
+
+  /** Returns whether a response message was sent, i.e., whether the rpc had a send phase. */
+  boolean hasSendPhase() {
+    return firstMessageSentNanos != 0;
+  }
+
+  /** Only valid if {@link #hasSendPhase()}. */
+  long sendNanos() {
+    return closedNanos - firstMessageSentNanos;
+  }
+
+  private long receiveEndNanos() {
+    if (halfClosedNanos != 0) {
+      return halfClosedNanos;
+    }
+    return lastMessageReceivedNanos != 0 ? lastMessageReceivedNanos : startNanos;
+  }
+}
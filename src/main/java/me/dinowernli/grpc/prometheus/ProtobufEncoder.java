@@ -0,0 +1,449 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.exemplars.Exemplar;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes metric families as length-delimited {@code io.prometheus.client.MetricFamily} protobuf
+ * messages, as defined by Prometheus' {@code metrics.proto}. Each family is encoded into a buffer
+ * which is kept for the next family, so an encoder must only be used by one thread at a time.
+ *
+ * <p>The families of {@link OffHeapCollector}s encode their series themselves, using the methods
+ * for single metrics, so that their samples are never created.
+ */
+class ProtobufEncoder {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  // Wire types.
+  private static final int VARINT = 0;
+  private static final int FIXED64 = 1;
+  private static final int LENGTH_DELIMITED = 2;
+
+  // Values of the MetricType enum.
+  private static final int COUNTER = 0;
+  private static final int GAUGE = 1;
+  private static final int SUMMARY = 2;
+  private static final int UNTYPED = 3;
+  private static final int HISTOGRAM = 4;
+  private static final int GAUGE_HISTOGRAM = 5;
+
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int position;
+
+  /** The start of the metric and histogram messages of the histogram being encoded. */
+  private int metricStart;
+
+  private int histogramStart;
+
+  /** Writes the family to the stream, preceded by its length as a varint. */
+  void writeDelimited(MetricFamilySamples family, OutputStream out) throws IOException {
+    position = 0;
+    if (family instanceof OffHeapCollector.Snapshot) {
+      ((OffHeapCollector<?>.Snapshot) family).encode(this);
+    } else {
+      encodeFamily(family);
+    }
+    if (position == 0) {
+      return;
+    }
+    byte[] prefix = new byte[5];
+    int prefixLength = 0;
+    int value = position;
+    while ((value & ~0x7F) != 0) {
+      prefix[prefixLength++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    prefix[prefixLength++] = (byte) value;
+    out.write(prefix, 0, prefixLength);
+    out.write(buffer, 0, position);
+  }
+
+  private void encodeFamily(MetricFamilySamples family) {
+    switch (family.type) {
+      case COUNTER:
+        encodeCounter(family);
+        break;
+      case HISTOGRAM:
+      case GAUGE_HISTOGRAM:
+        encodeHistogram(family);
+        break;
+      case SUMMARY:
+        encodeSummary(family);
+        break;
+      case INFO:
+        encodeSimple(family, family.name + "_info", GAUGE);
+        break;
+      case GAUGE:
+      case STATE_SET:
+        encodeSimple(family, family.name, GAUGE);
+        break;
+      default:
+        encodeSimple(family, family.name, UNTYPED);
+        break;
+    }
+  }
+
+  /**
+   * Encodes the header of a counter or histogram family, whose metrics are then encoded one by one
+   * using {@link #encodeCounter} or {@link #beginHistogram}.
+   */
+  void encodeHeader(String name, String help, Type type) {
+    switch (type) {
+      case COUNTER:
+        writeHeader(name + "_total", help, COUNTER);
+        break;
+      case HISTOGRAM:
+        writeHeader(name, help, HISTOGRAM);
+        break;
+      default:
+        throw new IllegalArgumentException("Cannot encode metrics of type " + type + " one by one");
+    }
+  }
+
+  /** Encodes a single counter metric. */
+  void encodeCounter(List<String> labelNames, List<String> labelValues, double value) {
+    encodeCounter(labelNames, labelValues, value, null /* exemplar */, null /* timestampMs */);
+  }
+
+  /**
+   * Starts a single histogram metric, whose buckets other than the infinite one are then encoded
+   * using {@link #encodeBucket}, followed by {@link #endHistogram}.
+   */
+  void beginHistogram(List<String> labelNames, List<String> labelValues) {
+    metricStart = beginMessage(4);
+    writeLabels(labelNames, labelValues, "le");
+    histogramStart = beginMessage(7);
+  }
+
+  /** Encodes a bucket of the histogram metric being encoded. The exemplar may be null. */
+  void encodeBucket(long cumulativeCount, double upperBound, Exemplar exemplar) {
+    int bucket = beginMessage(3);
+    writeVarint(1, cumulativeCount);
+    writeDouble(2, upperBound);
+    if (exemplar != null) {
+      writeExemplar(3, exemplar);
+    }
+    endMessage(bucket);
+  }
+
+  /** Completes the histogram metric being encoded. */
+  void endHistogram(long count, double sum) {
+    writeVarint(1, count);
+    writeDouble(2, sum);
+    endMessage(histogramStart);
+    endMessage(metricStart);
+  }
+
+  private void writeHeader(String name, String help, int type) {
+    writeString(1, name);
+    writeString(2, help);
+    writeVarint(3, type);
+  }
+
+  private void encodeCounter(MetricFamilySamples family) {
+    String name = family.name + "_total";
+    if (!hasSample(family, name)) {
+      return;
+    }
+    writeHeader(name, family.help, COUNTER);
+    for (Sample sample : family.samples) {
+      if (sample.name.equals(name)) {
+        encodeCounter(
+            sample.labelNames,
+            sample.labelValues,
+            sample.value,
+            sample.exemplar,
+            sample.timestampMs);
+      }
+    }
+  }
+
+  private void encodeCounter(
+      List<String> labelNames,
+      List<String> labelValues,
+      double value,
+      Exemplar exemplar,
+      Long timestampMs) {
+    int metric = beginMessage(4);
+    writeLabels(labelNames, labelValues, null);
+    int counter = beginMessage(3);
+    writeDouble(1, value);
+    if (exemplar != null) {
+      writeExemplar(2, exemplar);
+    }
+    endMessage(counter);
+    writeTimestamp(timestampMs);
+    endMessage(metric);
+  }
+
+  /** Encodes families whose samples each make up a metric with a single value. */
+  private void encodeSimple(MetricFamilySamples family, String name, int type) {
+    if (!hasSample(family, name)) {
+      return;
+    }
+    writeHeader(name, family.help, type);
+    for (Sample sample : family.samples) {
+      if (!sample.name.equals(name)) {
+        continue;
+      }
+      int metric = beginMessage(4);
+      writeLabels(sample.labelNames, sample.labelValues, null);
+      int value = beginMessage(type == GAUGE ? 2 : 5);
+      writeDouble(1, sample.value);
+      endMessage(value);
+      writeTimestamp(sample.timestampMs);
+      endMessage(metric);
+    }
+  }
+
+  private void encodeHistogram(MetricFamilySamples family) {
+    boolean isGauge = family.type == Type.GAUGE_HISTOGRAM;
+    String bucketName = family.name + "_bucket";
+    String countName = family.name + (isGauge ? "_gcount" : "_count");
+    String sumName = family.name + (isGauge ? "_gsum" : "_sum");
+    Map<List<String>, Series> series = new LinkedHashMap<>();
+    for (Sample sample : family.samples) {
+      if (sample.name.equals(bucketName)) {
+        Series s = series(series, sample, "le");
+        if (!s.boundLabel.equals("+Inf")) {
+          s.bounds.add(Double.parseDouble(s.boundLabel));
+          s.values.add(sample.value);
+          s.exemplars.add(sample.exemplar);
+        }
+      } else if (sample.name.equals(countName)) {
+        series(series, sample, "le").count = sample.value;
+      } else if (sample.name.equals(sumName)) {
+        series(series, sample, "le").sum = sample.value;
+      }
+    }
+    if (series.isEmpty()) {
+      return;
+    }
+    writeHeader(family.name, family.help, isGauge ? GAUGE_HISTOGRAM : HISTOGRAM);
+    for (Series s : series.values()) {
+      beginHistogram(s.labelNames, s.labelValues);
+      for (int i = 0; i < s.bounds.size(); ++i) {
+        encodeBucket((long) (double) s.values.get(i), s.bounds.get(i), s.exemplars.get(i));
+      }
+      endHistogram((long) s.count, s.sum);
+    }
+  }
+
+  private void encodeSummary(MetricFamilySamples family) {
+    String countName = family.name + "_count";
+    String sumName = family.name + "_sum";
+    Map<List<String>, Series> series = new LinkedHashMap<>();
+    for (Sample sample : family.samples) {
+      if (sample.name.equals(family.name)) {
+        Series s = series(series, sample, "quantile");
+        s.bounds.add(Double.parseDouble(s.boundLabel));
+        s.values.add(sample.value);
+      } else if (sample.name.equals(countName)) {
+        series(series, sample, "quantile").count = sample.value;
+      } else if (sample.name.equals(sumName)) {
+        series(series, sample, "quantile").sum = sample.value;
+      }
+    }
+    if (series.isEmpty()) {
+      return;
+    }
+    writeHeader(family.name, family.help, SUMMARY);
+    for (Series s : series.values()) {
+      int metric = beginMessage(4);
+      writeLabels(s.labelNames, s.labelValues, "quantile");
+      int summary = beginMessage(4);
+      writeVarint(1, (long) s.count);
+      writeDouble(2, s.sum);
+      for (int i = 0; i < s.bounds.size(); ++i) {
+        int quantile = beginMessage(3);
+        writeDouble(1, s.bounds.get(i));
+        writeDouble(2, s.values.get(i));
+        endMessage(quantile);
+      }
+      endMessage(summary);
+      endMessage(metric);
+    }
+  }
+
+  /**
+   * The samples of a histogram or summary sharing label values, apart from the label holding the
+   * bucket bound or quantile.
+   */
+  private static class Series {
+    private final List<String> labelNames;
+    private final List<String> labelValues;
+    private final List<Double> bounds = new ArrayList<>();
+    private final List<Double> values = new ArrayList<>();
+    private final List<Exemplar> exemplars = new ArrayList<>();
+    private String boundLabel = "";
+    private double count;
+    private double sum;
+
+    private Series(List<String> labelNames, List<String> labelValues) {
+      this.labelNames = labelNames;
+      this.labelValues = labelValues;
+    }
+  }
+
+  /** Returns the series of the sample, and remembers the value of its bound label in it. */
+  private static Series series(Map<List<String>, Series> series, Sample sample, String boundName) {
+    List<String> key = new ArrayList<>(sample.labelValues.size());
+    String boundLabel = "";
+    for (int i = 0; i < sample.labelNames.size(); ++i) {
+      if (sample.labelNames.get(i).equals(boundName)) {
+        boundLabel = sample.labelValues.get(i);
+      } else {
+        key.add(sample.labelValues.get(i));
+      }
+    }
+    Series result =
+        series.computeIfAbsent(key, k -> new Series(sample.labelNames, sample.labelValues));
+    result.boundLabel = boundLabel;
+    return result;
+  }
+
+  private static boolean hasSample(MetricFamilySamples family, String name) {
+    for (Sample sample : family.samples) {
+      if (sample.name.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeLabels(List<String> names, List<String> values, String skippedName) {
+    for (int i = 0; i < names.size(); ++i) {
+      if (names.get(i).equals(skippedName)) {
+        continue;
+      }
+      writeLabel(1, names.get(i), values.get(i));
+    }
+  }
+
+  private void writeLabel(int field, String name, String value) {
+    int label = beginMessage(field);
+    writeString(1, name);
+    writeString(2, value);
+    endMessage(label);
+  }
+
+  private void writeExemplar(int field, Exemplar exemplar) {
+    int message = beginMessage(field);
+    for (int i = 0; i < exemplar.getNumberOfLabels(); ++i) {
+      writeLabel(1, exemplar.getLabelName(i), exemplar.getLabelValue(i));
+    }
+    writeDouble(2, exemplar.getValue());
+    Long timestampMs = exemplar.getTimestampMs();
+    if (timestampMs != null) {
+      int timestamp = beginMessage(3);
+      writeVarint(1, Math.floorDiv(timestampMs, 1000L));
+      writeVarint(2, Math.floorMod(timestampMs, 1000L) * 1_000_000L);
+      endMessage(timestamp);
+    }
+    endMessage(message);
+  }
+
+  private void writeTimestamp(Long timestampMs) {
+    if (timestampMs != null) {
+      writeVarint(6, timestampMs);
+    }
+  }
+
+  /**
+   * Starts a nested message in the given field. Returns the position to pass to {@link
+   * #endMessage} once the message is written.
+   */
+  private int beginMessage(int field) {
+    writeTag(field, LENGTH_DELIMITED);
+    return position;
+  }
+
+  /** Prepends the length to the nested message which started at the supplied position. */
+  private void endMessage(int start) {
+    int length = position - start;
+    int lengthSize = varintSize(length);
+    ensureCapacity(lengthSize);
+    System.arraycopy(buffer, start, buffer, start + lengthSize, length);
+    int end = position;
+    position = start;
+    writeRawVarint(length);
+    position = end + lengthSize;
+  }
+
+  private void writeTag(int field, int wireType) {
+    writeRawVarint((field << 3) | wireType);
+  }
+
+  private void writeVarint(int field, long value) {
+    writeTag(field, VARINT);
+    writeRawVarint(value);
+  }
+
+  private void writeDouble(int field, double value) {
+    writeTag(field, FIXED64);
+    ensureCapacity(8);
+    long bits = Double.doubleToRawLongBits(value);
+    for (int i = 0; i < 8; ++i) {
+      buffer[position++] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  private void writeString(int field, String value) {
+    writeTag(field, LENGTH_DELIMITED);
+    int length = value.length();
+    boolean isAscii = true;
+    for (int i = 0; i < length && isAscii; ++i) {
+      isAscii = value.charAt(i) < 0x80;
+    }
+    if (isAscii) {
+      writeRawVarint(length);
+      ensureCapacity(length);
+      for (int i = 0; i < length; ++i) {
+        buffer[position++] = (byte) value.charAt(i);
+      }
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeRawVarint(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+  }
+
+  private void writeRawVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  private static int varintSize(int value) {
+    int result = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      ++result;
+    }
+    return result;
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (position + bytes > buffer.length) {
+      byte[] larger = new byte[Math.max(buffer.length * 2, position + bytes)];
+      System.arraycopy(buffer, 0, larger, 0, position);
+      buffer = larger;
+    }
+  }
+}
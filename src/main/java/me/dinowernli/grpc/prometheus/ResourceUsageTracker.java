@@ -0,0 +1,90 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates the CPU time used and the bytes allocated by the threads running the callbacks of a
+ * single rpc.
+ *
+ * <p>Sections can be nested, e.g., a handler sending a message from within {@code onHalfClose()}.
+ * Only the outermost section on a thread is measured, so that nothing is counted twice.
+ */
+class ResourceUsageTracker {
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  /** Set on threads which are currently inside a measured section. */
+  private static final ThreadLocal<Boolean> isInSection = ThreadLocal.withInitial(() -> false);
+
+  private final boolean isMeasuringCpuTime;
+  private final boolean isMeasuringAllocations;
+  private final AtomicLong cpuNanos = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
+  ResourceUsageTracker(boolean isMeasuringCpuTime, boolean isMeasuringAllocations) {
+    this.isMeasuringCpuTime = isMeasuringCpuTime;
+    this.isMeasuringAllocations = isMeasuringAllocations;
+  }
+
+  /** Returns whether the JVM is able to measure the CPU time of the current thread. */
+  static boolean isCpuTimeSupported() {
+    return threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+  }
+
+  /** Returns whether the JVM is able to measure the bytes allocated by the current thread. */
+  static boolean isAllocationSupported() {
+    if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+      return false;
+    }
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+    return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled();
+  }
+
+  /** Runs the supplied section, adding the resources it used to this rpc. */
+  void measure(Runnable section) {
+    if (isInSection.get()) {
+      section.run();
+      return;
+    }
+    isInSection.set(true);
+    long startCpuNanos = isMeasuringCpuTime ? threadMXBean.getCurrentThreadCpuTime() : 0;
+    long startAllocatedBytes = isMeasuringAllocations ? currentThreadAllocatedBytes() : 0;
+    try {
+      section.run();
+    } finally {
+      if (isMeasuringCpuTime) {
+        cpuNanos.addAndGet(threadMXBean.getCurrentThreadCpuTime() - startCpuNanos);
+      }
+      if (isMeasuringAllocations) {
+        allocatedBytes.addAndGet(currentThreadAllocatedBytes() - startAllocatedBytes);
+      }
+      isInSection.set(false);
+    }
+  }
+
+  boolean isMeasuringCpuTime() {
+    return isMeasuringCpuTime;
+  }
+
+  boolean isMeasuringAllocations() {
+    return isMeasuringAllocations;
+  }
+
+  /** Returns the CPU time used by all sections measured so far. */
+  long cpuNanos() {
+    return cpuNanos.get();
+  }
+
+  /** Returns the bytes allocated by all sections measured so far. */
+  long allocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  private static long currentThreadAllocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) threadMXBean)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,192 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Status;
+import java.util.Optional;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits Java Flight Recorder events for the lifecycle of a single rpc, so that rpcs can be lined up
+ * with the other events of a recording, e.g., GC pauses or lock contention.
+ *
+ * <p>Events are only filled in and written if a recording has enabled them, so the cost of an rpc
+ * without any such recording is a couple of allocations and checks.
+ */
+class RpcEvents {
+  private static final String CATEGORY = "gRPC";
+
+  private final GrpcMethod method;
+  private final String side;
+  private final Optional<MessageSizes> messageSizes;
+  private final CallEvent callEvent;
+
+  /**
+   * Starts the call event of an rpc on the supplied side, i.e., "server" or "client". The sizes of
+   * messages are taken from the supplied tracker, if any.
+   */
+  RpcEvents(GrpcMethod method, String side, Optional<MessageSizes> messageSizes) {
+    this.method = method;
+    this.side = side;
+    this.messageSizes = messageSizes;
+    this.callEvent = new CallEvent();
+    callEvent.begin();
+  }
+
+  /** Called once a message has been sent. */
+  void onMessageSent() {
+    emitMessage("sent", messageSizes.isPresent() ? messageSizes.get().takeOutbound() : -1);
+  }
+
+  /** Called before a received message is delivered. */
+  void onMessageReceived() {
+    emitMessage("received", messageSizes.isPresent() ? messageSizes.get().takeInbound() : -1);
+  }
+
+  void onCancelled() {
+    CancelEvent event = new CancelEvent();
+    if (event.isEnabled()) {
+      event.side = side;
+      event.service = method.serviceName();
+      event.method = method.methodName();
+      event.commit();
+    }
+  }
+
+  void onClose(Status.Code code) {
+    callEvent.end();
+    if (callEvent.shouldCommit()) {
+      callEvent.side = side;
+      callEvent.service = method.serviceName();
+      callEvent.method = method.methodName();
+      callEvent.type = method.type();
+      callEvent.code = code.toString();
+      callEvent.commit();
+    }
+  }
+
+  /**
+   * Emits an event for a message of the supplied method which got parsed or serialized, with a
+   * negative size if the size of the message is not known.
+   */
+  static void emitMarshalled(
+      GrpcMethod method, String side, String direction, long nanos, int bytes) {
+    MarshalEvent event = new MarshalEvent();
+    if (event.isEnabled()) {
+      event.side = side;
+      event.service = method.serviceName();
+      event.method = method.methodName();
+      event.direction = direction;
+      event.nanos = nanos;
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+
+  /** Emits an event for a message, with a negative size if the size of the message is not known. */
+  private void emitMessage(String direction, long bytes) {
+    MessageEvent event = new MessageEvent();
+    if (event.isEnabled()) {
+      event.side = side;
+      event.service = method.serviceName();
+      event.method = method.methodName();
+      event.direction = direction;
+      event.size = bytes;
+      event.commit();
+    }
+  }
+
+  @Name("me.dinowernli.grpc.Call")
+  @Label("gRPC Call")
+  @Description("An rpc, from being started until being closed.")
+  @Category(CATEGORY)
+  static class CallEvent extends Event {
+    @Label("Side")
+    String side;
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    String method;
+
+    @Label("Type")
+    String type;
+
+    @Label("Code")
+    String code;
+  }
+
+  @Name("me.dinowernli.grpc.Message")
+  @Label("gRPC Message")
+  @Description("A message sent or received as part of an rpc.")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class MessageEvent extends Event {
+    @Label("Side")
+    String side;
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    String method;
+
+    @Label("Direction")
+    String direction;
+
+    @Label("Size")
+    @Description("The uncompressed size of the message, or -1 if it is not known.")
+    @DataAmount(DataAmount.BYTES)
+    long size;
+  }
+
+  @Name("me.dinowernli.grpc.Cancel")
+  @Label("gRPC Cancel")
+  @Description("An rpc getting cancelled.")
+  @Category(CATEGORY)
+  static class CancelEvent extends Event {
+    @Label("Side")
+    String side;
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    String method;
+  }
+
+  @Name("me.dinowernli.grpc.Marshal")
+  @Label("gRPC Marshal")
+  @Description("A message being parsed or serialized.")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class MarshalEvent extends Event {
+    @Label("Side")
+    String side;
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    String method;
+
+    @Label("Direction")
+    String direction;
+
+    @Label("Marshalling Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long nanos;
+
+    @Label("Size")
+    @DataAmount
+    int bytes;
+  }
+}
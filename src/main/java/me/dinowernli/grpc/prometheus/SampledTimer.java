@@ -0,0 +1,43 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Times a sample of the runs of some code, such as the {@code onMessage} callbacks of the listener
+ * of an rpc, and hands the time each sampled run took to a recorder.
+ */
+class SampledTimer {
+  /** A timer which never times anything. */
+  static final SampledTimer NONE = new SampledTimer(0, seconds -> {});
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final double samplingRate;
+  private final DoubleConsumer recorder;
+
+  /**
+   * Creates a timer which times the given fraction of runs, where 0 turns the timing off, and
+   * passes their time in seconds to the supplied recorder.
+   */
+  SampledTimer(double samplingRate, DoubleConsumer recorder) {
+    this.samplingRate = samplingRate;
+    this.recorder = recorder;
+  }
+
+  /** Runs the supplied code, timing it if the run is part of the sample. */
+  void run(Runnable code) {
+    if (samplingRate == 0 || ThreadLocalRandom.current().nextDouble() >= samplingRate) {
+      code.run();
+      return;
+    }
+    long startNanos = System.nanoTime();
+    try {
+      code.run();
+    } finally {
+      recorder.accept((System.nanoTime() - startNanos) / NANOS_PER_SECOND);
+    }
+  }
+}
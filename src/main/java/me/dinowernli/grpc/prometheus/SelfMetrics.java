@@ -0,0 +1,188 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Prometheus metric definitions used to monitor the cost of the monitoring itself, i.e., the time
+ * spent by the interceptors and the number of series and time spent collecting them.
+ */
+class SelfMetrics {
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private static final String INTERCEPT_OPERATION = "intercept";
+  private static final String RECORD_OPERATION = "record";
+
+  private static final Supplier<Histogram.Builder> overheadSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc_prometheus")
+              .name("overhead_seconds")
+              .labelNames("operation")
+              .buckets(1e-7, 2.5e-7, 5e-7, 1e-6, 2.5e-6, 5e-6, 1e-5, 2.5e-5, 5e-5, 1e-4, 1e-3)
+              .help(
+                  "Histogram of the time (seconds) spent by the interceptor monitoring sampled "
+                      + "RPCs, per interception or recorded event.");
+
+  private static final Supplier<Counter.Builder> estimatedOverheadSecondsBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc_prometheus")
+              .name("estimated_overhead_seconds")
+              .labelNames("operation")
+              .help("Total time (seconds) spent by the interceptor monitoring RPCs, extrapolated.");
+
+  private static final Supplier<Gauge.Builder> seriesBuilder =
+      () ->
+          Gauge.build()
+              .namespace("grpc_prometheus")
+              .name("series")
+              .labelNames("metric")
+              .help("Number of series of a metric, as of the last time it was collected.");
+
+  private static final Supplier<Counter.Builder> collectSecondsBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc_prometheus")
+              .name("collect_seconds")
+              .labelNames("metric")
+              .help("Total time (seconds) spent collecting a metric.");
+
+  private final double samplingRate;
+  private final Histogram overheadSeconds;
+  private final Counter estimatedOverheadSeconds;
+  private final Gauge series;
+  private final Counter collectSeconds;
+
+  /**
+   * Creates the metrics of a single interceptor. The subsystem tells apart the metrics of server
+   * and client interceptors using the same registry.
+   */
+  SelfMetrics(Configuration configuration, String subsystem) {
+    CollectorRegistry registry = configuration.getCollectorRegistry();
+    this.samplingRate = configuration.getSelfMetricsSamplingRate();
+    this.overheadSeconds = overheadSecondsBuilder.get().subsystem(subsystem).register(registry);
+    this.estimatedOverheadSeconds =
+        estimatedOverheadSecondsBuilder.get().subsystem(subsystem).register(registry);
+    this.series = seriesBuilder.get().subsystem(subsystem).register(registry);
+    this.collectSeconds = collectSecondsBuilder.get().subsystem(subsystem).register(registry);
+  }
+
+  private SelfMetrics(SelfMetrics metrics, double samplingRate) {
+    this.samplingRate = samplingRate;
+    this.overheadSeconds = metrics.overheadSeconds;
+    this.estimatedOverheadSeconds = metrics.estimatedOverheadSeconds;
+    this.series = metrics.series;
+    this.collectSeconds = metrics.collectSeconds;
+  }
+
+  /** Returns self metrics recording into the same metrics, sampling at the supplied rate. */
+  SelfMetrics withSamplingRate(double samplingRate) {
+    return samplingRate == this.samplingRate ? this : new SelfMetrics(this, samplingRate);
+  }
+
+  /** Returns the object measuring the overhead of a new rpc, which only measures sampled rpcs. */
+  Overhead overheadForCall() {
+    return ThreadLocalRandom.current().nextDouble() < samplingRate
+        ? new Overhead(this)
+        : Overhead.NONE;
+  }
+
+  /** Returns a collector which records the time spent by the supplied one, and its series. */
+  Collector measured(Collector collector) {
+    return new MeasuredCollector(collector, this);
+  }
+
+  private void recordOverhead(String operation, long nanos) {
+    double seconds = nanos / NANOS_PER_SECOND;
+    overheadSeconds.labels(operation).observe(seconds);
+    estimatedOverheadSeconds.labels(operation).inc(seconds / samplingRate);
+  }
+
+  /**
+   * Measures the time spent monitoring a single rpc. Rpcs which are not sampled share an instance
+   * which does nothing, so measuring them costs a single virtual call.
+   */
+  static class Overhead {
+    static final Overhead NONE = new Overhead(null);
+
+    private final SelfMetrics selfMetrics;
+
+    private Overhead(SelfMetrics selfMetrics) {
+      this.selfMetrics = selfMetrics;
+    }
+
+    /** Returns the start of a measurement, to be passed to one of the stop methods. */
+    long start() {
+      return selfMetrics == null ? 0 : System.nanoTime();
+    }
+
+    void stopIntercept(long startNanos) {
+      if (selfMetrics != null) {
+        selfMetrics.recordOverhead(INTERCEPT_OPERATION, System.nanoTime() - startNanos);
+      }
+    }
+
+    void stopRecord(long startNanos) {
+      if (selfMetrics != null) {
+        selfMetrics.recordOverhead(RECORD_OPERATION, System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  private static class MeasuredCollector extends Collector implements Collector.Describable {
+    private final Collector delegate;
+    private final SelfMetrics selfMetrics;
+
+    private MeasuredCollector(Collector delegate, SelfMetrics selfMetrics) {
+      this.delegate = delegate;
+      this.selfMetrics = selfMetrics;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      long startNanos = System.nanoTime();
+      List<MetricFamilySamples> result = delegate.collect();
+      double seconds = (System.nanoTime() - startNanos) / NANOS_PER_SECOND;
+      for (MetricFamilySamples family : result) {
+        selfMetrics.collectSeconds.labels(family.name).inc(seconds / result.size());
+        selfMetrics.series.labels(family.name).set(countSeries(family));
+      }
+      return result;
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+      return delegate instanceof Describable
+          ? ((Describable) delegate).describe()
+          : delegate.collect();
+    }
+
+    /**
+     * Counts the series of a counter or histogram, using a sample which each series has once. The
+     * samples of off-heap collectors are not created for this.
+     */
+    private static int countSeries(MetricFamilySamples family) {
+      if (family instanceof OffHeapCollector.Snapshot) {
+        return ((OffHeapCollector<?>.Snapshot) family).seriesCount();
+      }
+      String seriesSampleName =
+          family.type == Type.HISTOGRAM ? family.name + "_count" : family.name + "_total";
+      int result = 0;
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        if (sample.name.equals(seriesSampleName)) {
+          ++result;
+        }
+      }
+      return result;
+    }
+  }
+}
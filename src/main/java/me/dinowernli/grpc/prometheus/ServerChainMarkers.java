@@ -0,0 +1,208 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.prometheus.client.Histogram;
+import java.util.Optional;
+import java.util.function.Supplier;
+import me.dinowernli.grpc.prometheus.MetricStorage.Family;
+import me.dinowernli.grpc.prometheus.MetricStorage.HistogramSeries;
+
+/**
+ * A pair of server interceptors which measure the time spent in the interceptors placed between
+ * them, e.g., for authentication or tracing. The head has to be called first and the tail last,
+ * which means that the head comes last when using {@code ServerInterceptors.intercept}:
+ *
+ * <pre>{@code
+ * ServerChainMarkers markers = ServerChainMarkers.create(configuration);
+ * ServerInterceptors.intercept(
+ *     service, markers.tail(), monitoringInterceptor, authInterceptor, markers.head());
+ * }</pre>
+ *
+ * <p>The time is recorded per method for starting the rpc and for each callback of the listener.
+ * Only the collector registry, views and storage of the configuration are used.
+ */
+public class ServerChainMarkers {
+  private static final String[] labelNames = {
+    "grpc_type", "grpc_service", "grpc_method", "callback"
+  };
+
+  private static final Supplier<Histogram.Builder> serverInterceptorChainSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("interceptor_chain_seconds")
+              .exponentialBuckets(1e-6, 4, 12)
+              .help(
+                  "Histogram of the time (seconds) spent in the server interceptors between the "
+                      + "chain markers, per callback.");
+
+  /** The timer of the rpc being started on the current thread, set by the head for the tail. */
+  private static final ThreadLocal<ChainTimer> startingCall = new ThreadLocal<>();
+
+  private final Family<HistogramSeries> chainSeconds;
+
+  /** Creates markers which record their metrics as configured. */
+  public static ServerChainMarkers create(Configuration configuration) {
+    MetricStorage storage =
+        MetricStorage.forServer(
+            configuration, Optional.empty(), new MetricStorage.Registrations());
+    return new ServerChainMarkers(
+        storage.histogram(
+            serverInterceptorChainSecondsBuilder,
+            labelNames,
+            configuration.getCollectorRegistry()));
+  }
+
+  private ServerChainMarkers(Family<HistogramSeries> chainSeconds) {
+    this.chainSeconds = chainSeconds;
+  }
+
+  /** Returns the interceptor to be called before the interceptors to measure. */
+  public ServerInterceptor head() {
+    return new Head();
+  }
+
+  /** Returns the interceptor to be called after the interceptors to measure. */
+  public ServerInterceptor tail() {
+    return new Tail();
+  }
+
+  private class Head implements ServerInterceptor {
+    @Override
+    public <R, S> ServerCall.Listener<R> interceptCall(
+        ServerCall<R, S> call, Metadata requestMetadata, ServerCallHandler<R, S> next) {
+      ChainTimer timer = new ChainTimer(chainSeconds, GrpcMethod.of(call.getMethodDescriptor()));
+      ChainTimer previous = startingCall.get();
+      startingCall.set(timer);
+      timer.beginInbound();
+      try {
+        return new HeadListener<>(next.startCall(call, requestMetadata), timer);
+      } finally {
+        timer.clearInbound();
+        startingCall.set(previous);
+      }
+    }
+  }
+
+  private static class Tail implements ServerInterceptor {
+    @Override
+    public <R, S> ServerCall.Listener<R> interceptCall(
+        ServerCall<R, S> call, Metadata requestMetadata, ServerCallHandler<R, S> next) {
+      ChainTimer timer = startingCall.get();
+      if (timer == null) {
+        // No head, or the rpc was started on another thread than the head ran on.
+        return next.startCall(call, requestMetadata);
+      }
+      startingCall.remove();
+      timer.endInbound("start_call");
+      return new TailListener<>(next.startCall(call, requestMetadata), timer);
+    }
+  }
+
+  private static class HeadListener<R>
+      extends ForwardingServerCallListener.SimpleForwardingServerCallListener<R> {
+    private final ChainTimer timer;
+
+    private HeadListener(ServerCall.Listener<R> delegate, ChainTimer timer) {
+      super(delegate);
+      this.timer = timer;
+    }
+
+    @Override
+    public void onMessage(R message) {
+      timer.beginInbound();
+      try {
+        super.onMessage(message);
+      } finally {
+        timer.clearInbound();
+      }
+    }
+
+    @Override
+    public void onHalfClose() {
+      timer.beginInbound();
+      try {
+        super.onHalfClose();
+      } finally {
+        timer.clearInbound();
+      }
+    }
+
+    @Override
+    public void onCancel() {
+      timer.beginInbound();
+      try {
+        super.onCancel();
+      } finally {
+        timer.clearInbound();
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      timer.beginInbound();
+      try {
+        super.onComplete();
+      } finally {
+        timer.clearInbound();
+      }
+    }
+
+    @Override
+    public void onReady() {
+      timer.beginInbound();
+      try {
+        super.onReady();
+      } finally {
+        timer.clearInbound();
+      }
+    }
+  }
+
+  private static class TailListener<R>
+      extends ForwardingServerCallListener.SimpleForwardingServerCallListener<R> {
+    private final ChainTimer timer;
+
+    private TailListener(ServerCall.Listener<R> delegate, ChainTimer timer) {
+      super(delegate);
+      this.timer = timer;
+    }
+
+    @Override
+    public void onMessage(R message) {
+      timer.endInbound("on_message");
+      super.onMessage(message);
+    }
+
+    @Override
+    public void onHalfClose() {
+      timer.endInbound("on_half_close");
+      super.onHalfClose();
+    }
+
+    @Override
+    public void onCancel() {
+      timer.endInbound("on_cancel");
+      super.onCancel();
+    }
+
+    @Override
+    public void onComplete() {
+      timer.endInbound("on_complete");
+      super.onComplete();
+    }
+
+    @Override
+    public void onReady() {
+      timer.endInbound("on_ready");
+      super.onReady();
+    }
+  }
+}
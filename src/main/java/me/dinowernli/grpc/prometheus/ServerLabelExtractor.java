@@ -0,0 +1,45 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+import java.util.function.Function;
+
+/**
+ * Extracts the value of a custom label for an rpc handled by the server. Install extractors using
+ * {@link Configuration#withServerLabel(String, ServerLabelExtractor)}.
+ *
+ * <p>Extractors are called once per rpc, when the server interceptor sees the rpc. To use values
+ * which other interceptors put into the {@link Context}, those interceptors have to run before the
+ * monitoring interceptor.
+ */
+@FunctionalInterface
+public interface ServerLabelExtractor {
+  /** Returns the label value for an rpc, or "" if there is none. */
+  String extract(Metadata headers, Context context);
+
+  /**
+   * Returns an extractor which passes the values of this one through the supplied normalizer, e.g.,
+   * to collapse a user agent into the name of its family. Results are cached for a bounded number
+   * of distinct values, so the normalizer should be a pure function.
+   */
+  default ServerLabelExtractor normalized(Function<String, String> normalizer) {
+    MemoizedNormalizer memoized = new MemoizedNormalizer(normalizer);
+    return (headers, context) -> memoized.apply(extract(headers, context));
+  }
+
+  /** Returns an extractor for the value of a request header. */
+  static ServerLabelExtractor header(String headerName) {
+    HeaderLabel header = new HeaderLabel(headerName);
+    return (headers, context) -> header.value(headers);
+  }
+
+  /** Returns an extractor for the string form of a value in the context of the rpc. */
+  static ServerLabelExtractor contextKey(Context.Key<?> key) {
+    return (headers, context) -> {
+      Object value = key.get(context);
+      return value == null ? "" : value.toString();
+    };
+  }
+}
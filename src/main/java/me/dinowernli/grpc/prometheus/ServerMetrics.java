@@ -4,19 +4,22 @@ package me.dinowernli.grpc.prometheus;
 
 import static me.dinowernli.grpc.prometheus.Labels.addLabels;
 import static me.dinowernli.grpc.prometheus.Labels.asArray;
-import static me.dinowernli.grpc.prometheus.Labels.customLabels;
-import static me.dinowernli.grpc.prometheus.Labels.metadataKeys;
 
+import io.grpc.Context;
 import io.grpc.Metadata;
-import io.grpc.Metadata.Key;
 import io.grpc.Status.Code;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Histogram;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
+import me.dinowernli.grpc.prometheus.MetricStorage.CounterSeries;
+import me.dinowernli.grpc.prometheus.MetricStorage.Family;
+import me.dinowernli.grpc.prometheus.MetricStorage.HistogramSeries;
 
 /**
  * Prometheus metric definitions used for server-side monitoring of grpc services.
@@ -25,101 +28,326 @@ import java.util.Optional;
  * definition and collection registry.
  */
 class ServerMetrics {
+  private static final double NANOS_PER_SECOND = 1e9;
+
   private static final List<String> defaultRequestLabels =
       Arrays.asList("grpc_type", "grpc_service", "grpc_method");
 
   private static final String STATUS_CODE_LABEL = "grpc_code";
 
+  private static final String RECEIVE_PHASE = "receive";
+  private static final String HANDLE_PHASE = "handle";
+  private static final String SEND_PHASE = "send";
+
   private static final List<String> defaultResponseLabels =
       Arrays.asList("grpc_type", "grpc_service", "grpc_method", "code", STATUS_CODE_LABEL);
 
-  private static final Counter.Builder serverStartedBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("server")
-          .name("started")
-          .help("Total number of RPCs started on the server.");
-
-  private static final Counter.Builder serverHandledBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("server")
-          .name("handled")
-          // TODO: The "code" label should be deprecated in a future major release. (See also below
-          // in recordServerHandled().)
-          .help("Total number of RPCs completed on the server, regardless of success or failure.");
-
-  private static final Histogram.Builder serverHandledLatencySecondsBuilder =
-      Histogram.build()
-          .namespace("grpc")
-          .subsystem("server")
-          .name("handled_latency_seconds")
-          .help(
-              "Histogram of response latency (seconds) of gRPC that had been application-level "
-                  + "handled by the server.");
-
-  private static final Counter.Builder serverStreamMessagesReceivedBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("server")
-          .name("msg_received")
-          .help("Total number of stream messages received from the client.");
-
-  private static final Counter.Builder serverStreamMessagesSentBuilder =
-      Counter.build()
-          .namespace("grpc")
-          .subsystem("server")
-          .name("msg_sent")
-          .help("Total number of stream messages sent by the server.");
-
-  private final List<Key<String>> labelHeaderKeys;
-  private final Counter serverStarted;
-  private final Counter serverHandled;
-  private final Counter serverStreamMessagesReceived;
-  private final Counter serverStreamMessagesSent;
-  private final Optional<Histogram> serverHandledLatencySeconds;
+  private static final Supplier<Counter.Builder> serverStartedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("started")
+              .help("Total number of RPCs started on the server.");
+
+  private static final Supplier<Counter.Builder> serverHandledBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("handled")
+              // TODO: The "code" label should be deprecated in a future major release. (See also
+              // below in recordServerHandled().)
+              .help(
+                  "Total number of RPCs completed on the server, regardless of success or "
+                      + "failure.");
+
+  private static final Supplier<Histogram.Builder> serverHandledLatencySecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("handled_latency_seconds")
+              .help(
+                  "Histogram of response latency (seconds) of gRPC that had been application-level "
+                      + "handled by the server.");
+
+  private static final Supplier<Histogram.Builder> serverStartDelaySecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("start_delay_seconds")
+              .help(
+                  "Histogram of the delay (seconds) between the transport receiving an rpc and the "
+                      + "rpc being started on the server executor.");
+
+  private static final Supplier<Counter.Builder> serverStreamMessagesReceivedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("msg_received")
+              .help("Total number of stream messages received from the client.");
+
+  private static final Supplier<Counter.Builder> serverStreamMessagesSentBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("msg_sent")
+              .help("Total number of stream messages sent by the server.");
+
+  private static final Supplier<Histogram.Builder> serverNotReadySecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("not_ready_seconds")
+              .help(
+                  "Histogram of the time (seconds) rpcs spent with their stream not ready to "
+                      + "accept messages.");
+
+  private static final Supplier<Counter.Builder> serverNotReadyTransitionsBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("not_ready_transitions")
+              .help("Total number of times a stream was observed going from ready to not ready.");
+
+  private static final Supplier<Counter.Builder> serverStreamMessagesBufferedBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("msg_buffered")
+              .help("Total number of messages sent by the server while the stream was not ready.");
+
+  private static final Supplier<Counter.Builder> serverCancelledBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("cancelled")
+              .help("Total number of RPCs which got cancelled while being handled by the server.");
+
+  private static final Supplier<Counter.Builder> serverStreamMessagesSentAfterCancelBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("msg_sent_after_cancel")
+              .help("Total number of messages sent by the server after the RPC got cancelled.");
+
+  private static final Supplier<Histogram.Builder> serverWorkAfterCancelSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("work_after_cancel_seconds")
+              .help(
+                  "Histogram of the time (seconds) between an RPC getting cancelled and the "
+                      + "handler last sending a message or closing the RPC.");
+
+  private static final Supplier<Histogram.Builder> serverCpuSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("cpu_seconds")
+              .help("Histogram of the CPU time (seconds) used by the server for sampled RPCs.");
+
+  private static final Supplier<Counter.Builder> serverEstimatedCpuSecondsBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("estimated_cpu_seconds")
+              .help(
+                  "Total CPU time (seconds) used by the server for RPCs, extrapolated from "
+                      + "samples.");
+
+  private static final Supplier<Histogram.Builder> serverAllocatedBytesBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("allocated_bytes")
+              .exponentialBuckets(1024, 4, 10)
+              .help(
+                  "Histogram of the heap memory (bytes) allocated by the server for sampled RPCs.");
+
+  private static final Supplier<Counter.Builder> serverEstimatedAllocatedBytesBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("estimated_allocated_bytes")
+              .help("Total heap memory (bytes) allocated by the server for RPCs, extrapolated.");
+
+  private static final Supplier<Histogram.Builder> serverPhaseSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("phase_seconds")
+              .help(
+                  "Histogram of the time (seconds) rpcs spent receiving the request, handling it "
+                      + "until the first response message, and sending the response.");
+
+  private static final Supplier<Histogram.Builder> serverMsgHandlerSecondsBuilder =
+      () ->
+          Histogram.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("msg_handler_seconds")
+              .exponentialBuckets(1e-5, 4, 10)
+              .help(
+                  "Histogram of the time (seconds) spent in the listener handling sampled messages "
+                      + "received from the client.");
+
+  private static final Supplier<Counter.Builder> serverLatencyThresholdBuilder =
+      () ->
+          Counter.build()
+              .namespace("grpc")
+              .subsystem("server")
+              .name("latency_threshold")
+              .help(
+                  "Total number of RPCs completed on the server within (good) or slower than "
+                      + "(slow) each latency threshold (seconds).");
+
+  private final List<HeaderLabel> labelHeaders;
+  private final List<ServerLabelExtractor> labelExtractors;
+  private final Context context;
+  private final Family<CounterSeries> serverStarted;
+  private final Family<CounterSeries> serverHandled;
+  private final Family<CounterSeries> serverStreamMessagesReceived;
+  private final Family<CounterSeries> serverStreamMessagesSent;
+  private final Family<CounterSeries> serverCancelled;
+  private final Family<CounterSeries> serverStreamMessagesSentAfterCancel;
+  private final Optional<Family<HistogramSeries>> serverHandledLatencySeconds;
+  private final Optional<Family<HistogramSeries>> serverStartDelaySeconds;
+  private final Optional<Family<HistogramSeries>> serverWorkAfterCancelSeconds;
+  private final Optional<Family<HistogramSeries>> serverNotReadySeconds;
+  private final Optional<Family<CounterSeries>> serverNotReadyTransitions;
+  private final Optional<Family<CounterSeries>> serverStreamMessagesBuffered;
+  private final Optional<Family<HistogramSeries>> serverCpuSeconds;
+  private final Optional<Family<CounterSeries>> serverEstimatedCpuSeconds;
+  private final double cpuTimeSamplingRate;
+  private final Optional<Family<HistogramSeries>> serverAllocatedBytes;
+  private final Optional<Family<CounterSeries>> serverEstimatedAllocatedBytes;
+  private final double allocationSamplingRate;
   private final boolean isAddCodeLabelToHistograms;
+  private final Optional<LatencyThresholds.Series> serverLatencyThreshold;
+  private final Optional<Family<HistogramSeries>> serverPhaseSeconds;
+  private final Optional<Family<HistogramSeries>> serverMsgHandlerSeconds;
+  private final double messageHandlerSamplingRate;
 
   private final GrpcMethod method;
+  private final SelfMetrics.Overhead overhead;
+
+  /** The values of the custom labels of the rpc, extracted when first needed. */
+  private volatile List<String> customLabels;
 
   private ServerMetrics(
-      List<Key<String>> labelHeaderKeys,
+      List<HeaderLabel> labelHeaders,
+      List<ServerLabelExtractor> labelExtractors,
+      Context context,
       GrpcMethod method,
-      Counter serverStarted,
-      Counter serverHandled,
-      Counter serverStreamMessagesReceived,
-      Counter serverStreamMessagesSent,
-      Optional<Histogram> serverHandledLatencySeconds,
-      boolean isAddCodeLabelToHistograms) {
-    this.labelHeaderKeys = labelHeaderKeys;
+      SelfMetrics.Overhead overhead,
+      Family<CounterSeries> serverStarted,
+      Family<CounterSeries> serverHandled,
+      Family<CounterSeries> serverStreamMessagesReceived,
+      Family<CounterSeries> serverStreamMessagesSent,
+      Family<CounterSeries> serverCancelled,
+      Family<CounterSeries> serverStreamMessagesSentAfterCancel,
+      Optional<Family<HistogramSeries>> serverHandledLatencySeconds,
+      Optional<Family<HistogramSeries>> serverStartDelaySeconds,
+      Optional<Family<HistogramSeries>> serverWorkAfterCancelSeconds,
+      Optional<Family<HistogramSeries>> serverNotReadySeconds,
+      Optional<Family<CounterSeries>> serverNotReadyTransitions,
+      Optional<Family<CounterSeries>> serverStreamMessagesBuffered,
+      Optional<Family<HistogramSeries>> serverCpuSeconds,
+      Optional<Family<CounterSeries>> serverEstimatedCpuSeconds,
+      double cpuTimeSamplingRate,
+      Optional<Family<HistogramSeries>> serverAllocatedBytes,
+      Optional<Family<CounterSeries>> serverEstimatedAllocatedBytes,
+      double allocationSamplingRate,
+      boolean isAddCodeLabelToHistograms,
+      Optional<LatencyThresholds.Series> serverLatencyThreshold,
+      Optional<Family<HistogramSeries>> serverPhaseSeconds,
+      Optional<Family<HistogramSeries>> serverMsgHandlerSeconds,
+      double messageHandlerSamplingRate) {
+    this.labelHeaders = labelHeaders;
+    this.labelExtractors = labelExtractors;
+    this.context = context;
     this.method = method;
+    this.overhead = overhead;
     this.serverStarted = serverStarted;
     this.serverHandled = serverHandled;
     this.serverStreamMessagesReceived = serverStreamMessagesReceived;
     this.serverStreamMessagesSent = serverStreamMessagesSent;
+    this.serverCancelled = serverCancelled;
+    this.serverStreamMessagesSentAfterCancel = serverStreamMessagesSentAfterCancel;
     this.serverHandledLatencySeconds = serverHandledLatencySeconds;
+    this.serverStartDelaySeconds = serverStartDelaySeconds;
+    this.serverWorkAfterCancelSeconds = serverWorkAfterCancelSeconds;
+    this.serverNotReadySeconds = serverNotReadySeconds;
+    this.serverNotReadyTransitions = serverNotReadyTransitions;
+    this.serverStreamMessagesBuffered = serverStreamMessagesBuffered;
+    this.serverCpuSeconds = serverCpuSeconds;
+    this.serverEstimatedCpuSeconds = serverEstimatedCpuSeconds;
+    this.cpuTimeSamplingRate = cpuTimeSamplingRate;
+    this.serverAllocatedBytes = serverAllocatedBytes;
+    this.serverEstimatedAllocatedBytes = serverEstimatedAllocatedBytes;
+    this.allocationSamplingRate = allocationSamplingRate;
     this.isAddCodeLabelToHistograms = isAddCodeLabelToHistograms;
+    this.serverLatencyThreshold = serverLatencyThreshold;
+    this.serverPhaseSeconds = serverPhaseSeconds;
+    this.serverMsgHandlerSeconds = serverMsgHandlerSeconds;
+    this.messageHandlerSamplingRate = messageHandlerSamplingRate;
   }
 
   public void recordCallStarted(Metadata metadata) {
-    addLabels(serverStarted, customLabels(metadata, labelHeaderKeys), method).inc();
+    long startNanos = overhead.start();
+    addLabels(serverStarted, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   public void recordServerHandled(Code code, Metadata metadata) {
     // TODO: The "code" label should be deprecated in a future major release.
+    long startNanos = overhead.start();
     List<String> allLabels = new ArrayList<>();
     allLabels.add(code.toString());
     allLabels.add(code.toString());
-    allLabels.addAll(customLabels(metadata, labelHeaderKeys));
+    allLabels.addAll(customLabels(metadata));
     addLabels(serverHandled, allLabels, method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   public void recordStreamMessageSent(Metadata metadata) {
-    addLabels(serverStreamMessagesSent, customLabels(metadata, labelHeaderKeys), method).inc();
+    long startNanos = overhead.start();
+    addLabels(serverStreamMessagesSent, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   public void recordStreamMessageReceived(Metadata metadata) {
-    addLabels(serverStreamMessagesReceived, customLabels(metadata, labelHeaderKeys), method).inc();
+    long startNanos = overhead.start();
+    addLabels(serverStreamMessagesReceived, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
+  }
+
+  public void recordCancelled(Metadata metadata) {
+    long startNanos = overhead.start();
+    addLabels(serverCancelled, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
+  }
+
+  public void recordMessageSentAfterCancel(Metadata metadata) {
+    long startNanos = overhead.start();
+    addLabels(serverStreamMessagesSentAfterCancel, customLabels(metadata), method).inc();
+    overhead.stopRecord(startNanos);
   }
 
   /**
@@ -131,50 +359,245 @@ class ServerMetrics {
       return;
     }
 
+    long startNanos = overhead.start();
     final List<String> allLabels = new ArrayList<String>();
-    allLabels.addAll(customLabels(metadata, labelHeaderKeys));
+    allLabels.addAll(customLabels(metadata));
     if (isAddCodeLabelToHistograms) {
       allLabels.add(code.toString());
     }
 
     addLabels(this.serverHandledLatencySeconds.get(), allLabels, method).observe(latencySec);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include latency thresholds. Otherwise, this
+   * does nothing.
+   */
+  public void recordLatencyThresholds(double latencySec, Code code) {
+    if (!this.serverLatencyThreshold.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    this.serverLatencyThreshold.get().record(latencySec, code);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include phase metrics. Otherwise, this does
+   * nothing.
+   */
+  public void recordPhases(PhaseTracker tracker, Metadata metadata) {
+    if (!this.serverPhaseSeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> labels = new ArrayList<>(customLabels(metadata));
+    labels.add(RECEIVE_PHASE);
+    addLabels(this.serverPhaseSeconds.get(), labels, method)
+        .observe(tracker.receiveNanos() / NANOS_PER_SECOND);
+    labels.set(labels.size() - 1, HANDLE_PHASE);
+    addLabels(this.serverPhaseSeconds.get(), labels, method)
+        .observe(tracker.handleNanos() / NANOS_PER_SECOND);
+    if (tracker.hasSendPhase()) {
+      labels.set(labels.size() - 1, SEND_PHASE);
+      addLabels(this.serverPhaseSeconds.get(), labels, method)
+          .observe(tracker.sendNanos() / NANOS_PER_SECOND);
+    }
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include latency histograms. Otherwise, this
+   * does nothing.
+   */
+  public void recordStartDelay(double delaySec, Metadata metadata) {
+    if (!this.serverStartDelaySeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    addLabels(this.serverStartDelaySeconds.get(), customLabels(metadata), method)
+        .observe(delaySec);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Records the work the handler did after the rpc got cancelled. Only has any effect if
+   * monitoring is configured to include cancellation metrics. Otherwise, this does nothing.
+   */
+  public void recordWorkAfterCancel(CancellationTracker tracker, Metadata metadata) {
+    if (!this.serverWorkAfterCancelSeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    addLabels(this.serverWorkAfterCancelSeconds.get(), customLabels(metadata), method)
+        .observe(tracker.workAfterCancelNanos() / NANOS_PER_SECOND);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Returns the timer for the {@code onMessage} callbacks of an rpc with the supplied metadata,
+   * which times a sample of them if message handler metrics are included.
+   */
+  public SampledTimer messageHandlerTimer(Metadata metadata) {
+    return serverMsgHandlerSeconds.isPresent()
+        ? new SampledTimer(
+            messageHandlerSamplingRate,
+            handlerSec -> recordMessageHandlerTime(handlerSec, metadata))
+        : SampledTimer.NONE;
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include message handler metrics.
+   * Otherwise, this does nothing.
+   */
+  public void recordMessageHandlerTime(double handlerSec, Metadata metadata) {
+    if (!serverMsgHandlerSeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    addLabels(serverMsgHandlerSeconds.get(), customLabels(metadata), method).observe(handlerSec);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include flow control metrics. Otherwise,
+   * this does nothing.
+   */
+  public void recordFlowControl(FlowControlTracker tracker, Metadata metadata) {
+    if (!this.serverNotReadySeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> labels = customLabels(metadata);
+    addLabels(this.serverNotReadySeconds.get(), labels, method)
+        .observe(tracker.notReadyNanos() / NANOS_PER_SECOND);
+    if (tracker.notReadyTransitions() > 0) {
+      addLabels(this.serverNotReadyTransitions.get(), labels, method)
+          .inc(tracker.notReadyTransitions());
+    }
+    if (tracker.bufferedMessages() > 0) {
+      addLabels(this.serverStreamMessagesBuffered.get(), labels, method)
+          .inc(tracker.bufferedMessages());
+    }
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include CPU time metrics. Otherwise, this
+   * does nothing.
+   */
+  public void recordCpuTime(double cpuSec, Metadata metadata) {
+    if (!this.serverCpuSeconds.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> labels = customLabels(metadata);
+    addLabels(this.serverCpuSeconds.get(), labels, method).observe(cpuSec);
+    addLabels(this.serverEstimatedCpuSeconds.get(), labels, method)
+        .inc(cpuSec / cpuTimeSamplingRate);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Only has any effect if monitoring is configured to include allocation metrics. Otherwise, this
+   * does nothing.
+   */
+  public void recordAllocatedBytes(long bytes, Metadata metadata) {
+    if (!this.serverAllocatedBytes.isPresent()) {
+      return;
+    }
+    long startNanos = overhead.start();
+    List<String> labels = customLabels(metadata);
+    addLabels(this.serverAllocatedBytes.get(), labels, method).observe(bytes);
+    addLabels(this.serverEstimatedAllocatedBytes.get(), labels, method)
+        .inc(bytes / allocationSamplingRate);
+    overhead.stopRecord(startNanos);
+  }
+
+  /**
+   * Returns the values of the labels for headers, followed by the values of the labels computed by
+   * extractors. These are only computed once per rpc.
+   */
+  private List<String> customLabels(Metadata metadata) {
+    List<String> result = customLabels;
+    if (result == null) {
+      List<String> labels = new ArrayList<>(Labels.customLabels(metadata, labelHeaders));
+      for (ServerLabelExtractor extractor : labelExtractors) {
+        labels.add(extractor.extract(metadata, context));
+      }
+      result = Collections.unmodifiableList(labels);
+      customLabels = result;
+    }
+    return result;
   }
 
   /** Knows how to produce {@link ServerMetrics} instances for individual methods. */
   static class Factory {
-    private final List<Key<String>> labelHeaderKeys;
-    private final Counter serverStarted;
-    private final Counter serverHandled;
-    private final Counter serverStreamMessagesReceived;
-    private final Counter serverStreamMessagesSent;
-    private final Optional<Histogram> serverHandledLatencySeconds;
+    private final List<HeaderLabel> labelHeaders;
+    private final List<ServerLabelExtractor> labelExtractors;
+    private final Family<CounterSeries> serverStarted;
+    private final Family<CounterSeries> serverHandled;
+    private final Family<CounterSeries> serverStreamMessagesReceived;
+    private final Family<CounterSeries> serverStreamMessagesSent;
+    private final Family<CounterSeries> serverCancelled;
+    private final Family<CounterSeries> serverStreamMessagesSentAfterCancel;
+    private final Optional<Family<HistogramSeries>> serverHandledLatencySeconds;
+    private final Optional<Family<HistogramSeries>> serverStartDelaySeconds;
+    private final Optional<Family<HistogramSeries>> serverWorkAfterCancelSeconds;
+    private final Optional<Family<HistogramSeries>> serverNotReadySeconds;
+    private final Optional<Family<CounterSeries>> serverNotReadyTransitions;
+    private final Optional<Family<CounterSeries>> serverStreamMessagesBuffered;
+    private final Optional<Family<HistogramSeries>> serverCpuSeconds;
+    private final Optional<Family<CounterSeries>> serverEstimatedCpuSeconds;
+    private final double cpuTimeSamplingRate;
+    private final Optional<Family<HistogramSeries>> serverAllocatedBytes;
+    private final Optional<Family<CounterSeries>> serverEstimatedAllocatedBytes;
+    private final double allocationSamplingRate;
     private final boolean isAddCodeLabelToHistograms;
+    private final Optional<LatencyThresholds> serverLatencyThreshold;
+    private final Optional<Family<HistogramSeries>> serverPhaseSeconds;
+    private final Optional<Family<HistogramSeries>> serverMsgHandlerSeconds;
+    private final double messageHandlerSamplingRate;
+    private final Optional<SelfMetrics> selfMetrics;
+    private final Configuration configuration;
 
-    Factory(Configuration configuration) {
+    /**
+     * Creates the metrics for the supplied configuration, registering those which are not yet
+     * registered with the supplied registrations.
+     */
+    Factory(Configuration configuration, MetricStorage.Registrations registrations) {
       CollectorRegistry registry = configuration.getCollectorRegistry();
-      this.labelHeaderKeys = metadataKeys(configuration.getLabelHeaders());
-      this.serverStarted =
-          serverStartedBuilder
-              .labelNames(asArray(defaultRequestLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
+      this.configuration = configuration;
+      this.selfMetrics =
+          configuration.isIncludeSelfMetrics()
+              ? Optional.of(registrations.selfMetrics(configuration, "server"))
+              : Optional.empty();
+      MetricStorage storage = MetricStorage.forServer(configuration, selfMetrics, registrations);
+      List<String> customLabelNames = new ArrayList<>(configuration.getSanitizedLabelHeaders());
+      customLabelNames.addAll(configuration.getServerLabels().keySet());
+      String[] requestLabels = asArray(defaultRequestLabels, customLabelNames);
+      this.labelHeaders = HeaderLabel.forHeaders(configuration.getLabelHeaders());
+      this.labelExtractors = new ArrayList<>(configuration.getServerLabels().values());
+      this.serverStarted = storage.counter(serverStartedBuilder, requestLabels, registry);
       this.serverHandled =
-          serverHandledBuilder
-              .labelNames(asArray(defaultResponseLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
+          storage.counter(
+              serverHandledBuilder,
+              asArray(defaultResponseLabels, customLabelNames),
+              registry);
       this.serverStreamMessagesReceived =
-          serverStreamMessagesReceivedBuilder
-              .labelNames(asArray(defaultRequestLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
+          storage.counter(serverStreamMessagesReceivedBuilder, requestLabels, registry);
       this.serverStreamMessagesSent =
-          serverStreamMessagesSentBuilder
-              .labelNames(asArray(defaultRequestLabels, configuration.getSanitizedLabelHeaders()))
-              .register(registry);
+          storage.counter(serverStreamMessagesSentBuilder, requestLabels, registry);
+      this.serverCancelled = storage.counter(serverCancelledBuilder, requestLabels, registry);
+      this.serverStreamMessagesSentAfterCancel =
+          storage.counter(serverStreamMessagesSentAfterCancelBuilder, requestLabels, registry);
 
       if (configuration.isIncludeLatencyHistograms()) {
 
         List<String> labels = new ArrayList<String>();
         labels.addAll(defaultRequestLabels);
-        labels.addAll(configuration.getSanitizedLabelHeaders());
+        labels.addAll(customLabelNames);
 
         if (configuration.isAddCodeLabelToHistograms()) {
           labels.add(STATUS_CODE_LABEL);
@@ -183,28 +606,170 @@ class ServerMetrics {
 
         this.serverHandledLatencySeconds =
             Optional.of(
-                serverHandledLatencySecondsBuilder
-                    .buckets(configuration.getLatencyBuckets())
-                    .labelNames(labels.toArray(new String[0]))
-                    .register(registry));
+                storage.histogram(
+                    serverHandledLatencySecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    labels.toArray(new String[0]),
+                    registry));
 
+        this.serverStartDelaySeconds =
+            Optional.of(
+                storage.histogram(
+                    serverStartDelaySecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    requestLabels,
+                    registry));
       } else {
         this.serverHandledLatencySeconds = Optional.empty();
+        this.serverStartDelaySeconds = Optional.empty();
         this.isAddCodeLabelToHistograms = false;
       }
+
+      if (configuration.isIncludeCancellationMetrics()) {
+        this.serverWorkAfterCancelSeconds =
+            Optional.of(
+                storage.histogram(
+                    serverWorkAfterCancelSecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    requestLabels,
+                    registry));
+      } else {
+        this.serverWorkAfterCancelSeconds = Optional.empty();
+      }
+
+      if (configuration.isIncludeFlowControlMetrics()) {
+        this.serverNotReadySeconds =
+            Optional.of(
+                storage.histogram(
+                    serverNotReadySecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    requestLabels,
+                    registry));
+        this.serverNotReadyTransitions =
+            Optional.of(storage.counter(serverNotReadyTransitionsBuilder, requestLabels, registry));
+        this.serverStreamMessagesBuffered =
+            Optional.of(
+                storage.counter(serverStreamMessagesBufferedBuilder, requestLabels, registry));
+      } else {
+        this.serverNotReadySeconds = Optional.empty();
+        this.serverNotReadyTransitions = Optional.empty();
+        this.serverStreamMessagesBuffered = Optional.empty();
+      }
+
+      this.cpuTimeSamplingRate = configuration.getCpuTimeSamplingRate();
+      if (configuration.isIncludeCpuTimeMetrics()) {
+        this.serverCpuSeconds =
+            Optional.of(
+                storage.histogram(
+                    serverCpuSecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    requestLabels,
+                    registry));
+        this.serverEstimatedCpuSeconds =
+            Optional.of(storage.counter(serverEstimatedCpuSecondsBuilder, requestLabels, registry));
+      } else {
+        this.serverCpuSeconds = Optional.empty();
+        this.serverEstimatedCpuSeconds = Optional.empty();
+      }
+
+      this.allocationSamplingRate = configuration.getAllocationSamplingRate();
+      if (configuration.isIncludeAllocationMetrics()) {
+        this.serverAllocatedBytes =
+            Optional.of(storage.histogram(serverAllocatedBytesBuilder, requestLabels, registry));
+        this.serverEstimatedAllocatedBytes =
+            Optional.of(
+                storage.counter(serverEstimatedAllocatedBytesBuilder, requestLabels, registry));
+      } else {
+        this.serverAllocatedBytes = Optional.empty();
+        this.serverEstimatedAllocatedBytes = Optional.empty();
+      }
+
+      if (configuration.isIncludeLatencyThresholds()) {
+        this.serverLatencyThreshold =
+            Optional.of(
+                new LatencyThresholds(
+                    serverLatencyThresholdBuilder,
+                    configuration.getLatencyThresholds(),
+                    storage,
+                    registry));
+      } else {
+        this.serverLatencyThreshold = Optional.empty();
+      }
+
+      if (configuration.isIncludePhaseMetrics()) {
+        List<String> phaseLabels = new ArrayList<>(defaultRequestLabels);
+        phaseLabels.addAll(customLabelNames);
+        phaseLabels.add("phase");
+        this.serverPhaseSeconds =
+            Optional.of(
+                storage.histogram(
+                    serverPhaseSecondsBuilder,
+                    configuration.getLatencyBuckets(),
+                    phaseLabels.toArray(new String[0]),
+                    registry));
+      } else {
+        this.serverPhaseSeconds = Optional.empty();
+      }
+
+      this.messageHandlerSamplingRate = configuration.getMessageHandlerSamplingRate();
+      if (configuration.isIncludeMessageHandlerMetrics()) {
+        this.serverMsgHandlerSeconds =
+            Optional.of(storage.histogram(serverMsgHandlerSecondsBuilder, requestLabels, registry));
+      } else {
+        this.serverMsgHandlerSeconds = Optional.empty();
+      }
+    }
+
+    /** Returns the configuration which the metrics were created for. */
+    Configuration configuration() {
+      return configuration;
+    }
+
+    /**
+     * Returns the object measuring the overhead of monitoring a new rpc, which does nothing unless
+     * self metrics are enabled and the rpc is sampled.
+     */
+    SelfMetrics.Overhead overheadForCall() {
+      return selfMetrics.isPresent()
+          ? selfMetrics.get().overheadForCall()
+          : SelfMetrics.Overhead.NONE;
     }
 
-    /** Creates a {@link ServerMetrics} for the supplied gRPC method. */
-    ServerMetrics createMetricsForMethod(GrpcMethod grpcMethod) {
+    /**
+     * Creates a {@link ServerMetrics} for an rpc of the supplied gRPC method and context, whose
+     * recording time is measured by the supplied overhead.
+     */
+    ServerMetrics createMetricsForMethod(
+        GrpcMethod grpcMethod, Context context, SelfMetrics.Overhead overhead) {
       return new ServerMetrics(
-          labelHeaderKeys,
+          labelHeaders,
+          labelExtractors,
+          context,
           grpcMethod,
+          overhead,
           serverStarted,
           serverHandled,
           serverStreamMessagesReceived,
           serverStreamMessagesSent,
+          serverCancelled,
+          serverStreamMessagesSentAfterCancel,
           serverHandledLatencySeconds,
-          isAddCodeLabelToHistograms);
+          serverStartDelaySeconds,
+          serverWorkAfterCancelSeconds,
+          serverNotReadySeconds,
+          serverNotReadyTransitions,
+          serverStreamMessagesBuffered,
+          serverCpuSeconds,
+          serverEstimatedCpuSeconds,
+          cpuTimeSamplingRate,
+          serverAllocatedBytes,
+          serverEstimatedAllocatedBytes,
+          allocationSamplingRate,
+          isAddCodeLabelToHistograms,
+          serverLatencyThreshold.map(thresholds -> thresholds.forMethod(grpcMethod)),
+          serverPhaseSeconds,
+          serverMsgHandlerSeconds,
+          messageHandlerSamplingRate);
     }
   }
 }
@@ -0,0 +1,104 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Status;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+/** Describes a single completed rpc which was kept by a {@link SlowCallRecorder}. */
+public class SlowCall {
+  private final String serviceName;
+  private final String methodName;
+  private final long durationNanos;
+  private final Instant endTime;
+  private final Status.Code code;
+  private final Map<String, String> headers;
+  private final Optional<SocketAddress> peer;
+  private final int messagesReceived;
+  private final int messagesSent;
+
+  SlowCall(
+      String serviceName,
+      String methodName,
+      long durationNanos,
+      Instant endTime,
+      Status.Code code,
+      Map<String, String> headers,
+      Optional<SocketAddress> peer,
+      int messagesReceived,
+      int messagesSent) {
+    this.serviceName = serviceName;
+    this.methodName = methodName;
+    this.durationNanos = durationNanos;
+    this.endTime = endTime;
+    this.code = code;
+    this.headers = Collections.unmodifiableMap(headers);
+    this.peer = peer;
+    this.messagesReceived = messagesReceived;
+    this.messagesSent = messagesSent;
+  }
+
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  public String getMethodName() {
+    return methodName;
+  }
+
+  /** Returns the time between the rpc being started and it being closed. */
+  public Duration getDuration() {
+    return Duration.ofNanos(durationNanos);
+  }
+
+  /** Returns the time at which the rpc was closed. */
+  public Instant getEndTime() {
+    return endTime;
+  }
+
+  public Status.Code getCode() {
+    return code;
+  }
+
+  /** Returns the values of the headers the {@link SlowCallRecorder} was configured to record. */
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /** Returns the address of the other side of the rpc, if known. */
+  public Optional<SocketAddress> getPeer() {
+    return peer;
+  }
+
+  public int getMessagesReceived() {
+    return messagesReceived;
+  }
+
+  public int getMessagesSent() {
+    return messagesSent;
+  }
+
+  long durationNanos() {
+    return durationNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s/%s took %s, ended at %s with %s (peer: %s, headers: %s, received: %d, sent: %d)",
+        serviceName,
+        methodName,
+        getDuration(),
+        endTime,
+        code,
+        peer.map(SocketAddress::toString).orElse("unknown"),
+        headers,
+        messagesReceived,
+        messagesSent);
+  }
+}
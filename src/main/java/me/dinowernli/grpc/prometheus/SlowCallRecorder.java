@@ -0,0 +1,164 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.grpc.Metadata;
+import io.grpc.Metadata.Key;
+import io.grpc.Status;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the slowest recently completed rpcs of each method, so that the rpcs making up the tail of
+ * the latency histograms can be inspected.
+ *
+ * <p>For each method, the recorder keeps up to a fixed number of calls completed in the current
+ * time window and the one before. Calls which are faster than all the calls already kept for the
+ * current window are discarded after a single comparison, so normal calls pay almost nothing.
+ *
+ * <p>Install a recorder using {@link Configuration#withSlowCallRecorder(SlowCallRecorder)}. A
+ * recorder should not be shared between a server and a client interceptor, since it does not tell
+ * apart the two sides of a method.
+ */
+public class SlowCallRecorder {
+  private static final Comparator<SlowCall> BY_DURATION =
+      Comparator.comparingLong(SlowCall::durationNanos);
+
+  private final int callsPerMethod;
+  private final long windowNanos;
+  private final List<String> recordedHeaders;
+  private final List<Key<String>> recordedHeaderKeys;
+  private final ConcurrentMap<String, Reservoir> reservoirs;
+
+  /**
+   * Creates a recorder which keeps the given number of slowest calls per method and time window.
+   * The supplied headers are recorded along with each call kept.
+   */
+  public static SlowCallRecorder create(
+      int callsPerMethod, Duration window, List<String> recordedHeaders) {
+    if (callsPerMethod <= 0) {
+      throw new IllegalArgumentException("Must keep at least one call, got: " + callsPerMethod);
+    }
+    if (window.isNegative() || window.isZero()) {
+      throw new IllegalArgumentException("Window must be positive, got: " + window);
+    }
+    return new SlowCallRecorder(callsPerMethod, window.toNanos(), recordedHeaders);
+  }
+
+  private SlowCallRecorder(int callsPerMethod, long windowNanos, List<String> recordedHeaders) {
+    this.callsPerMethod = callsPerMethod;
+    this.windowNanos = windowNanos;
+    this.recordedHeaders = recordedHeaders;
+    this.recordedHeaderKeys = Labels.metadataKeys(recordedHeaders);
+    this.reservoirs = new ConcurrentHashMap<>();
+  }
+
+  /** Returns the slowest recent calls of all methods, slowest first. */
+  public List<SlowCall> slowestCalls() {
+    return reservoirs.values().stream()
+        .flatMap(r -> r.snapshot().stream())
+        .sorted(BY_DURATION.reversed())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Returns the slowest recent calls of the method with the supplied full name (of the form
+   * "package.Service/Method"), slowest first.
+   */
+  public List<SlowCall> slowestCalls(String fullMethodName) {
+    Reservoir reservoir = reservoirs.get(fullMethodName);
+    if (reservoir == null) {
+      return new ArrayList<>();
+    }
+    List<SlowCall> result = reservoir.snapshot();
+    result.sort(BY_DURATION.reversed());
+    return result;
+  }
+
+  /** Called once a call is done, with the tracker which was used to follow the call. */
+  void record(GrpcMethod method, CallTracker tracker, Status.Code code, Metadata headers) {
+    long nowNanos = System.nanoTime();
+    long durationNanos = tracker.elapsedNanos();
+    // A plain lookup first, since computeIfAbsent can lock the bin even if the method is present.
+    Reservoir reservoir = reservoirs.get(method.fullMethodName());
+    if (reservoir == null) {
+      reservoir = reservoirs.computeIfAbsent(method.fullMethodName(), m -> new Reservoir());
+    }
+    if (!reservoir.isCandidate(durationNanos, nowNanos)) {
+      return;
+    }
+
+    Map<String, String> headerValues = new LinkedHashMap<>();
+    for (int i = 0; i < recordedHeaderKeys.size(); ++i) {
+      String value = headers.get(recordedHeaderKeys.get(i));
+      if (value != null) {
+        headerValues.put(recordedHeaders.get(i), value);
+      }
+    }
+    reservoir.add(
+        new SlowCall(
+            method.serviceName(),
+            method.methodName(),
+            durationNanos,
+            Instant.now(),
+            code,
+            headerValues,
+            tracker.peer(),
+            tracker.messagesReceived(),
+            tracker.messagesSent()),
+        nowNanos);
+  }
+
+  /** Holds the slowest calls of a single method for the current and the previous time window. */
+  private class Reservoir {
+    private PriorityQueue<SlowCall> current = new PriorityQueue<>(BY_DURATION);
+    private PriorityQueue<SlowCall> previous = new PriorityQueue<>(BY_DURATION);
+    private volatile long currentStartNanos = System.nanoTime();
+
+    /** Calls no slower than this are not kept, unless the current window is over. */
+    private volatile long thresholdNanos = -1;
+
+    boolean isCandidate(long durationNanos, long nowNanos) {
+      return durationNanos > thresholdNanos || nowNanos - currentStartNanos >= windowNanos;
+    }
+
+    synchronized void add(SlowCall call, long nowNanos) {
+      maybeRotate(nowNanos);
+      if (current.size() < callsPerMethod) {
+        current.add(call);
+      } else if (call.durationNanos() > current.peek().durationNanos()) {
+        current.poll();
+        current.add(call);
+      }
+      thresholdNanos = current.size() < callsPerMethod ? -1 : current.peek().durationNanos();
+    }
+
+    synchronized List<SlowCall> snapshot() {
+      maybeRotate(System.nanoTime());
+      List<SlowCall> result = new ArrayList<>(current);
+      result.addAll(previous);
+      return result;
+    }
+
+    private void maybeRotate(long nowNanos) {
+      long elapsedNanos = nowNanos - currentStartNanos;
+      if (elapsedNanos < windowNanos) {
+        return;
+      }
+      // If more than one full window has passed, the calls of the current window are stale too.
+      previous = elapsedNanos < 2 * windowNanos ? current : new PriorityQueue<>(BY_DURATION);
+      current = new PriorityQueue<>(BY_DURATION);
+      currentStartNanos = nowNanos;
+      thresholdNanos = -1;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus;
+
+import io.prometheus.client.Collector;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports the metrics of another collector as aggregated by {@link MetricView}s, in addition to or
+ * instead of the raw metrics.
+ */
+class ViewCollector extends Collector implements Collector.Describable {
+  private final Collector delegate;
+  private final List<MetricView> views;
+
+  ViewCollector(Collector delegate, List<MetricView> views) {
+    this.delegate = delegate;
+    this.views = views;
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    return aggregate(delegate.collect());
+  }
+
+  @Override
+  public List<MetricFamilySamples> describe() {
+    return aggregate(
+        delegate instanceof Describable
+            ? ((Describable) delegate).describe()
+            : delegate.collect());
+  }
+
+  private List<MetricFamilySamples> aggregate(List<MetricFamilySamples> families) {
+    List<MetricFamilySamples> result = new ArrayList<>();
+    for (MetricFamilySamples family : families) {
+      if (family.type != Type.COUNTER && family.type != Type.HISTOGRAM) {
+        result.add(family);
+        continue;
+      }
+      boolean isRawReplaced = false;
+      List<MetricFamilySamples> aggregated = new ArrayList<>();
+      for (MetricView view : views) {
+        if (view.appliesTo(family.name)) {
+          aggregated.add(aggregate(family, view));
+          isRawReplaced |= view.isReplacingRawSeries();
+        }
+      }
+      if (!isRawReplaced) {
+        result.add(family);
+      }
+      result.addAll(aggregated);
+    }
+    return result;
+  }
+
+  /** Adds up the samples which are equal once the view is applied to their labels. */
+  private static MetricFamilySamples aggregate(MetricFamilySamples family, MetricView view) {
+    String prefix = view.getName() + ":";
+    String createdName = family.name + "_created";
+    Map<List<String>, MetricFamilySamples.Sample> samples = new LinkedHashMap<>();
+    for (MetricFamilySamples.Sample sample : family.samples) {
+      List<String> labelNames = new ArrayList<>();
+      List<String> labelValues = new ArrayList<>();
+      for (int i = 0; i < sample.labelNames.size(); ++i) {
+        String labelName = sample.labelNames.get(i);
+        if (!view.isDroppedLabel(labelName)) {
+          labelNames.add(labelName);
+          labelValues.add(view.labelValue(labelName, sample.labelValues.get(i)));
+        }
+      }
+      List<String> key = new ArrayList<>(labelValues);
+      key.add(sample.name);
+      MetricFamilySamples.Sample existing = samples.get(key);
+      double value = sample.value;
+      if (existing != null) {
+        // The aggregate was created when its first series was.
+        value =
+            sample.name.equals(createdName)
+                ? Math.min(existing.value, value)
+                : existing.value + value;
+      }
+      samples.put(
+          key,
+          new MetricFamilySamples.Sample(prefix + sample.name, labelNames, labelValues, value));
+    }
+    return new MetricFamilySamples(
+        prefix + family.name, family.type, family.help, new ArrayList<>(samples.values()));
+  }
+}
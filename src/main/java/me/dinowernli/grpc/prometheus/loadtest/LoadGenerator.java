@@ -0,0 +1,214 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus.loadtest;
+
+import com.github.dinowernli.proto.grpc.prometheus.HelloProto.HelloRequest;
+import com.github.dinowernli.proto.grpc.prometheus.HelloProto.HelloResponse;
+import com.github.dinowernli.proto.grpc.prometheus.HelloServiceGrpc.HelloServiceStub;
+import io.grpc.stub.StreamObserver;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drives rpcs of a single type against a {@link HelloServiceStub} in a closed loop: each of a fixed
+ * number of workers starts its next rpc as soon as its previous one completes, until the duration
+ * has passed.
+ */
+class LoadGenerator {
+  private static final HelloRequest REQUEST =
+      HelloRequest.newBuilder().setRecipient("LoadTest").build();
+
+  /** The number of requests after which the client streaming method of the service responds. */
+  private static final int CLIENT_STREAM_NUM_REQUESTS = 3;
+
+  /** The rpc types of the hello service. */
+  enum RpcType {
+    UNARY,
+    CLIENT_STREAMING,
+    SERVER_STREAMING,
+    BIDI_STREAMING,
+  }
+
+  private final HelloServiceStub stub;
+
+  LoadGenerator(HelloServiceStub stub) {
+    this.stub = stub;
+  }
+
+  /** Runs rpcs of the supplied type with the given number in flight, and returns the outcome. */
+  Result run(RpcType rpcType, int concurrency, Duration duration) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(concurrency);
+    List<Worker> workers = new ArrayList<>();
+    for (int i = 0; i < concurrency; ++i) {
+      workers.add(new Worker(rpcType, done));
+    }
+
+    long gcCountBefore = gcCount();
+    long gcMillisBefore = gcMillis();
+    long startNanos = System.nanoTime();
+    long deadlineNanos = startNanos + duration.toNanos();
+    for (Worker worker : workers) {
+      worker.start(deadlineNanos);
+    }
+    done.await();
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    int calls = 0;
+    long errors = 0;
+    for (Worker worker : workers) {
+      calls += worker.numLatencies;
+      errors += worker.errors;
+    }
+    long[] latencies = new long[calls];
+    int offset = 0;
+    for (Worker worker : workers) {
+      System.arraycopy(worker.latencies, 0, latencies, offset, worker.numLatencies);
+      offset += worker.numLatencies;
+    }
+    Arrays.sort(latencies);
+    return new Result(
+        latencies, errors, elapsedNanos, gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+  }
+
+  private static long gcCount() {
+    long result = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      result += Math.max(0, bean.getCollectionCount());
+    }
+    return result;
+  }
+
+  private static long gcMillis() {
+    long result = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      result += Math.max(0, bean.getCollectionTime());
+    }
+    return result;
+  }
+
+  /** The outcome of a single run. Latencies are in nanoseconds and sorted. */
+  static class Result {
+    private final long[] latencies;
+    private final long errors;
+    private final long elapsedNanos;
+    private final long gcCount;
+    private final long gcMillis;
+
+    private Result(long[] latencies, long errors, long elapsedNanos, long gcCount, long gcMillis) {
+      this.latencies = latencies;
+      this.errors = errors;
+      this.elapsedNanos = elapsedNanos;
+      this.gcCount = gcCount;
+      this.gcMillis = gcMillis;
+    }
+
+    /** Returns the number of rpcs which completed successfully. */
+    long calls() {
+      return latencies.length;
+    }
+
+    long errors() {
+      return errors;
+    }
+
+    /** Returns the number of successful rpcs per second. */
+    double throughput() {
+      return latencies.length / (elapsedNanos / 1e9);
+    }
+
+    /** Returns the latency in nanoseconds which the given fraction of rpcs did not exceed. */
+    long latencyPercentile(double fraction) {
+      if (latencies.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(fraction * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+    }
+
+    long gcCount() {
+      return gcCount;
+    }
+
+    long gcMillis() {
+      return gcMillis;
+    }
+  }
+
+  /** Runs one rpc at a time, and keeps the latencies of the successful ones. */
+  private class Worker implements StreamObserver<HelloResponse> {
+    private final RpcType rpcType;
+    private final CountDownLatch done;
+
+    // Only accessed by the callbacks of one rpc at a time, which grpc runs one after another.
+    private long deadlineNanos;
+    private long callStartNanos;
+    private long[] latencies = new long[1024];
+    private int numLatencies;
+    private long errors;
+
+    private Worker(RpcType rpcType, CountDownLatch done) {
+      this.rpcType = rpcType;
+      this.done = done;
+    }
+
+    private void start(long deadlineNanos) {
+      this.deadlineNanos = deadlineNanos;
+      startCall();
+    }
+
+    private void startCall() {
+      callStartNanos = System.nanoTime();
+      switch (rpcType) {
+        case UNARY:
+          stub.sayHello(REQUEST, this);
+          break;
+        case SERVER_STREAMING:
+          stub.sayHelloServerStream(REQUEST, this);
+          break;
+        case CLIENT_STREAMING:
+          StreamObserver<HelloRequest> clientStream = stub.sayHelloClientStream(this);
+          for (int i = 0; i < CLIENT_STREAM_NUM_REQUESTS; ++i) {
+            clientStream.onNext(REQUEST);
+          }
+          break;
+        case BIDI_STREAMING:
+          StreamObserver<HelloRequest> bidiStream = stub.sayHelloBidiStream(this);
+          bidiStream.onNext(REQUEST);
+          bidiStream.onCompleted();
+          break;
+      }
+    }
+
+    @Override
+    public void onNext(HelloResponse response) {}
+
+    @Override
+    public void onError(Throwable t) {
+      ++errors;
+      next();
+    }
+
+    @Override
+    public void onCompleted() {
+      long now = System.nanoTime();
+      if (numLatencies == latencies.length) {
+        latencies = Arrays.copyOf(latencies, latencies.length * 2);
+      }
+      latencies[numLatencies++] = now - callStartNanos;
+      next();
+    }
+
+    private void next() {
+      if (System.nanoTime() < deadlineNanos) {
+        startCall();
+      } else {
+        done.countDown();
+      }
+    }
+  }
+}
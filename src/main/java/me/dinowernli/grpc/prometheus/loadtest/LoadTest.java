@@ -0,0 +1,214 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus.loadtest;
+
+import com.github.dinowernli.proto.grpc.prometheus.HelloServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.prometheus.client.CollectorRegistry;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import me.dinowernli.grpc.prometheus.Configuration;
+import me.dinowernli.grpc.prometheus.MonitoringClientInterceptor;
+import me.dinowernli.grpc.prometheus.MonitoringServerInterceptor;
+import me.dinowernli.grpc.prometheus.loadtest.LoadGenerator.RpcType;
+import me.dinowernli.grpc.prometheus.testing.HelloServiceImpl;
+
+/**
+ * Measures the throughput and latency of the hello service with and without the monitoring
+ * interceptors, for every combination of transport, monitoring configuration, rpc type and number
+ * of rpcs in flight. Flags are passed as {@code --name=value}:
+ *
+ * <ul>
+ *   <li>{@code --transports}: any of {@code in_process,netty}, defaults to both.
+ *   <li>{@code --monitoring}: any of the keys of {@link #monitoringVariants()}, defaults to all.
+ *   <li>{@code --rpc_types}: any of {@code unary,client_streaming,server_streaming,
+ *       bidi_streaming}, defaults to all.
+ *   <li>{@code --concurrency}: the numbers of rpcs in flight, each in [1, 512], defaults to {@code
+ *       1,8,64,512}.
+ *   <li>{@code --duration_seconds} and {@code --warmup_seconds}: how long each combination is
+ *       measured, and how long it runs before, default to 10 and 2.
+ *   <li>{@code --format}: {@code text} or {@code json}, defaults to text.
+ *   <li>{@code --output}: the file to write the report to, defaults to stdout.
+ * </ul>
+ */
+public class LoadTest {
+  private static final int MAX_CONCURRENCY = 512;
+
+  private final Map<String, String> flags;
+
+  public static void main(String[] args) throws Exception {
+    new LoadTest(parseFlags(args)).run();
+  }
+
+  private LoadTest(Map<String, String> flags) {
+    this.flags = flags;
+  }
+
+  private void run() throws IOException, InterruptedException {
+    List<String> transports = listFlag("transports", "in_process,netty");
+    Map<String, Optional<Configuration>> variants = monitoringVariants();
+    List<String> monitoring = listFlag("monitoring", String.join(",", variants.keySet()));
+    List<RpcType> rpcTypes = new ArrayList<>();
+    for (String rpcType :
+        listFlag("rpc_types", "unary,client_streaming,server_streaming,bidi_streaming")) {
+      rpcTypes.add(RpcType.valueOf(rpcType.toUpperCase(Locale.ROOT)));
+    }
+    List<Integer> concurrencies = new ArrayList<>();
+    for (String concurrency : listFlag("concurrency", "1,8,64,512")) {
+      int value = Integer.parseInt(concurrency);
+      if (value < 1 || value > MAX_CONCURRENCY) {
+        throw new IllegalArgumentException(
+            "Concurrency must be in [1, " + MAX_CONCURRENCY + "], got: " + value);
+      }
+      concurrencies.add(value);
+    }
+    Duration duration = Duration.ofSeconds(Long.parseLong(flag("duration_seconds", "10")));
+    Duration warmup = Duration.ofSeconds(Long.parseLong(flag("warmup_seconds", "2")));
+
+    LoadTestReport report = new LoadTestReport();
+    for (String transport : transports) {
+      for (String variant : monitoring) {
+        if (!variants.containsKey(variant)) {
+          throw new IllegalArgumentException("Unknown monitoring variant: " + variant);
+        }
+        Optional<Configuration> configuration =
+            variants.get(variant).map(c -> c.withCollectorRegistry(new CollectorRegistry()));
+        Target target = Target.start(transport, configuration);
+        try {
+          LoadGenerator generator = new LoadGenerator(HelloServiceGrpc.newStub(target.channel));
+          for (RpcType rpcType : rpcTypes) {
+            for (int concurrency : concurrencies) {
+              System.err.printf(
+                  "Running %s %s %s with %d in flight%n",
+                  transport, variant, rpcType, concurrency);
+              generator.run(rpcType, concurrency, warmup);
+              report.add(
+                  transport,
+                  variant,
+                  rpcType,
+                  concurrency,
+                  generator.run(rpcType, concurrency, duration));
+            }
+          }
+        } finally {
+          target.shutdown();
+        }
+      }
+    }
+
+    String output = flag("format", "text").equals("json") ? report.toJson() : report.toText();
+    if (flags.containsKey("output")) {
+      Files.write(Paths.get(flags.get("output")), output.getBytes(StandardCharsets.UTF_8));
+    } else {
+      System.out.print(output);
+    }
+  }
+
+  /**
+   * Returns the monitoring configurations to compare, by name. An absent configuration means that
+   * no interceptors are installed.
+   */
+  private static Map<String, Optional<Configuration>> monitoringVariants() {
+    Map<String, Optional<Configuration>> result = new LinkedHashMap<>();
+    result.put("none", Optional.empty());
+    result.put("cheap_metrics", Optional.of(Configuration.cheapMetricsOnly()));
+    result.put("all_metrics", Optional.of(Configuration.allMetrics()));
+    result.put(
+        "all_metrics_off_heap", Optional.of(Configuration.allMetrics().withOffHeapStorage()));
+    return result;
+  }
+
+  /** A running server and a channel to it, with the interceptors installed on both if enabled. */
+  private static class Target {
+    private final Server server;
+    private final ManagedChannel channel;
+
+    private Target(Server server, ManagedChannel channel) {
+      this.server = server;
+      this.channel = channel;
+    }
+
+    private static Target start(String transport, Optional<Configuration> configuration)
+        throws IOException {
+      ServerBuilder<?> serverBuilder;
+      String name = InProcessServerBuilder.generateName();
+      if (transport.equals("in_process")) {
+        serverBuilder = InProcessServerBuilder.forName(name);
+      } else if (transport.equals("netty")) {
+        serverBuilder = NettyServerBuilder.forAddress(new InetSocketAddress("localhost", 0));
+      } else {
+        throw new IllegalArgumentException("Unknown transport: " + transport);
+      }
+      if (configuration.isPresent()) {
+        serverBuilder
+            .addService(
+                ServerInterceptors.intercept(
+                    new HelloServiceImpl(),
+                    MonitoringServerInterceptor.create(configuration.get())))
+            .addStreamTracerFactory(MonitoringServerInterceptor.streamTracerFactory());
+      } else {
+        serverBuilder.addService(new HelloServiceImpl());
+      }
+      Server server = serverBuilder.build().start();
+
+      ManagedChannelBuilder<?> channelBuilder =
+          transport.equals("in_process")
+              ? InProcessChannelBuilder.forName(name)
+              : NettyChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext();
+      if (configuration.isPresent()) {
+        channelBuilder.intercept(MonitoringClientInterceptor.create(configuration.get()));
+      }
+      return new Target(server, channelBuilder.build());
+    }
+
+    private void shutdown() throws InterruptedException {
+      channel.shutdown().awaitTermination(10, TimeUnit.SECONDS);
+      server.shutdown().awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private String flag(String name, String defaultValue) {
+    return flags.getOrDefault(name, defaultValue);
+  }
+
+  private List<String> listFlag(String name, String defaultValue) {
+    List<String> result = new ArrayList<>();
+    for (String value : flag(name, defaultValue).split(",")) {
+      if (!value.trim().isEmpty()) {
+        result.add(value.trim());
+      }
+    }
+    return result;
+  }
+
+  private static Map<String, String> parseFlags(String[] args) {
+    Map<String, String> result = new LinkedHashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+      }
+      result.put(arg.substring(2, separator), arg.substring(separator + 1));
+    }
+    return result;
+  }
+}
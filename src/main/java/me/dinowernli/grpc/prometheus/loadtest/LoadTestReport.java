@@ -0,0 +1,119 @@
+// Copyright 2016 Dino Wernli. All Rights Reserved. See LICENSE for licensing terms.
+
+package me.dinowernli.grpc.prometheus.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import me.dinowernli.grpc.prometheus.loadtest.LoadGenerator.Result;
+import me.dinowernli.grpc.prometheus.loadtest.LoadGenerator.RpcType;
+
+/** Collects the results of the runs of a load test, and formats them as text or JSON. */
+class LoadTestReport {
+  private static final double NANOS_PER_MICRO = 1e3;
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private final List<Row> rows = new ArrayList<>();
+
+  private static class Row {
+    private final String transport;
+    private final String monitoring;
+    private final RpcType rpcType;
+    private final int concurrency;
+    private final Result result;
+
+    private Row(
+        String transport, String monitoring, RpcType rpcType, int concurrency, Result result) {
+      this.transport = transport;
+      this.monitoring = monitoring;
+      this.rpcType = rpcType;
+      this.concurrency = concurrency;
+      this.result = result;
+    }
+  }
+
+  void add(String transport, String monitoring, RpcType rpcType, int concurrency, Result result) {
+    rows.add(new Row(transport, monitoring, rpcType, concurrency, result));
+  }
+
+  /** Returns a table with a line per run. Latencies are in microseconds. */
+  String toText() {
+    StringBuilder result = new StringBuilder();
+    result.append(
+        String.format(
+            Locale.ROOT,
+            "%-10s %-20s %-16s %5s %10s %7s %12s %9s %9s %9s %9s %6s %8s%n",
+            "transport",
+            "monitoring",
+            "rpc_type",
+            "conc",
+            "calls",
+            "errors",
+            "calls/s",
+            "p50_us",
+            "p90_us",
+            "p99_us",
+            "p999_us",
+            "gcs",
+            "gc_ms"));
+    for (Row row : rows) {
+      result.append(
+          String.format(
+              Locale.ROOT,
+              "%-10s %-20s %-16s %5d %10d %7d %12.1f %9.1f %9.1f %9.1f %9.1f %6d %8d%n",
+              row.transport,
+              row.monitoring,
+              row.rpcType.name().toLowerCase(Locale.ROOT),
+              row.concurrency,
+              row.result.calls(),
+              row.result.errors(),
+              row.result.throughput(),
+              micros(row.result, PERCENTILES[0]),
+              micros(row.result, PERCENTILES[1]),
+              micros(row.result, PERCENTILES[2]),
+              micros(row.result, PERCENTILES[3]),
+              row.result.gcCount(),
+              row.result.gcMillis()));
+    }
+    return result.toString();
+  }
+
+  /** Returns a JSON array with an object per run. Latencies are in microseconds. */
+  String toJson() {
+    StringBuilder result = new StringBuilder("[\n");
+    for (int i = 0; i < rows.size(); ++i) {
+      Row row = rows.get(i);
+      result
+          .append("  {")
+          .append(String.format(Locale.ROOT, "\"transport\": \"%s\", ", row.transport))
+          .append(String.format(Locale.ROOT, "\"monitoring\": \"%s\", ", row.monitoring))
+          .append(
+              String.format(
+                  Locale.ROOT,
+                  "\"rpc_type\": \"%s\", ",
+                  row.rpcType.name().toLowerCase(Locale.ROOT)))
+          .append(String.format(Locale.ROOT, "\"concurrency\": %d, ", row.concurrency))
+          .append(String.format(Locale.ROOT, "\"calls\": %d, ", row.result.calls()))
+          .append(String.format(Locale.ROOT, "\"errors\": %d, ", row.result.errors()))
+          .append(String.format(Locale.ROOT, "\"throughput\": %.1f, ", row.result.throughput()));
+      for (int p = 0; p < PERCENTILES.length; ++p) {
+        result.append(
+            String.format(
+                Locale.ROOT,
+                "\"%s_us\": %.1f, ",
+                PERCENTILE_NAMES[p],
+                micros(row.result, PERCENTILES[p])));
+      }
+      result
+          .append(String.format(Locale.ROOT, "\"gc_count\": %d, ", row.result.gcCount()))
+          .append(String.format(Locale.ROOT, "\"gc_millis\": %d}", row.result.gcMillis()))
+          .append(i + 1 < rows.size() ? ",\n" : "\n");
+    }
+    return result.append("]\n").toString();
+  }
+
+  private static double micros(Result result, double percentile) {
+    return result.latencyPercentile(percentile) / NANOS_PER_MICRO;
+  }
+}
@@ -0,0 +1,124 @@
+package me.dinowernli.grpc.prometheus;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpositionCacheTest {
+  private CollectorRegistry registry;
+  private CountingCollector collector;
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+    collector = new CountingCollector();
+    collector.register(registry);
+  }
+
+  @Test
+  public void reusesRecentPayload() throws Exception {
+    ExpositionCache cache = ExpositionCache.create(registry, Duration.ofMinutes(1));
+    ExpositionCache.Payload first = cache.get(ExpositionFormat.TEXT);
+    ExpositionCache.Payload second = cache.get(ExpositionFormat.TEXT);
+
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(collector.collections.get()).isEqualTo(1);
+
+    cache.get(ExpositionFormat.PROTOBUF);
+    assertThat(collector.collections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void rendersAgainWhenStale() throws Exception {
+    ExpositionCache cache = ExpositionCache.create(registry, Duration.ZERO);
+    cache.get(ExpositionFormat.TEXT);
+    Thread.sleep(1);
+    cache.get(ExpositionFormat.TEXT);
+
+    assertThat(collector.collections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void coalescesConcurrentScrapes() throws Exception {
+    ExpositionCache cache = ExpositionCache.create(registry, Duration.ofMinutes(1));
+    collector.release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<ExpositionCache.Payload>> payloads = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        payloads.add(executor.submit(() -> cache.get(ExpositionFormat.TEXT)));
+      }
+      collector.started.await();
+      Thread.sleep(100);
+      collector.release.countDown();
+
+      for (Future<ExpositionCache.Payload> payload : payloads) {
+        assertThat(payload.get()).isSameInstanceAs(payloads.get(0).get());
+      }
+      assertThat(collector.collections.get()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void compressesPayload() throws Exception {
+    ExpositionCache.Payload payload =
+        ExpositionCache.create(registry, Duration.ofMinutes(1)).get(ExpositionFormat.TEXT);
+
+    ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+    try (GZIPInputStream in =
+        new GZIPInputStream(new ByteArrayInputStream(payload.getGzippedBytes()))) {
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        uncompressed.write(buffer, 0, read);
+      }
+    }
+    assertThat(uncompressed.toByteArray()).isEqualTo(payload.getBytes());
+    assertThat(payload.getGzippedBytes()).isSameInstanceAs(payload.getGzippedBytes());
+  }
+
+  private static class CountingCollector extends Collector {
+    private final AtomicInteger collections = new AtomicInteger();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      collections.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Collections.singletonList(
+          new MetricFamilySamples(
+              "scrapes",
+              Type.GAUGE,
+              "Scrapes.",
+              Collections.singletonList(
+                  new MetricFamilySamples.Sample(
+                      "scrapes",
+                      Collections.emptyList(),
+                      Collections.emptyList(),
+                      collections.get()))));
+    }
+  }
+}
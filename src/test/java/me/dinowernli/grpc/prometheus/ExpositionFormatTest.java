@@ -0,0 +1,145 @@
+package me.dinowernli.grpc.prometheus;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class ExpositionFormatTest {
+  private static final String PROMETHEUS_ACCEPT_HEADER =
+      "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;"
+          + "q=0.7,text/plain;version=0.0.4;q=0.3,*/*;q=0.1";
+
+  @Test
+  public void negotiatesFormat() {
+    assertThat(ExpositionFormat.negotiate(null)).isSameInstanceAs(ExpositionFormat.TEXT);
+    assertThat(ExpositionFormat.negotiate("text/plain;version=0.0.4"))
+        .isSameInstanceAs(ExpositionFormat.TEXT);
+    assertThat(ExpositionFormat.negotiate(PROMETHEUS_ACCEPT_HEADER))
+        .isSameInstanceAs(ExpositionFormat.PROTOBUF);
+    assertThat(
+            ExpositionFormat.negotiate(
+                "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;"
+                    + "encoding=delimited;q=0.2,text/plain;q=0.5"))
+        .isSameInstanceAs(ExpositionFormat.TEXT);
+    assertThat(ExpositionFormat.negotiate("application/vnd.google.protobuf;encoding=text"))
+        .isSameInstanceAs(ExpositionFormat.TEXT);
+  }
+
+  @Test
+  public void writesText() throws Exception {
+    MetricFamilySamples counter =
+        new MetricFamilySamples(
+            "requests",
+            Type.COUNTER,
+            "Requests.",
+            Arrays.asList(
+                new Sample("requests_total", Arrays.asList("code"), Arrays.asList("O\"K"), 2),
+                new Sample("requests_created", Arrays.asList("code"), Arrays.asList("O\"K"), 5)));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExpositionFormat.TEXT.write(Collections.enumeration(Arrays.asList(counter)), out);
+
+    assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8))
+        .isEqualTo(
+            "# HELP requests_total Requests.\n"
+                + "# TYPE requests_total counter\n"
+                + "requests_total{code=\"O\\\"K\",} 2.0\n"
+                + "# HELP requests_created Requests.\n"
+                + "# TYPE requests_created gauge\n"
+                + "requests_created{code=\"O\\\"K\",} 5.0\n");
+  }
+
+  @Test
+  public void writesProtobuf() throws Exception {
+    MetricFamilySamples gauge =
+        new MetricFamilySamples(
+            "g",
+            Type.GAUGE,
+            "h",
+            Arrays.asList(new Sample("g", Collections.emptyList(), Collections.emptyList(), 1)));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExpositionFormat.PROTOBUF.write(Collections.enumeration(Arrays.asList(gauge)), out);
+
+    byte[] expected = {
+      0x15, // Length of the MetricFamily.
+      0x0a, 0x01, 'g', // name
+      0x12, 0x01, 'h', // help
+      0x18, 0x01, // type: GAUGE
+      0x22, 0x0b, // metric
+      0x12, 0x09, // gauge
+      0x09, 0, 0, 0, 0, 0, 0, (byte) 0xf0, 0x3f, // value: 1.0
+    };
+    assertThat(out.toByteArray()).isEqualTo(expected);
+  }
+
+  @Test
+  public void writesProtobufHistogramWithoutInfBucket() throws Exception {
+    MetricFamilySamples histogram =
+        new MetricFamilySamples(
+            "h",
+            Type.HISTOGRAM,
+            "",
+            Arrays.asList(
+                new Sample("h_bucket", Arrays.asList("le"), Arrays.asList("1.0"), 2),
+                new Sample("h_bucket", Arrays.asList("le"), Arrays.asList("+Inf"), 3),
+                new Sample("h_count", Collections.emptyList(), Collections.emptyList(), 3),
+                new Sample("h_sum", Collections.emptyList(), Collections.emptyList(), 0)));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExpositionFormat.PROTOBUF.write(Collections.enumeration(Arrays.asList(histogram)), out);
+
+    byte[] expected = {
+      0x23, // Length of the MetricFamily.
+      0x0a, 0x01, 'h', // name
+      0x12, 0x00, // help
+      0x18, 0x04, // type: HISTOGRAM
+      0x22, 0x1a, // metric
+      0x3a, 0x18, // histogram
+      0x1a, 0x0b, // bucket
+      0x08, 0x02, // cumulative_count
+      0x11, 0, 0, 0, 0, 0, 0, (byte) 0xf0, 0x3f, // upper_bound: 1.0
+      0x08, 0x03, // sample_count
+      0x11, 0, 0, 0, 0, 0, 0, 0, 0, // sample_sum
+    };
+    assertThat(out.toByteArray()).isEqualTo(expected);
+  }
+
+  @Test
+  public void writesOffHeapMetricsWithoutSamples() throws Exception {
+    OffHeapCounter counter =
+        new OffHeapCounter(
+            Counter.build().name("c").help("Counter.").labelNames("l").create(),
+            new String[] {"l"});
+    counter.labels("a").inc(2);
+    counter.labels("b").inc();
+    OffHeapHistogram histogram =
+        new OffHeapHistogram(
+            Histogram.build().name("h").help("Histogram.").labelNames("l").buckets(1, 2).create(),
+            new String[] {"l"});
+    histogram.labels("a").observe(1.5);
+    histogram.labels("b").observe(3);
+
+    for (Collector collector : Arrays.asList(counter, histogram)) {
+      MetricFamilySamples family = collector.collect().get(0);
+      MetricFamilySamples copy =
+          new MetricFamilySamples(
+              family.name, family.type, family.help, new ArrayList<>(family.samples));
+      assertThat(writeProtobuf(family)).isEqualTo(writeProtobuf(copy));
+    }
+  }
+
+  private static byte[] writeProtobuf(MetricFamilySamples family) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExpositionFormat.PROTOBUF.write(Collections.enumeration(Arrays.asList(family)), out);
+    return out.toByteArray();
+  }
+}
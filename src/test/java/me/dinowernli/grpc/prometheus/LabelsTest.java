@@ -31,13 +31,10 @@ public class LabelsTest {
     metadata.put(Key.of("standard", Metadata.ASCII_STRING_MARSHALLER), "standardvalue");
     metadata.put(Key.of("custom2", Metadata.ASCII_STRING_MARSHALLER), "customvalue2");
 
-    List<Key<String>> customKeys =
-        Arrays.asList(
-            Key.of("custom1", Metadata.ASCII_STRING_MARSHALLER),
-            Key.of("custom2", Metadata.ASCII_STRING_MARSHALLER),
-            Key.of("custom3", Metadata.ASCII_STRING_MARSHALLER));
+    List<HeaderLabel> customHeaders =
+        HeaderLabel.forHeaders(Arrays.asList("custom1", "custom2", "custom3"));
 
-    List<String> actual = Labels.customLabels(metadata, customKeys);
+    List<String> actual = Labels.customLabels(metadata, customHeaders);
 
     // Should return values for custom1 and custom2 from the metadata,
     // and custom3 value is an empty string because it does not exist in metadata.
@@ -0,0 +1,98 @@
+package me.dinowernli.grpc.prometheus;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedMetricsTest {
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("mapped-metrics");
+  }
+
+  @Test
+  public void mergesProcesses() throws Exception {
+    writeCounter("worker-0", 1);
+    writeCounter("worker-1", 2);
+
+    List<MetricFamilySamples> families = new MappedMetricsCollector(directory).collect();
+    assertThat(families).hasSize(1);
+    MetricFamilySamples.Sample sample = families.get(0).samples.get(0);
+    assertThat(sample.name).isEqualTo("test_calls_total");
+    assertThat(sample.labelNames).containsExactly("grpc_method");
+    assertThat(sample.labelValues).containsExactly("SayHello");
+    assertThat(sample.value).isWithin(0).of(3);
+  }
+
+  @Test
+  public void keepsCountersAcrossRestarts() throws Exception {
+    writeCounter("worker-0", 2);
+    writeCounter("worker-0", 1);
+
+    List<MetricFamilySamples> families = new MappedMetricsCollector(directory).collect();
+    assertThat(families.get(0).samples.get(0).value).isWithin(0).of(3);
+  }
+
+  @Test
+  public void skipsGauges() throws Exception {
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build().name("test_gauge").help("Test gauge.").register(registry).set(5);
+    try (MappedMetricsWriter writer = MappedMetricsWriter.open(directory, "worker-0", registry)) {
+      writer.flush();
+    }
+
+    assertThat(new MappedMetricsCollector(directory).collect()).isEmpty();
+  }
+
+  @Test
+  public void keepsHelpAndOrderOfSamples() throws Exception {
+    CollectorRegistry registry = new CollectorRegistry();
+    Histogram.build()
+        .name("test_latency")
+        .help("Test histogram.")
+        .buckets(0.5, 2.5, 10)
+        .register(registry)
+        .observe(1);
+    try (MappedMetricsWriter writer = MappedMetricsWriter.open(directory, "worker-0", registry)) {
+      writer.flush();
+    }
+
+    List<MetricFamilySamples> families = new MappedMetricsCollector(directory).collect();
+    assertThat(families).hasSize(1);
+    assertThat(families.get(0).help).isEqualTo("Test histogram.");
+    List<String> bounds = new ArrayList<>();
+    for (MetricFamilySamples.Sample sample : families.get(0).samples) {
+      if (sample.name.equals("test_latency_bucket")) {
+        bounds.add(sample.labelValues.get(0));
+      }
+    }
+    assertThat(bounds).containsExactly("0.5", "2.5", "10.0", "+Inf").inOrder();
+  }
+
+  /** Simulates a process which increments a counter and writes it before shutting down. */
+  private void writeCounter(String processName, double increment) throws Exception {
+    CollectorRegistry registry = new CollectorRegistry();
+    Counter counter =
+        Counter.build()
+            .name("test_calls")
+            .help("Test counter.")
+            .labelNames("grpc_method")
+            .register(registry);
+    counter.labels("SayHello").inc(increment);
+    try (MappedMetricsWriter writer = MappedMetricsWriter.open(directory, processName, registry)) {
+      writer.flush();
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package me.dinowernli.grpc.prometheus;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class MessageSizesTest {
+  @Test
+  public void usesInboundSizesOfCommittedAttemptOnly() {
+    MessageSizes sizes = new MessageSizes();
+    MessageSizes.Attempt losing = sizes.newAttempt();
+    MessageSizes.Attempt committed = sizes.newAttempt();
+    losing.onInbound(1);
+    committed.onInbound(2);
+    committed.onInbound(3);
+
+    // Nothing is delivered before an attempt got committed.
+    assertThat(sizes.takeInbound()).isEqualTo(-1);
+    committed.commit();
+    losing.commit();
+    losing.onInbound(4);
+
+    assertThat(sizes.takeInbound()).isEqualTo(2);
+    assertThat(sizes.takeInbound()).isEqualTo(3);
+    assertThat(sizes.takeInbound()).isEqualTo(-1);
+  }
+
+  @Test
+  public void ignoresRewrittenOutboundMessages() {
+    MessageSizes sizes = new MessageSizes();
+    MessageSizes.Attempt first = sizes.newAttempt();
+    MessageSizes.Attempt second = sizes.newAttempt();
+    first.onOutbound(0, 10);
+    assertThat(sizes.takeOutbound()).isEqualTo(10);
+
+    // The second attempt replays the first message after it has been sent.
+    second.onOutbound(0, 10);
+    assertThat(sizes.takeOutbound()).isEqualTo(-1);
+  }
+}
@@ -6,6 +6,7 @@ import com.github.dinowernli.proto.grpc.prometheus.HelloProto;
 import com.github.dinowernli.proto.grpc.prometheus.HelloProto.HelloResponse;
 import com.github.dinowernli.proto.grpc.prometheus.HelloServiceGrpc;
 import com.github.dinowernli.proto.grpc.prometheus.HelloServiceGrpc.HelloServiceStub;
+import io.grpc.CallOptions;
 import io.grpc.Metadata;
 import io.grpc.Server;
 import io.grpc.inprocess.InProcessChannelBuilder;
@@ -18,8 +19,12 @@ import io.prometheus.client.CollectorRegistry;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
+import me.dinowernli.grpc.prometheus.ClientChainMarkers;
+import me.dinowernli.grpc.prometheus.ClientLabelExtractor;
 import me.dinowernli.grpc.prometheus.Configuration;
 import me.dinowernli.grpc.prometheus.MonitoringClientInterceptor;
+import me.dinowernli.grpc.prometheus.MonitoringMarshallers;
 import me.dinowernli.grpc.prometheus.testing.HelloServiceImpl;
 import me.dinowernli.grpc.prometheus.testing.RegistryHelper;
 import org.junit.After;
@@ -213,6 +218,53 @@ public class MonitoringClientInterceptorIntegrationTest {
     assertThat(totalSample.value).isWithin(0).of(1);
   }
 
+  @Test
+  public void recordsMessageHandlerTime() throws Throwable {
+    createClientStub(CHEAP_METRICS.withMessageHandlerMetrics(1))
+        .sayHelloServerStream(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples.Sample count =
+        getSample(
+            findRecordedMetricOrThrow("grpc_client_msg_handler_seconds"),
+            "grpc_client_msg_handler_seconds_count");
+    assertThat(count.labelValues)
+        .containsExactly(
+            "SERVER_STREAMING",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.SERVER_STREAM_METHOD_NAME)
+        .inOrder();
+    assertThat(count.value).isWithin(0).of(1);
+  }
+
+  @Test
+  public void recordsInterceptorChainTime() throws Throwable {
+    Configuration configuration = CHEAP_METRICS.withCollectorRegistry(collectorRegistry);
+    ClientChainMarkers markers = ClientChainMarkers.create(configuration);
+    HelloServiceStub stub =
+        HelloServiceGrpc.newStub(
+            InProcessChannelBuilder.forName(grpcServerName)
+                .usePlaintext()
+                .intercept(
+                    markers.tail(),
+                    MonitoringClientInterceptor.create(configuration),
+                    markers.head())
+                .build());
+    stub.sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples chain =
+        findRecordedMetricOrThrow("grpc_client_interceptor_chain_seconds");
+    List<String> callbacks =
+        chain.samples.stream()
+            .filter(s -> s.name.equals("grpc_client_interceptor_chain_seconds_count"))
+            .map(s -> s.labelValues.get(3))
+            .collect(Collectors.toList());
+    assertThat(callbacks)
+        .containsAtLeast(
+            "new_call", "start", "send_message", "half_close", "on_message", "on_close");
+  }
+
   @Test
   public void recordsHeadersAsLabels() throws Throwable {
     Metadata metadata = new Metadata();
@@ -349,6 +401,158 @@ public class MonitoringClientInterceptorIntegrationTest {
         .isEqualTo(expectedNum);
   }
 
+  @Test
+  public void recordsFlowControlMetricsIfEnabled() throws Throwable {
+    createClientStub(CHEAP_METRICS.withFlowControlMetrics()).sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_client_not_ready_seconds"),
+            "grpc_client_not_ready_seconds_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+  }
+
+  @Test
+  public void recordsAttemptMetricsIfEnabled() throws Throwable {
+    createClientStub(CHEAP_METRICS.withAttemptMetrics()).sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples.Sample attempts =
+        getSample(findRecordedMetricOrThrow("grpc_client_attempts"), "grpc_client_attempts_total");
+    assertThat(attempts.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(attempts.value).isWithin(0).of(1);
+
+    Collector.MetricFamilySamples.Sample attemptsPerCall =
+        getSample(
+            findRecordedMetricOrThrow("grpc_client_attempts_per_call"),
+            "grpc_client_attempts_per_call_sum");
+    assertThat(attemptsPerCall.value).isWithin(0).of(1);
+    assertThat(findRecordedMetricOrThrow("grpc_client_transparent_retries").samples).isEmpty();
+  }
+
+  @Test
+  public void noAttemptMetricsIfDisabled() throws Throwable {
+    createClientStub(ALL_METRICS).sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+    assertThat(
+            RegistryHelper.findRecordedMetric("grpc_client_attempts", collectorRegistry)
+                .isPresent())
+        .isFalse();
+  }
+
+  @Test
+  public void recordsPendingTimeIfEnabled() throws Throwable {
+    createClientStub(CHEAP_METRICS.withPendingMetrics()).sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_client_pending_seconds"),
+            "grpc_client_pending_seconds_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+    assertThat(findRecordedMetricOrThrow("grpc_client_completed_without_stream").samples)
+        .isEmpty();
+  }
+
+  @Test
+  public void countsCallsWithoutStream() throws Throwable {
+    HelloServiceStub stub =
+        HelloServiceGrpc.newStub(
+            InProcessChannelBuilder.forName("no-such-server")
+                .usePlaintext()
+                .intercept(
+                    MonitoringClientInterceptor.create(
+                        CHEAP_METRICS
+                            .withPendingMetrics()
+                            .withCollectorRegistry(collectorRegistry)))
+                .build());
+    stub.sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_client_completed_without_stream"),
+            "grpc_client_completed_without_stream_total");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.UNARY_METHOD_NAME,
+            "UNAVAILABLE");
+    assertThat(sample.value).isWithin(0).of(1);
+    assertThat(findRecordedMetricOrThrow("grpc_client_pending_seconds").samples).isEmpty();
+  }
+
+  @Test
+  public void recordsMarshallingMetrics() throws Throwable {
+    MonitoringMarshallers marshallers =
+        MonitoringMarshallers.forClient(CHEAP_METRICS.withCollectorRegistry(collectorRegistry));
+    HelloServiceStub stub =
+        HelloServiceGrpc.newStub(
+            InProcessChannelBuilder.forName(grpcServerName)
+                .usePlaintext()
+                .intercept(marshallers.clientInterceptor())
+                .build());
+    stub.sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_client_msg_serialize_seconds"),
+            "grpc_client_msg_serialize_seconds_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+    assertThat(
+            getSample(
+                    findRecordedMetricOrThrow("grpc_client_msg_parse_seconds"),
+                    "grpc_client_msg_parse_seconds_count")
+                .value)
+        .isWithin(0)
+        .of(1);
+    assertThat(
+            getSample(
+                    findRecordedMetricOrThrow("grpc_client_msg_serialized_bytes"),
+                    "grpc_client_msg_serialized_bytes_sum")
+                .value)
+        .isWithin(0)
+        .of(REQUEST.getSerializedSize());
+  }
+
+  @Test
+  public void recordsCallOptionsAsLabels() throws Throwable {
+    CallOptions.Key<String> tenantKey = CallOptions.Key.createWithDefault("tenant", "none");
+    createClientStub(
+            CHEAP_METRICS.withClientLabel("tenant", ClientLabelExtractor.callOption(tenantKey)))
+        .withOption(tenantKey, "tenant-1")
+        .sayHello(REQUEST, responseRecorder);
+    responseRecorder.awaitCompletion();
+
+    Collector.MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_client_completed"), "grpc_client_completed_total");
+    assertThat(sample.labelNames)
+        .containsExactly("grpc_type", "grpc_service", "grpc_method", "code", "grpc_code", "tenant");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.UNARY_METHOD_NAME,
+            "OK",
+            "OK",
+            "tenant-1");
+  }
+
   private HelloServiceStub createClientStub(Configuration configuration) {
     return HelloServiceGrpc.newStub(
         InProcessChannelBuilder.forName(grpcServerName)
@@ -11,9 +11,17 @@ import com.github.dinowernli.proto.grpc.prometheus.HelloServiceGrpc.HelloService
 import com.github.dinowernli.proto.grpc.prometheus.HelloServiceGrpc.HelloServiceStub;
 import com.google.common.collect.ImmutableList;
 import io.grpc.Channel;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
 import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.PrototypeMarshaller;
 import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
 import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.MetadataUtils;
@@ -23,10 +31,30 @@ import io.prometheus.client.Collector.MetricFamilySamples;
 import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 import io.prometheus.client.CollectorRegistry;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.dinowernli.grpc.prometheus.CallLog;
+import me.dinowernli.grpc.prometheus.CallLogRecords;
 import me.dinowernli.grpc.prometheus.Configuration;
+import me.dinowernli.grpc.prometheus.ConfigurationHandle;
+import me.dinowernli.grpc.prometheus.MetricView;
+import me.dinowernli.grpc.prometheus.MonitoringExecutor;
+import me.dinowernli.grpc.prometheus.MonitoringMarshallers;
 import me.dinowernli.grpc.prometheus.MonitoringServerInterceptor;
+import me.dinowernli.grpc.prometheus.ServerChainMarkers;
+import me.dinowernli.grpc.prometheus.ServerLabelExtractor;
+import me.dinowernli.grpc.prometheus.SlowCall;
+import me.dinowernli.grpc.prometheus.SlowCallRecorder;
 import me.dinowernli.grpc.prometheus.testing.HelloServiceImpl;
 import me.dinowernli.grpc.prometheus.testing.RegistryHelper;
 import org.junit.After;
@@ -45,6 +73,8 @@ public class MonitoringServerInterceptorIntegrationTest {
 
   private static final Configuration CHEAP_METRICS = Configuration.cheapMetricsOnly();
   private static final Configuration ALL_METRICS = Configuration.allMetrics();
+  private static final Duration CANCELLATION_WINDOW = Duration.ofMillis(200);
+  private static final Duration SEND_ON_CANCEL_DELAY = Duration.ofMillis(50);
 
   private CollectorRegistry collectorRegistry;
   private Server grpcServer;
@@ -393,14 +423,722 @@ public class MonitoringServerInterceptorIntegrationTest {
     assertThat(sample.value).isWithin(0).of(1);
   }
 
-  private void startGrpcServer(Configuration monitoringConfig) {
-    MonitoringServerInterceptor interceptor =
+  @Test
+  public void recordsExecutorMetrics() throws Throwable {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    startGrpcServer(
+        CHEAP_METRICS,
+        InProcessServerBuilder.forName(grpcServerName)
+            .executor(
+                MonitoringExecutor.create(
+                    executor, CHEAP_METRICS.withCollectorRegistry(collectorRegistry))));
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    // Tasks record their metrics once they are done, which can be after the client has already
+    // seen the response, so we wait for all of them to finish.
+    grpcServer.shutdown().awaitTermination();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    MetricFamilySamples queueWait =
+        findRecordedMetricOrThrow("grpc_server_executor_queue_wait_seconds");
+    Sample countSample =
+        queueWait.samples.stream()
+            .filter(s -> s.name.equals("grpc_server_executor_queue_wait_seconds_count"))
+            .filter(s -> s.labelValues.contains(HelloServiceImpl.UNARY_METHOD_NAME))
+            .findFirst()
+            .get();
+    assertThat(countSample.labelValues)
+        .containsExactly(
+            "", "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(countSample.value).isGreaterThan(0.0);
+    assertThat(
+            countSamples(
+                "grpc_server_executor_execution_seconds",
+                "grpc_server_executor_execution_seconds_count"))
+        .isGreaterThan(0);
+
+    assertThat(extractMetricValue("grpc_server_executor_queued_tasks")).isWithin(0).of(0);
+    assertThat(extractMetricValue("grpc_server_executor_active_tasks")).isWithin(0).of(0);
+  }
+
+  @Test
+  public void sharesExecutorMetricsBetweenExecutors() throws Throwable {
+    Configuration configuration = CHEAP_METRICS.withCollectorRegistry(collectorRegistry);
+    MonitoringExecutor.create(Runnable::run, "first", configuration).execute(() -> {});
+    MonitoringExecutor.create(Runnable::run, "second", configuration).execute(() -> {});
+
+    MetricFamilySamples activeTasks =
+        findRecordedMetricOrThrow("grpc_server_executor_active_tasks");
+    assertThat(activeTasks.samples.stream().map(s -> s.labelValues).collect(Collectors.toList()))
+        .containsExactly(Arrays.asList("first"), Arrays.asList("second"));
+    MetricFamilySamples execution =
+        findRecordedMetricOrThrow("grpc_server_executor_execution_seconds");
+    List<String> executors =
+        execution.samples.stream()
+            .filter(s -> s.name.equals("grpc_server_executor_execution_seconds_count"))
+            .map(s -> s.labelValues.get(0))
+            .collect(Collectors.toList());
+    assertThat(executors).containsExactly("first", "second");
+  }
+
+  @Test
+  public void recordsStartDelayIfStreamTracerInstalled() throws Throwable {
+    startGrpcServer(
+        ALL_METRICS,
+        InProcessServerBuilder.forName(grpcServerName)
+            .addStreamTracerFactory(MonitoringServerInterceptor.streamTracerFactory()));
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_server_start_delay_seconds"),
+            "grpc_server_start_delay_seconds_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+  }
+
+  @Test
+  public void noStartDelayWithoutStreamTracer() throws Throwable {
+    startGrpcServer(ALL_METRICS);
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    assertThat(findRecordedMetricOrThrow("grpc_server_start_delay_seconds").samples).isEmpty();
+  }
+
+  @Test
+  public void noFlowControlMetricsIfDisabled() throws Throwable {
+    startGrpcServer(CHEAP_METRICS);
+    createGrpcBlockingStub().sayHello(REQUEST);
+    assertThat(
+            RegistryHelper.findRecordedMetric("grpc_server_not_ready_seconds", collectorRegistry)
+                .isPresent())
+        .isFalse();
+  }
+
+  @Test
+  public void recordsFlowControlMetricsIfEnabled() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withFlowControlMetrics());
+    StreamRecorder<HelloResponse> streamRecorder = StreamRecorder.create();
+    StreamObserver<HelloRequest> requestStream =
+        createGrpcStub().sayHelloBidiStream(streamRecorder);
+    requestStream.onNext(REQUEST);
+    requestStream.onNext(REQUEST);
+    requestStream.onCompleted();
+    streamRecorder.awaitCompletion();
+
+    MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_server_not_ready_seconds"),
+            "grpc_server_not_ready_seconds_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "BIDI_STREAMING",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.BIDI_STREAM_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+    assertThat(
+            RegistryHelper.findRecordedMetric("grpc_server_msg_buffered", collectorRegistry)
+                .isPresent())
+        .isTrue();
+  }
+
+  @Test
+  public void recordsCancelledCalls() throws Throwable {
+    // Using a direct executor makes the server process the cancellation before the client's call
+    // to cancel returns.
+    startGrpcServer(
+        CHEAP_METRICS.withCancellationMetrics(CANCELLATION_WINDOW),
+        InProcessServerBuilder.forName(grpcServerName).directExecutor());
+    StreamRecorder<HelloResponse> streamRecorder = StreamRecorder.create();
+    StreamObserver<HelloRequest> requestStream =
+        createGrpcStub().sayHelloBidiStream(streamRecorder);
+    requestStream.onNext(REQUEST);
+    streamRecorder.firstValue().get();
+    requestStream.onError(new RuntimeException("Cancelled by the test"));
+
+    MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_server_cancelled"), "grpc_server_cancelled_total");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "BIDI_STREAMING",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.BIDI_STREAM_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+
+    // The handler stops when it learns about the cancellation, without sending anything.
+    awaitSamples(
+        "grpc_server_work_after_cancel_seconds", "grpc_server_work_after_cancel_seconds_count");
+    assertThat(findRecordedMetricOrThrow("grpc_server_msg_sent_after_cancel").samples).isEmpty();
+  }
+
+  @Test
+  public void recordsWorkAfterCancelOfHandlersWhichNeverClose() throws Throwable {
+    startGrpcServer(
+        InProcessServerBuilder.forName(grpcServerName).directExecutor(),
+        new SendOnCancelInterceptor(),
         MonitoringServerInterceptor.create(
-            monitoringConfig.withCollectorRegistry(collectorRegistry));
+            CHEAP_METRICS
+                .withCancellationMetrics(CANCELLATION_WINDOW)
+                .withCollectorRegistry(collectorRegistry)));
+    StreamRecorder<HelloResponse> streamRecorder = StreamRecorder.create();
+    StreamObserver<HelloRequest> requestStream =
+        createGrpcStub().sayHelloBidiStream(streamRecorder);
+    requestStream.onNext(REQUEST);
+    streamRecorder.firstValue().get();
+    requestStream.onError(new RuntimeException("Cancelled by the test"));
+
+    MetricFamilySamples.Sample sentSample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_server_msg_sent_after_cancel"),
+            "grpc_server_msg_sent_after_cancel_total");
+    assertThat(sentSample.labelValues)
+        .containsExactly(
+            "BIDI_STREAMING",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.BIDI_STREAM_METHOD_NAME);
+    assertThat(sentSample.value).isWithin(0).of(1);
+
+    // The rpc is never closed, so the work gets recorded once the window is over.
+    awaitSamples(
+        "grpc_server_work_after_cancel_seconds", "grpc_server_work_after_cancel_seconds_count");
+    MetricFamilySamples family = findRecordedMetricOrThrow("grpc_server_work_after_cancel_seconds");
+    MetricFamilySamples.Sample workSample =
+        getSample(family, "grpc_server_work_after_cancel_seconds_count");
+    assertThat(workSample.labelValues)
+        .containsExactly(
+            "BIDI_STREAMING",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.BIDI_STREAM_METHOD_NAME);
+    assertThat(workSample.value).isWithin(0).of(1);
+    assertThat(getSample(family, "grpc_server_work_after_cancel_seconds_sum").value)
+        .isAtLeast(SEND_ON_CANCEL_DELAY.toNanos() / 1e9);
+  }
+
+  @Test
+  public void recordsCpuTimeIfEnabled() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withCpuTimeMetrics(1.0));
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    // The cpu time is recorded once the call is complete, which can be after the client has
+    // already seen the response.
+    grpcServer.shutdown().awaitTermination();
+
+    MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_server_cpu_seconds"), "grpc_server_cpu_seconds_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+    assertThat(findRecordedMetricOrThrow("grpc_server_estimated_cpu_seconds").samples).isNotEmpty();
+  }
+
+  @Test
+  public void noCpuTimeIfDisabled() throws Throwable {
+    startGrpcServer(ALL_METRICS);
+    createGrpcBlockingStub().sayHello(REQUEST);
+    assertThat(
+            RegistryHelper.findRecordedMetric("grpc_server_cpu_seconds", collectorRegistry)
+                .isPresent())
+        .isFalse();
+  }
+
+  @Test
+  public void recordsAllocatedBytesIfEnabled() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withAllocationMetrics(1.0));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    grpcServer.shutdown().awaitTermination();
+
+    MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_server_allocated_bytes"),
+            "grpc_server_allocated_bytes_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+    assertThat(
+            RegistryHelper.findRecordedMetric("grpc_server_cpu_seconds", collectorRegistry)
+                .isPresent())
+        .isFalse();
+  }
+
+  @Test
+  public void recordsMarshallingMetrics() throws Throwable {
+    MonitoringMarshallers marshallers =
+        MonitoringMarshallers.forServer(CHEAP_METRICS.withCollectorRegistry(collectorRegistry));
     grpcServer =
         InProcessServerBuilder.forName(grpcServerName)
+            .addService(marshallers.wrapService(new HelloServiceImpl().bindService()))
+            .build()
+            .start();
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    MetricFamilySamples.Sample sample =
+        getSample(
+            findRecordedMetricOrThrow("grpc_server_msg_parse_seconds"),
+            "grpc_server_msg_parse_seconds_count");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(sample.value).isWithin(0).of(1);
+    assertThat(
+            getSample(
+                    findRecordedMetricOrThrow("grpc_server_msg_parsed_bytes"),
+                    "grpc_server_msg_parsed_bytes_sum")
+                .value)
+        .isWithin(0)
+        .of(REQUEST.getSerializedSize());
+    assertThat(
+            getSample(
+                    findRecordedMetricOrThrow("grpc_server_msg_serialize_seconds"),
+                    "grpc_server_msg_serialize_seconds_count")
+                .value)
+        .isWithin(0)
+        .of(1);
+  }
+
+  @Test
+  public void keepsMessagePrototypeOfMarshallers() throws Throwable {
+    MonitoringMarshallers marshallers =
+        MonitoringMarshallers.forServer(CHEAP_METRICS.withCollectorRegistry(collectorRegistry));
+    MethodDescriptor<HelloRequest, HelloResponse> method =
+        marshallers.wrapMethod(HelloServiceGrpc.getSayHelloMethod());
+
+    assertThat(method.getRequestMarshaller()).isInstanceOf(PrototypeMarshaller.class);
+    assertThat(
+            ((PrototypeMarshaller<HelloRequest>) method.getRequestMarshaller()).getMessageClass())
+        .isEqualTo(HelloRequest.class);
+    assertThat(
+            ((PrototypeMarshaller<HelloResponse>) method.getResponseMarshaller())
+                .getMessagePrototype())
+        .isEqualTo(HelloResponse.getDefaultInstance());
+  }
+
+  @Test
+  public void keepsSlowestCalls() throws Throwable {
+    SlowCallRecorder recorder =
+        SlowCallRecorder.create(2, Duration.ofMinutes(1), Arrays.asList("header-1"));
+    startGrpcServer(CHEAP_METRICS.withSlowCallRecorder(recorder));
+    Metadata metadata = new Metadata();
+    metadata.put(Metadata.Key.of("header-1", Metadata.ASCII_STRING_MARSHALLER), "value1");
+    HelloServiceBlockingStub stub = MetadataUtils.attachHeaders(createGrpcBlockingStub(), metadata);
+    stub.sayHello(REQUEST);
+    stub.sayHello(REQUEST);
+    stub.sayHello(REQUEST);
+
+    List<SlowCall> calls =
+        recorder.slowestCalls(
+            HelloServiceImpl.SERVICE_NAME + "/" + HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(calls).hasSize(2);
+    assertThat(calls.get(0).getDuration()).isAtLeast(calls.get(1).getDuration());
+
+    SlowCall call = calls.get(0);
+    assertThat(call.getMethodName()).isEqualTo(HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(call.getCode()).isEqualTo(Status.Code.OK);
+    assertThat(call.getMessagesReceived()).isEqualTo(1);
+    assertThat(call.getMessagesSent()).isEqualTo(1);
+    assertThat(call.getHeaders()).containsExactly("header-1", "value1");
+    assertThat(recorder.slowestCalls()).hasSize(2);
+  }
+
+  @Test
+  public void emitsFlightRecorderEvents() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withFlightRecorderEvents());
+    Path dump = Files.createTempFile("grpc-events", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("me.dinowernli.grpc.Call");
+      recording.enable("me.dinowernli.grpc.Message");
+      recording.start();
+      createGrpcBlockingStub().sayHello(REQUEST);
+      grpcServer.shutdown().awaitTermination();
+      recording.stop();
+      recording.dump(dump);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+    Files.delete(dump);
+    RecordedEvent callEvent =
+        events.stream()
+            .filter(e -> e.getEventType().getName().equals("me.dinowernli.grpc.Call"))
+            .findFirst()
+            .get();
+    assertThat(callEvent.getString("method")).isEqualTo(HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(callEvent.getString("code")).isEqualTo("OK");
+    List<RecordedEvent> messageEvents =
+        events.stream()
+            .filter(e -> e.getEventType().getName().equals("me.dinowernli.grpc.Message"))
+            .collect(Collectors.toList());
+    assertThat(messageEvents).hasSize(2);
+
+    // Without a stream tracer, the sizes of the messages are not known.
+    assertThat(messageEvents.get(0).getLong("size")).isEqualTo(-1L);
+  }
+
+  @Test
+  public void writesCallLog() throws Throwable {
+    Path directory = Files.createTempDirectory("grpc-call-log");
+    try (CallLog callLog = CallLog.open(directory, "server", 16)) {
+      startGrpcServer(CHEAP_METRICS.withCallLog(callLog));
+      createGrpcBlockingStub().sayHello(REQUEST);
+      createGrpcBlockingStub().sayHello(REQUEST);
+      grpcServer.shutdown().awaitTermination();
+    }
+
+    CallLogRecords records = CallLogRecords.read(directory, "server");
+    assertThat(records.size()).isEqualTo(2);
+    assertThat(records.fullMethodName(0))
+        .isEqualTo(HelloServiceImpl.SERVICE_NAME + "/" + HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(records.code(0)).isEqualTo(Status.Code.OK);
+    assertThat(records.messagesReceived(0)).isEqualTo(1);
+    assertThat(records.messagesSent(0)).isEqualTo(1);
+    assertThat(records.startEpochNanos(1)).isAtLeast(records.startEpochNanos(0));
+  }
+
+  @Test
+  public void recordsMetricsOffHeap() throws Throwable {
+    double[] buckets = new double[] {8.0, 9.0, 10.0};
+    startGrpcServer(ALL_METRICS.withOffHeapStorage().withLatencyBuckets(buckets));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    MetricFamilySamples handled = findRecordedMetricOrThrow("grpc_server_handled");
+    assertThat(handled.samples).hasSize(2);
+    MetricFamilySamples.Sample totalSample = getSample(handled, "grpc_server_handled_total");
+    assertThat(totalSample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME, "OK", "OK");
+    assertThat(totalSample.value).isWithin(0).of(2);
+
+    MetricFamilySamples latency = findRecordedMetricOrThrow("grpc_server_handled_latency_seconds");
+    MetricFamilySamples.Sample bucketSample =
+        getSample(latency, "grpc_server_handled_latency_seconds_bucket");
+    assertThat(bucketSample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME, "8.0");
+    assertThat(getSample(latency, "grpc_server_handled_latency_seconds_count").value)
+        .isWithin(0)
+        .of(2);
+  }
+
+  @Test
+  public void recordsExtractedLabels() throws Throwable {
+    startGrpcServer(
+        CHEAP_METRICS.withServerLabel(
+            "client_family",
+            ServerLabelExtractor.header("header-1").normalized(v -> v.split("/")[0])));
+    Metadata metadata = new Metadata();
+    metadata.put(Metadata.Key.of("header-1", Metadata.ASCII_STRING_MARSHALLER), "client/1.2.3");
+    MetadataUtils.attachHeaders(createGrpcBlockingStub(), metadata).sayHello(REQUEST);
+
+    MetricFamilySamples.Sample sample =
+        getSample(findRecordedMetricOrThrow("grpc_server_started"), "grpc_server_started_total");
+    assertThat(sample.labelNames)
+        .containsExactly("grpc_type", "grpc_service", "grpc_method", "client_family");
+    assertThat(sample.labelValues)
+        .containsExactly(
+            "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME, "client");
+  }
+
+  @Test
+  public void recordsSelfMetrics() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withSelfMetrics(1.0));
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    MetricFamilySamples overhead =
+        findRecordedMetricOrThrow("grpc_prometheus_server_overhead_seconds");
+    assertThat(getSample(overhead, "grpc_prometheus_server_overhead_seconds_count").value)
+        .isGreaterThan(0.0);
+
+    // The number of series is only known once the metric has been collected.
+    findRecordedMetricOrThrow("grpc_server_started");
+    MetricFamilySamples series = findRecordedMetricOrThrow("grpc_prometheus_server_series");
+    Sample startedSeries =
+        series.samples.stream()
+            .filter(s -> s.labelValues.contains("grpc_server_started"))
+            .findFirst()
+            .get();
+    assertThat(startedSeries.value).isWithin(0).of(1);
+  }
+
+  @Test
+  public void exportsViews() throws Throwable {
+    startGrpcServer(
+        CHEAP_METRICS.withView(
+            MetricView.create("service")
+                .withoutLabels("grpc_method")
+                .withCodesMerged()
+                .onlyFor("grpc_server_handled")
+                .replacingRawSeries()));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    createGrpcBlockingStub().sayHelloServerStream(REQUEST).forEachRemaining(r -> {});
+    try {
+      createGrpcBlockingStub()
+          .sayHello(
+              HelloRequest.newBuilder().setRecipient(RECIPIENT).setThrowException(true).build());
+    } catch (StatusRuntimeException e) {
+      // Expected.
+    }
+
+    assertThat(
+            RegistryHelper.findRecordedMetric("grpc_server_handled", collectorRegistry).isPresent())
+        .isFalse();
+    MetricFamilySamples handled = findRecordedMetricOrThrow("service:grpc_server_handled");
+    Sample total = getSample(handled, "service:grpc_server_handled_total");
+    assertThat(total.labelNames)
+        .containsExactly("grpc_type", "grpc_service", "code", "grpc_code")
+        .inOrder();
+    assertThat(
+            handled.samples.stream()
+                .filter(s -> s.name.equals("service:grpc_server_handled_total"))
+                .map(s -> s.labelValues)
+                .collect(Collectors.toList()))
+        .containsExactly(
+            Arrays.asList("UNARY", HelloServiceImpl.SERVICE_NAME, "OK", "OK"),
+            Arrays.asList("UNARY", HelloServiceImpl.SERVICE_NAME, "NOT_OK", "NOT_OK"),
+            Arrays.asList("SERVER_STREAMING", HelloServiceImpl.SERVICE_NAME, "OK", "OK"));
+
+    // Metrics which the view does not apply to are exported as they are.
+    assertThat(findRecordedMetricOrThrow("grpc_server_started").samples).isNotEmpty();
+  }
+
+  @Test
+  public void countsCallsAgainstLatencyThresholds() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withLatencyThresholds(100, 1000));
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    MetricFamilySamples thresholds = findRecordedMetricOrThrow("grpc_server_latency_threshold");
+    Sample total = getSample(thresholds, "grpc_server_latency_threshold_total");
+    assertThat(total.labelNames)
+        .containsExactly(
+            "grpc_type", "grpc_service", "grpc_method", "grpc_code", "threshold", "result")
+        .inOrder();
+
+    // All series of the method are created up front, for both code classes.
+    List<Sample> totals =
+        thresholds.samples.stream()
+            .filter(s -> s.name.equals("grpc_server_latency_threshold_total"))
+            .collect(Collectors.toList());
+    assertThat(totals).hasSize(8);
+    for (Sample sample : totals) {
+      boolean isGood = sample.labelValues.get(5).equals("good");
+      boolean isOk = sample.labelValues.get(3).equals("OK");
+      assertThat(sample.value).isWithin(0).of(isGood && isOk ? 1 : 0);
+    }
+
+    // Latency histograms are not needed for the thresholds.
+    assertThat(
+            RegistryHelper.findRecordedMetric(
+                    "grpc_server_handled_latency_seconds", collectorRegistry)
+                .isPresent())
+        .isFalse();
+  }
+
+  @Test
+  public void appliesConfigurationChanges() throws Throwable {
+    ConfigurationHandle handle =
+        ConfigurationHandle.create(CHEAP_METRICS.withCollectorRegistry(collectorRegistry));
+    startGrpcServer(
+        InProcessServerBuilder.forName(grpcServerName), MonitoringServerInterceptor.create(handle));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    assertThat(
+            RegistryHelper.findRecordedMetric(
+                    "grpc_server_handled_latency_seconds", collectorRegistry)
+                .isPresent())
+        .isFalse();
+
+    handle.update(Configuration::withLatencyHistograms);
+    createGrpcBlockingStub().sayHello(REQUEST);
+    MetricFamilySamples latency = findRecordedMetricOrThrow("grpc_server_handled_latency_seconds");
+    assertThat(getSample(latency, "grpc_server_handled_latency_seconds_count").value)
+        .isWithin(0)
+        .of(1);
+
+    // Metrics which were registered before keep their series.
+    MetricFamilySamples handled = findRecordedMetricOrThrow("grpc_server_handled");
+    assertThat(getSample(handled, "grpc_server_handled_total").value).isWithin(0).of(2);
+
+    // Only the unary method keeps recording latency histograms.
+    handle.setMethodConfiguration(
+        HelloServiceImpl.SERVICE_NAME + "/" + HelloServiceImpl.UNARY_METHOD_NAME, handle.get());
+    handle.set(CHEAP_METRICS.withCollectorRegistry(collectorRegistry));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    createGrpcBlockingStub().sayHelloServerStream(REQUEST).forEachRemaining(r -> {});
+    latency = findRecordedMetricOrThrow("grpc_server_handled_latency_seconds");
+    List<Sample> counts =
+        latency.samples.stream()
+            .filter(s -> s.name.equals("grpc_server_handled_latency_seconds_count"))
+            .collect(Collectors.toList());
+    assertThat(counts).hasSize(1);
+    assertThat(counts.get(0).labelValues.get(2)).isEqualTo(HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(counts.get(0).value).isWithin(0).of(2);
+  }
+
+  @Test
+  public void disablesFeaturesAtRuntime() throws Throwable {
+    ConfigurationHandle handle =
+        ConfigurationHandle.create(ALL_METRICS.withCollectorRegistry(collectorRegistry));
+    startGrpcServer(
+        InProcessServerBuilder.forName(grpcServerName), MonitoringServerInterceptor.create(handle));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    findRecordedMetricOrThrow("grpc_server_handled_latency_seconds");
+
+    handle.update(Configuration::withoutLatencyHistograms);
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    // The histogram is no longer recorded by any configuration, while the counters are shared.
+    assertThat(
+            RegistryHelper.findRecordedMetric(
+                    "grpc_server_handled_latency_seconds", collectorRegistry)
+                .isPresent())
+        .isFalse();
+    MetricFamilySamples handled = findRecordedMetricOrThrow("grpc_server_handled");
+    assertThat(getSample(handled, "grpc_server_handled_total").value).isWithin(0).of(2);
+  }
+
+  @Test
+  public void keepsMetricsOfOtherMethodsIfAMethodChangesLabels() throws Throwable {
+    ConfigurationHandle handle =
+        ConfigurationHandle.create(CHEAP_METRICS.withCollectorRegistry(collectorRegistry));
+    startGrpcServer(
+        InProcessServerBuilder.forName(grpcServerName), MonitoringServerInterceptor.create(handle));
+    createGrpcBlockingStub().sayHelloServerStream(REQUEST).forEachRemaining(r -> {});
+
+    handle.setMethodConfiguration(
+        HelloServiceImpl.SERVICE_NAME + "/" + HelloServiceImpl.UNARY_METHOD_NAME,
+        handle.get().withLabelHeaders(Arrays.asList("header-1")));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    createGrpcBlockingStub().sayHelloServerStream(REQUEST).forEachRemaining(r -> {});
+
+    // Both variants of the counter are exported, and the default one kept its series.
+    List<Sample> started =
+        findRecordedMetricOrThrow("grpc_server_started").samples.stream()
+            .filter(s -> s.name.equals("grpc_server_started_total"))
+            .collect(Collectors.toList());
+    assertThat(started).hasSize(2);
+    Sample streaming =
+        started.stream().filter(s -> !s.labelNames.contains("header_1")).findFirst().get();
+    assertThat(streaming.labelValues.get(2)).isEqualTo(HelloServiceImpl.SERVER_STREAM_METHOD_NAME);
+    assertThat(streaming.value).isWithin(0).of(2);
+    Sample unary =
+        started.stream().filter(s -> s.labelNames.contains("header_1")).findFirst().get();
+    assertThat(unary.labelValues.get(2)).isEqualTo(HelloServiceImpl.UNARY_METHOD_NAME);
+    assertThat(unary.value).isWithin(0).of(1);
+  }
+
+  @Test
+  public void appliesBucketChanges() throws Throwable {
+    ConfigurationHandle handle =
+        ConfigurationHandle.create(ALL_METRICS.withCollectorRegistry(collectorRegistry));
+    startGrpcServer(
+        InProcessServerBuilder.forName(grpcServerName), MonitoringServerInterceptor.create(handle));
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    handle.update(c -> c.withLatencyBuckets(new double[] {0.5, 7}));
+    createGrpcBlockingStub().sayHello(REQUEST);
+    MetricFamilySamples latency = findRecordedMetricOrThrow("grpc_server_handled_latency_seconds");
+    List<String> bounds =
+        latency.samples.stream()
+            .filter(s -> s.name.equals("grpc_server_handled_latency_seconds_bucket"))
+            .map(s -> s.labelValues.get(s.labelNames.indexOf("le")))
+            .collect(Collectors.toList());
+    assertThat(bounds).containsExactly("0.5", "7.0", "+Inf");
+
+    // The histogram got registered again, which reset its series.
+    assertThat(getSample(latency, "grpc_server_handled_latency_seconds_count").value)
+        .isWithin(0)
+        .of(1);
+  }
+
+  @Test
+  public void recordsPhases() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withPhaseMetrics());
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    MetricFamilySamples phases = findRecordedMetricOrThrow("grpc_server_phase_seconds");
+    List<Sample> counts =
+        phases.samples.stream()
+            .filter(s -> s.name.equals("grpc_server_phase_seconds_count"))
+            .collect(Collectors.toList());
+    assertThat(counts.stream().map(s -> s.labelValues.get(3)).collect(Collectors.toList()))
+        .containsExactly("receive", "handle", "send");
+    for (Sample count : counts) {
+      assertThat(count.labelValues.subList(0, 3))
+          .containsExactly(
+              "UNARY", HelloServiceImpl.SERVICE_NAME, HelloServiceImpl.UNARY_METHOD_NAME)
+          .inOrder();
+      assertThat(count.value).isWithin(0).of(1);
+    }
+  }
+
+  @Test
+  public void recordsMessageHandlerTime() throws Throwable {
+    startGrpcServer(CHEAP_METRICS.withMessageHandlerMetrics(1));
+    StreamRecorder<HelloResponse> streamRecorder = StreamRecorder.create();
+    StreamObserver<HelloRequest> requestStream =
+        createGrpcStub().sayHelloBidiStream(streamRecorder);
+    requestStream.onNext(REQUEST);
+    requestStream.onNext(REQUEST);
+    requestStream.onCompleted();
+    streamRecorder.awaitCompletion();
+
+    MetricFamilySamples handlerTime = findRecordedMetricOrThrow("grpc_server_msg_handler_seconds");
+    Sample count = getSample(handlerTime, "grpc_server_msg_handler_seconds_count");
+    assertThat(count.labelValues)
+        .containsExactly(
+            "BIDI_STREAMING",
+            HelloServiceImpl.SERVICE_NAME,
+            HelloServiceImpl.BIDI_STREAM_METHOD_NAME)
+        .inOrder();
+    assertThat(count.value).isWithin(0).of(2);
+  }
+
+  @Test
+  public void recordsInterceptorChainTime() throws Throwable {
+    Configuration configuration = CHEAP_METRICS.withCollectorRegistry(collectorRegistry);
+    ServerChainMarkers markers = ServerChainMarkers.create(configuration);
+    startGrpcServer(
+        InProcessServerBuilder.forName(grpcServerName),
+        markers.tail(),
+        MonitoringServerInterceptor.create(configuration),
+        markers.head());
+    createGrpcBlockingStub().sayHello(REQUEST);
+
+    MetricFamilySamples chain = findRecordedMetricOrThrow("grpc_server_interceptor_chain_seconds");
+    List<Sample> counts =
+        chain.samples.stream()
+            .filter(s -> s.name.equals("grpc_server_interceptor_chain_seconds_count"))
+            .collect(Collectors.toList());
+    assertThat(counts.stream().map(s -> s.labelValues.get(3)).collect(Collectors.toList()))
+        .containsAtLeast("start_call", "on_message", "on_half_close");
+    for (Sample count : counts) {
+      assertThat(count.labelValues.get(2)).isEqualTo(HelloServiceImpl.UNARY_METHOD_NAME);
+      assertThat(count.value).isWithin(0).of(1);
+    }
+  }
+
+  private void startGrpcServer(Configuration monitoringConfig) {
+    startGrpcServer(monitoringConfig, InProcessServerBuilder.forName(grpcServerName));
+  }
+
+  private void startGrpcServer(
+      Configuration monitoringConfig, InProcessServerBuilder serverBuilder) {
+    startGrpcServer(
+        serverBuilder,
+        MonitoringServerInterceptor.create(
+            monitoringConfig.withCollectorRegistry(collectorRegistry)));
+  }
+
+  private void startGrpcServer(
+      InProcessServerBuilder serverBuilder, ServerInterceptor... interceptors) {
+    grpcServer =
+        serverBuilder
             .addService(
-                ServerInterceptors.intercept(new HelloServiceImpl().bindService(), interceptor))
+                ServerInterceptors.intercept(new HelloServiceImpl().bindService(), interceptors))
             .build();
     try {
       grpcServer.start();
@@ -421,10 +1159,23 @@ public class MonitoringServerInterceptorIntegrationTest {
     return HelloServiceGrpc.newBlockingStub(createGrpcChannel());
   }
 
+  private double extractMetricValue(String name) {
+    return RegistryHelper.extractMetricValue(name, collectorRegistry);
+  }
+
   private int countSamples(String metricName, String sampleName) {
     return RegistryHelper.countSamples(metricName, sampleName, collectorRegistry);
   }
 
+  /** Waits for a sample of the supplied metric to be recorded, e.g., from another thread. */
+  private void awaitSamples(String metricName, String sampleName) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (countSamples(metricName, sampleName) == 0 && System.nanoTime() < deadlineNanos) {
+      Thread.sleep(10);
+    }
+    assertThat(countSamples(metricName, sampleName)).isEqualTo(1);
+  }
+
   private HelloServiceStub createGrpcStub() {
     return HelloServiceGrpc.newStub(createGrpcChannel());
   }
@@ -436,4 +1187,27 @@ public class MonitoringServerInterceptorIntegrationTest {
   private static Sample getSample(MetricFamilySamples family, String sampleName) {
     return family.samples.stream().filter(s -> s.name.equals(sampleName)).findFirst().get();
   }
+
+  /**
+   * Makes the handler send a response a while after the rpc got cancelled, and keeps the
+   * cancellation from it so that it never closes the rpc.
+   */
+  private static class SendOnCancelInterceptor implements ServerInterceptor {
+    @Override
+    public <R, S> ServerCall.Listener<R> interceptCall(
+        ServerCall<R, S> call, Metadata requestMetadata, ServerCallHandler<R, S> next) {
+      return new SimpleForwardingServerCallListener<R>(next.startCall(call, requestMetadata)) {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onCancel() {
+          try {
+            Thread.sleep(SEND_ON_CANCEL_DELAY.toMillis());
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          call.sendMessage((S) HelloResponse.getDefaultInstance());
+        }
+      };
+    }
+  }
 }